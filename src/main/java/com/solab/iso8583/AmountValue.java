@@ -0,0 +1,102 @@
+/*
+j8583 A Java implementation of the ISO8583 protocol
+Copyright (C) 2007 Enrique Zamudio Lopez
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA
+*/
+package com.solab.iso8583;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+
+import com.solab.iso8583.util.TextCodec;
+
+/** An AMOUNT value stored as a number of minor units (cents), the same way it's encoded
+ * in the message: 12 digits, the last two of them being the decimals. It is written
+ * directly from the number, and a BigDecimal is only created if the value is requested
+ * with {@link #getValue()}.
+ *
+ * @author Enrique Zamudio
+ */
+public class AmountValue extends IsoValue<BigDecimal> {
+
+	/** The largest amount that fits in the 12 digits of the field. */
+	public static final long MAX_MINOR_UNITS = 999999999999L;
+
+	private final long minorUnits;
+
+	/** Creates an AMOUNT value with the specified number of minor units, for example 1050
+	 * for 10.50. The value must be between 0 and {@link #MAX_MINOR_UNITS}. */
+	public AmountValue(long minorUnits) {
+		super(IsoType.AMOUNT, 12, null);
+		if (minorUnits < 0 || minorUnits > MAX_MINOR_UNITS) {
+			throw new IllegalArgumentException("Amount does not fit in 12 digits: " + minorUnits);
+		}
+		this.minorUnits = minorUnits;
+	}
+
+	/** Returns the amount in minor units. */
+	public long getMinorUnits() {
+		return minorUnits;
+	}
+
+	/** Returns the amount as a BigDecimal with two decimals. */
+	@Override
+	public BigDecimal getValue() {
+		return BigDecimal.valueOf(minorUnits, 2);
+	}
+
+	@Override
+	public String toString() {
+		return new String(digits());
+	}
+
+	@Override
+	public int hashCode() {
+		return toString().hashCode();
+	}
+
+	@Override
+	public AmountValue clone() {
+		return (AmountValue)super.clone();
+	}
+
+	@Override
+	public int encodedLength(boolean binary) {
+		return binary ? 6 : 12;
+	}
+
+	@Override
+	void encode(ByteBuffer buf, boolean binary) {
+		if (binary) {
+			//Two digits per byte, the least significant ones at the end
+			putBcd(buf, minorUnits, 6);
+		} else {
+			putDigits(buf, minorUnits, 12, TextCodec.digitBytes(getCharset()));
+		}
+	}
+
+	/** Returns the 12 digits of the amount, padded with zeroes to the left. */
+	private char[] digits() {
+		char[] c = new char[12];
+		long v = minorUnits;
+		for (int i = 11; i >= 0; i--) {
+			c[i] = (char)((v % 10) + 48);
+			v /= 10;
+		}
+		return c;
+	}
+
+}
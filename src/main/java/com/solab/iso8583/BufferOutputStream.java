@@ -0,0 +1,53 @@
+/*
+j8583 A Java implementation of the ISO8583 protocol
+Copyright (C) 2007 Enrique Zamudio Lopez
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA
+*/
+package com.solab.iso8583;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/** A stream that puts everything written to it in a ByteBuffer, at the buffer's position,
+ * so that the values can be written straight into a heap or direct buffer. Writing past
+ * the buffer's limit throws a BufferOverflowException.
+ *
+ * @author Enrique Zamudio
+ */
+final class BufferOutputStream extends OutputStream {
+
+	private final ByteBuffer buf;
+
+	BufferOutputStream(ByteBuffer buf) {
+		this.buf = buf;
+	}
+
+	/** Returns the buffer, so that values can be encoded straight into it. */
+	ByteBuffer buffer() {
+		return buf;
+	}
+
+	@Override
+	public void write(int b) {
+		buf.put((byte)b);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) {
+		buf.put(b, off, len);
+	}
+
+}
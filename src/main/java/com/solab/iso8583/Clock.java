@@ -0,0 +1,41 @@
+/*
+j8583 A Java implementation of the ISO8583 protocol
+Copyright (C) 2007 Enrique Zamudio Lopez
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA
+*/
+package com.solab.iso8583;
+
+/** The source of the current time for the dates that a MessageFactory sets on new messages
+ * (field 7) and for the parsers of dates without a year, which use the current year.
+ * A coarse clock that only changes once per second, such as
+ * {@link com.solab.iso8583.impl.CoarseClock}, allows the dates of all the messages created
+ * in the same second to be formatted only once.
+ *
+ * @author Enrique Zamudio
+ */
+public interface Clock {
+
+	/** The system clock, with millisecond precision. */
+	public static final Clock SYSTEM = new Clock() {
+		public long currentTimeMillis() {
+			return System.currentTimeMillis();
+		}
+	};
+
+	/** Returns the current time, in milliseconds since the epoch. */
+	public long currentTimeMillis();
+
+}
@@ -0,0 +1,113 @@
+/*
+j8583 A Java implementation of the ISO8583 protocol
+Copyright (C) 2007 Enrique Zamudio Lopez
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA
+*/
+package com.solab.iso8583;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/** A constant value, encoded once for text and binary messages. The same instance is shared by
+ * all the messages that the factory creates from a template, or by the copies of a frozen
+ * message, and it's written by copying the encoded bytes. Its charset can't be changed;
+ * a clone is a regular IsoValue that can be modified.
+ *
+ * @author Enrique Zamudio
+ */
+final class EncodedValue<T> extends IsoValue<T> {
+
+	private final IsoValue<T> source;
+	private final byte[] text;
+	private final byte[] binary;
+
+	/** Encodes a copy of the value in the specified charset.
+	 * @throws IllegalArgumentException if the value can't be formatted. */
+	EncodedValue(IsoValue<T> source, Charset charset) {
+		super(source.getType(), source.getLength(), source.getEncoder());
+		this.source = source;
+		super.setCharset(charset);
+		IsoValue<T> v = source.clone();
+		v.setCharset(charset);
+		text = encode(v, false);
+		binary = encode(v, true);
+	}
+
+	private static byte[] encode(IsoValue<?> v, boolean binary) {
+		byte[] buf = new byte[v.encodedLength(binary)];
+		try {
+			v.write(new BufferOutputStream(ByteBuffer.wrap(buf)), binary);
+		} catch (IOException ex) {
+			throw new IllegalArgumentException("Cannot write value", ex);
+		}
+		return buf;
+	}
+
+	/** Returns the value that was encoded. */
+	IsoValue<T> getSource() {
+		return source;
+	}
+
+	@Override
+	public T getValue() {
+		return source.getValue();
+	}
+
+	/** Returns true if the value was encoded with the specified charset. */
+	boolean hasCharset(Charset value) {
+		return value == null ? getCharset() == null : value.equals(getCharset());
+	}
+
+	/** Throws an exception if the charset is not the one the value was encoded with,
+	 * since the value is shared by several messages. */
+	@Override
+	public void setCharset(Charset value) {
+		if (!hasCharset(value)) {
+			throw new UnsupportedOperationException("Encoded values are shared; use a clone to change the charset");
+		}
+	}
+
+	@Override
+	public String toString() {
+		return source.toString();
+	}
+
+	@Override
+	public int hashCode() {
+		return source.hashCode();
+	}
+
+	/** Returns a copy of the source value, with the same charset. */
+	@Override
+	public IsoValue<T> clone() {
+		IsoValue<T> c = source.clone();
+		c.setCharset(getCharset());
+		return c;
+	}
+
+	@Override
+	public int encodedLength(boolean binary) {
+		return binary ? this.binary.length : text.length;
+	}
+
+	@Override
+	public void write(OutputStream outs, boolean binary) throws IOException {
+		outs.write(binary ? this.binary : text);
+	}
+
+}
@@ -0,0 +1,227 @@
+/*
+j8583 A Java implementation of the ISO8583 protocol
+Copyright (C) 2007 Enrique Zamudio Lopez
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA
+*/
+package com.solab.iso8583;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import com.solab.iso8583.util.TextCodec;
+
+/** Replaces, inserts or removes fields in an encoded message, without decoding the rest of it.
+ * The ISO header, message type and the fields that are not changed are copied verbatim from
+ * the original frame; only the bitmap and the new values are encoded. This is useful to forward
+ * a message after changing one or two of its fields. Editors are created by
+ * {@link MessageFactory#editFrame(ByteBuffer, int)}; the original frame must not be modified
+ * while the editor is in use.
+ *
+ * @author Enrique Zamudio
+ */
+public final class FrameEditor {
+
+	/** The original frame, whose position and limit are changed to copy each range. */
+	private final ByteBuffer frame;
+	/** Where the message starts in the frame. */
+	private final int start;
+	/** Where the bitmap starts, after the ISO header and message type. */
+	private final int bitmap;
+	/** Where the original fields end; the rest of the frame (the ETX, if any) is copied as is. */
+	private final int end;
+	/** Where each field of the original message starts, and where it ends. */
+	private final int[] starts = new int[129];
+	private final int[] ends = new int[129];
+	/** The new values, for the fields that have been replaced or inserted. */
+	private final IsoValue<?>[] values = new IsoValue<?>[129];
+	private final boolean binary;
+	private final Charset charset;
+	private final boolean forceb2;
+	/** The current bitmap, in the same layout as in {@link IsoMessage}. */
+	private long bits1;
+	private long bits2;
+
+	/** Creates an editor for the message in the frame, whose fields have been located already.
+	 * @param bounds The position where each field starts, indexed by field number (0 if it's not
+	 * in the message), and the position after the last field in the first element. */
+	FrameEditor(ByteBuffer frame, int bitmap, int[] bounds, boolean binary, Charset charset, boolean forceb2) {
+		this.frame = frame;
+		this.start = frame.position();
+		this.bitmap = bitmap;
+		this.end = bounds[0];
+		this.binary = binary;
+		this.charset = charset;
+		this.forceb2 = forceb2;
+		int next = end;
+		for (int i = 128; i > 1; i--) {
+			if (bounds[i] > 0) {
+				starts[i] = bounds[i];
+				ends[i] = next;
+				next = bounds[i];
+				if (i <= 64) {
+					bits1 |= Long.MIN_VALUE >>> (i - 1);
+				} else {
+					bits2 |= Long.MIN_VALUE >>> (i - 65);
+				}
+			}
+		}
+	}
+
+	/** Returns the bit for the field in its half of the bitmap. */
+	private static long bit(int field) {
+		if (field < 2 || field > 128) {
+			throw new IndexOutOfBoundsException("Field index must be between 2 and 128");
+		}
+		return Long.MIN_VALUE >>> ((field - 1) & 63);
+	}
+
+	/** Returns true if the message has the specified field, after the changes made so far. */
+	public boolean hasField(int index) {
+		return ((index <= 64 ? bits1 : bits2) & bit(index)) != 0;
+	}
+
+	/** Replaces the field with the specified value, or inserts it if the message doesn't have it.
+	 * The value gets the factory's charset; a value shared by the messages created from a template,
+	 * or by frozen messages, is copied first if its charset is different.
+	 * @param index The field number, from 2 to 128.
+	 * @param value The new value, or null to remove the field.
+	 * @return The receiver, to make several changes in sequence. */
+	public FrameEditor setField(int index, IsoValue<?> value) {
+		if (value == null) {
+			return removeField(index);
+		}
+		final long b = bit(index);
+		if (value instanceof EncodedValue && !((EncodedValue<?>)value).hasCharset(charset)) {
+			//Shared values can't change their charset, so a copy is stored instead
+			value = value.clone();
+		}
+		value.setCharset(charset);
+		values[index] = value;
+		if (index <= 64) {
+			bits1 |= b;
+		} else {
+			bits2 |= b;
+		}
+		return this;
+	}
+
+	/** Removes the field from the message, if it's there. The secondary bitmap is removed
+	 * when the message no longer has any fields after 64 (unless the factory forces it).
+	 * @return The receiver, to make several changes in sequence. */
+	public FrameEditor removeField(int index) {
+		final long b = bit(index);
+		values[index] = null;
+		if (index <= 64) {
+			bits1 &= ~b;
+		} else {
+			bits2 &= ~b;
+		}
+		return this;
+	}
+
+	/** Returns the number of bytes of the edited message, from the ISO header to the ETX
+	 * (if the original message has one). The new values are measured, not encoded. */
+	public int encodedLength() {
+		int len = bitmap - start + (end < frame.limit() ? frame.limit() - end : 0);
+		final int map = bits2 != 0 || forceb2 ? 16 : 8;
+		len += binary ? map : map * 2;
+		for (int i = 2; i <= 128; i++) {
+			if (values[i] != null) {
+				len += values[i].encodedLength(binary);
+			} else if (hasField(i)) {
+				len += ends[i] - starts[i];
+			}
+		}
+		return len;
+	}
+
+	/** Returns the edited message in a new array of the exact size. */
+	public byte[] writeData() {
+		byte[] data = new byte[encodedLength()];
+		write(ByteBuffer.wrap(data));
+		return data;
+	}
+
+	/** Writes the edited message to the buffer, at its current position, which is advanced
+	 * past the message. Nothing is written if the buffer doesn't have enough space.
+	 * @throws java.nio.BufferOverflowException if the remaining space in the buffer is
+	 * less than {@link #encodedLength()}. */
+	public void writeTo(ByteBuffer buf) {
+		if (buf.remaining() < encodedLength()) {
+			throw new BufferOverflowException();
+		}
+		write(buf);
+	}
+
+	/** Copies the specified range of the original frame to the buffer. */
+	private void copy(ByteBuffer buf, int from, int to) {
+		frame.limit(to);
+		frame.position(from);
+		buf.put(frame);
+	}
+
+	private void write(ByteBuffer buf) {
+		final int limit = frame.limit();
+		try {
+			//ISO header and message type
+			copy(buf, start, bitmap);
+			final boolean secondary = bits2 != 0 || forceb2;
+			final long b1 = secondary ? bits1 | Long.MIN_VALUE : bits1;
+			if (binary) {
+				for (int i = 56; i >= 0; i -= 8) {
+					buf.put((byte)(b1 >>> i));
+				}
+				if (secondary) {
+					for (int i = 56; i >= 0; i -= 8) {
+						buf.put((byte)(bits2 >>> i));
+					}
+				}
+			} else {
+				final byte[] digits = TextCodec.digitBytes(charset);
+				for (int i = 60; i >= 0; i -= 4) {
+					buf.put(digits[(int)(b1 >>> i) & 0x0f]);
+				}
+				if (secondary) {
+					for (int i = 60; i >= 0; i -= 4) {
+						buf.put(digits[(int)(bits2 >>> i) & 0x0f]);
+					}
+				}
+			}
+			final BufferOutputStream outs = new BufferOutputStream(buf);
+			for (int i = 2; i <= 128; i++) {
+				if (values[i] != null) {
+					try {
+						values[i].write(outs, binary);
+					} catch (IOException ex) {
+						//should never happen, writing to a buffer
+					}
+				} else if (hasField(i)) {
+					copy(buf, starts[i], ends[i]);
+				}
+			}
+			//ETX or anything else after the fields
+			if (end < limit) {
+				copy(buf, end, limit);
+			}
+		} finally {
+			frame.limit(limit);
+			frame.position(start);
+		}
+	}
+
+}
@@ -0,0 +1,278 @@
+/*
+j8583 A Java implementation of the ISO8583 protocol
+Copyright (C) 2007 Enrique Zamudio Lopez
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA
+*/
+package com.solab.iso8583;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.ParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/** Parses files with a large number of messages, each one preceded by a length header as
+ * written by {@link IsoMessage#write(java.io.OutputStream, int)}, using several threads.
+ * The file is memory-mapped and the calling thread only reads the length headers, to split
+ * it into chunks of whole messages; each chunk is then parsed by a task submitted to an
+ * ExecutorService. The parsed messages can be delivered to the handler in the same order
+ * they have in the file, or as soon as each chunk is parsed.
+ * <P>
+ * The factory must not be modified while a file is being parsed; it's best to freeze it.
+ *
+ * @author Enrique Zamudio
+ */
+public class IsoFileParser {
+
+	/** The size of the regions of the file that are mapped to read the length headers. */
+	private static final long SCAN_WINDOW = 64 * 1024 * 1024;
+
+	private final MessageFactory factory;
+	private final int lengthBytes;
+	private final int isoHeaderLength;
+	private int chunkSize = 4 * 1024 * 1024;
+	private int maxPendingChunks = Runtime.getRuntime().availableProcessors() * 2;
+	private int maxFrameLength = IsoFrameDecoder.DEFAULT_MAX_FRAME_LENGTH;
+
+	/** Creates a parser for files with messages with a length header of the specified size.
+	 * @param factory The factory used to parse the messages.
+	 * @param lengthBytes The size of the length header, from 1 to 4 bytes.
+	 * @param isoHeaderLength The length of the ISO header in the messages. */
+	public IsoFileParser(MessageFactory factory, int lengthBytes, int isoHeaderLength) {
+		if (lengthBytes < 1 || lengthBytes > 4) {
+			throw new IllegalArgumentException("The length header must have 1 to 4 bytes");
+		}
+		this.factory = factory;
+		this.lengthBytes = lengthBytes;
+		this.isoHeaderLength = isoHeaderLength;
+	}
+
+	/** Sets the approximate size in bytes of the chunks that are parsed by each task.
+	 * Chunks only contain whole messages, so they can be bigger than this if a message is.
+	 * Default is 4MB. */
+	public void setChunkSize(int value) {
+		if (value < 1) {
+			throw new IllegalArgumentException("Chunk size must be greater than zero");
+		}
+		chunkSize = value;
+	}
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	/** Sets the maximum number of chunks that can be submitted for parsing before their messages
+	 * are delivered. This limits the number of parsed messages held in memory. Default is twice
+	 * the number of available processors. */
+	public void setMaxPendingChunks(int value) {
+		if (value < 1) {
+			throw new IllegalArgumentException("Max pending chunks must be greater than zero");
+		}
+		maxPendingChunks = value;
+	}
+	public int getMaxPendingChunks() {
+		return maxPendingChunks;
+	}
+
+	/** Sets the maximum length of a message, as read from its length header; the file is
+	 * rejected with a ParseException when it has a longer message.
+	 * Default is {@link IsoFrameDecoder#DEFAULT_MAX_FRAME_LENGTH}. */
+	public void setMaxFrameLength(int value) {
+		if (value < 1) {
+			throw new IllegalArgumentException("The maximum message length must be positive");
+		}
+		maxFrameLength = value;
+	}
+	/** Returns the maximum length of a message. */
+	public int getMaxFrameLength() {
+		return maxFrameLength;
+	}
+
+	/** Parses all the messages in the file using a new thread pool with as many threads as
+	 * available processors, which is shut down afterwards.
+	 * See {@link #parse(File, ExecutorService, boolean, IsoMessageHandler)}. */
+	public long parse(File file, boolean ordered, IsoMessageHandler handler)
+	throws IOException, ParseException {
+		ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		try {
+			return parse(file, executor, ordered, handler);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/** Parses all the messages in the file, using the specified executor to parse the chunks.
+	 * @param file The file to read.
+	 * @param executor The executor that runs the tasks that parse each chunk.
+	 * @param ordered If true, the messages are delivered to the handler by the calling thread,
+	 * in the same order they have in the file. If false, they are delivered by the executor's
+	 * threads as soon as each chunk is parsed, so the handler must be thread-safe.
+	 * @param handler Receives the parsed messages.
+	 * @return The number of messages parsed.
+	 * @throws ParseException if a message cannot be parsed or the file ends in the middle of a
+	 * message. No more messages are delivered after the error is detected; when they're not
+	 * ordered, messages from other chunks may have been delivered before that, even if they
+	 * come after the bad message in the file. */
+	public long parse(File file, ExecutorService executor, boolean ordered, IsoMessageHandler handler)
+	throws IOException, ParseException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		final Queue<Future<List<IsoMessage>>> pending = new ArrayDeque<Future<List<IsoMessage>>>();
+		final AtomicBoolean failed = new AtomicBoolean();
+		boolean done = false;
+		try {
+			final FileChannel channel = raf.getChannel();
+			final long size = channel.size();
+			long count = 0;
+			long chunkStart = 0;
+			long pos = 0;
+			long windowStart = 0;
+			MappedByteBuffer window = null;
+			while (pos < size) {
+				if (pos + lengthBytes > size) {
+					throw new ParseException(String.format("Incomplete length header at offset %d", pos), offset(pos));
+				}
+				if (window == null || pos + lengthBytes > windowStart + window.capacity()) {
+					windowStart = pos;
+					window = channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(SCAN_WINDOW, size - pos));
+				}
+				int len = 0;
+				for (int i = (int)(pos - windowStart); i < (int)(pos - windowStart) + lengthBytes; i++) {
+					len = (len << 8) | (window.get(i) & 0xff);
+				}
+				if (len < 0 || len > maxFrameLength) {
+					throw new ParseException(String.format("Invalid message length %d at offset %d", len & 0xffffffffL, pos), offset(pos));
+				}
+				final long next = pos + lengthBytes + len;
+				if (next > size) {
+					throw new ParseException(String.format("Incomplete message at offset %d", pos), offset(pos));
+				}
+				if (next - chunkStart > chunkSize && pos > chunkStart) {
+					if (pending.size() >= maxPendingChunks) {
+						count += deliver(pending.poll(), ordered, handler);
+					}
+					pending.add(executor.submit(new ChunkTask(channel, chunkStart, (int)(pos - chunkStart),
+						ordered ? null : handler, failed)));
+					chunkStart = pos;
+				}
+				pos = next;
+			}
+			if (pos > chunkStart) {
+				pending.add(executor.submit(new ChunkTask(channel, chunkStart, (int)(pos - chunkStart),
+					ordered ? null : handler, failed)));
+			}
+			while (!pending.isEmpty()) {
+				count += deliver(pending.poll(), ordered, handler);
+			}
+			done = true;
+			return count;
+		} finally {
+			if (!done) {
+				//stops the delivery of messages by the tasks that are still running
+				failed.set(true);
+			}
+			for (Future<List<IsoMessage>> f : pending) {
+				f.cancel(false);
+			}
+			raf.close();
+		}
+	}
+
+	/** Waits for the messages parsed from a chunk and delivers them if they're ordered. */
+	private int deliver(Future<List<IsoMessage>> f, boolean ordered, IsoMessageHandler handler)
+	throws IOException, ParseException {
+		List<IsoMessage> msgs;
+		try {
+			msgs = f.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while parsing messages");
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof ParseException) {
+				throw (ParseException)ex.getCause();
+			} else if (ex.getCause() instanceof IOException) {
+				throw (IOException)ex.getCause();
+			} else if (ex.getCause() instanceof RuntimeException) {
+				throw (RuntimeException)ex.getCause();
+			}
+			throw new IllegalStateException("Parsing messages", ex.getCause());
+		}
+		if (ordered) {
+			for (IsoMessage m : msgs) {
+				handler.handleMessage(m);
+			}
+		}
+		return msgs.size();
+	}
+
+	/** Returns the file offset to report in a ParseException. */
+	private static int offset(long pos) {
+		return (int)Math.min(pos, Integer.MAX_VALUE);
+	}
+
+	/** Parses the messages in a region of the file, delivering them to the handler if there is one. */
+	private class ChunkTask implements Callable<List<IsoMessage>> {
+
+		private final FileChannel channel;
+		private final long start;
+		private final int length;
+		private final IsoMessageHandler handler;
+		private final AtomicBoolean failed;
+
+		ChunkTask(FileChannel channel, long start, int length, IsoMessageHandler handler, AtomicBoolean failed) {
+			this.channel = channel;
+			this.start = start;
+			this.length = length;
+			this.handler = handler;
+			this.failed = failed;
+		}
+
+		public List<IsoMessage> call() throws IOException, ParseException {
+			MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+			List<IsoMessage> msgs = new ArrayList<IsoMessage>();
+			IsoFrameDecoder decoder = new IsoFrameDecoder(factory, lengthBytes, isoHeaderLength);
+			decoder.setMaxFrameLength(maxFrameLength);
+			boolean parsed = false;
+			try {
+				decoder.decode(buf, msgs);
+				parsed = true;
+			} finally {
+				if (!parsed) {
+					failed.set(true);
+				}
+			}
+			if (handler != null) {
+				for (IsoMessage m : msgs) {
+					if (failed.get()) {
+						break;
+					}
+					handler.handleMessage(m);
+				}
+			}
+			return msgs;
+		}
+	}
+
+}
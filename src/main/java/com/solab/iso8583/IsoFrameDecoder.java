@@ -0,0 +1,185 @@
+/*
+j8583 A Java implementation of the ISO8583 protocol
+Copyright (C) 2007 Enrique Zamudio Lopez
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA
+*/
+package com.solab.iso8583;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/** Decodes messages from data that arrives in chunks, such as the reads from a non-blocking
+ * channel. Each message must be preceded by a binary length header of 1 to 4 bytes, as written
+ * by {@link IsoMessage#write(java.io.OutputStream, int)}, and followed by the ETX character
+ * if the factory has one. A chunk can end in the middle of a message (or its length header)
+ * and can contain several messages; the decoder keeps the incomplete data until the rest of
+ * it arrives, so an instance must only be used for one connection at a time.
+ * <P>
+ * Messages that are complete inside a chunk are parsed in place, without copying them.
+ * Only the messages that are split between chunks are copied, once, to an array of their
+ * exact size. If the factory parses messages lazily, or echoes the request bytes in its
+ * responses, every message is copied to its own array, since the messages keep a reference
+ * to it and the chunks are usually reused.
+ *
+ * @author Enrique Zamudio
+ */
+public class IsoFrameDecoder {
+
+	/** The default maximum length of a message, 1 MB. */
+	public static final int DEFAULT_MAX_FRAME_LENGTH = 1 << 20;
+
+	private final MessageFactory factory;
+	private final int lengthBytes;
+	private final int isoHeaderLength;
+	/** The longest message that is accepted, to avoid allocating a huge array for a corrupt header. */
+	private int maxFrameLength = DEFAULT_MAX_FRAME_LENGTH;
+	/** The number of bytes read from the current length header. */
+	private int headerRead;
+	/** The length of the current message, read from its header. */
+	private int frameLength;
+	/** Stores a message that is split between chunks, until it's complete. */
+	private byte[] pending;
+	private int pendingPos;
+
+	/** Creates a decoder for messages with a length header of the specified size.
+	 * @param factory The factory used to parse the messages.
+	 * @param lengthBytes The size of the length header, from 1 to 4 bytes.
+	 * @param isoHeaderLength The length of the ISO header in the messages. */
+	public IsoFrameDecoder(MessageFactory factory, int lengthBytes, int isoHeaderLength) {
+		if (lengthBytes < 1 || lengthBytes > 4) {
+			throw new IllegalArgumentException("The length header must have 1 to 4 bytes");
+		}
+		this.factory = factory;
+		this.lengthBytes = lengthBytes;
+		this.isoHeaderLength = isoHeaderLength;
+	}
+
+	/** Sets the maximum length of a message, as read from its length header; longer messages
+	 * are rejected with a ParseException before any space is allocated for them.
+	 * Default is {@link #DEFAULT_MAX_FRAME_LENGTH}. */
+	public void setMaxFrameLength(int value) {
+		if (value < 1) {
+			throw new IllegalArgumentException("The maximum message length must be positive");
+		}
+		maxFrameLength = value;
+	}
+	/** Returns the maximum length of a message. */
+	public int getMaxFrameLength() {
+		return maxFrameLength;
+	}
+
+	/** Decodes the remaining data in the buffer and returns the messages that were completed
+	 * by it, which can be none. See {@link #decode(ByteBuffer, Collection)}.
+	 * If a message cannot be parsed, the messages completed before it in the same buffer are
+	 * lost along with the list, since the buffer has been moved past them; use
+	 * {@link #decode(ByteBuffer, Collection)} to keep them. */
+	public List<IsoMessage> decode(ByteBuffer buf) throws ParseException, UnsupportedEncodingException {
+		List<IsoMessage> msgs = new ArrayList<IsoMessage>();
+		decode(buf, msgs);
+		return msgs;
+	}
+
+	/** Decodes the remaining data in the buffer, from its position to its limit, adding each
+	 * message to the collection as soon as its last byte is read. The data of an incomplete
+	 * message at the end of the buffer is kept until the next call, so the buffer can be reused
+	 * after this method returns; its position is moved to the end of the data that was decoded.
+	 * If a message cannot be parsed, the exception is thrown after the position is moved past
+	 * that message, so the decoding can continue with the next one; the messages completed
+	 * before it are already in the collection. A length header greater than
+	 * {@link #getMaxFrameLength()} is also rejected with a ParseException.
+	 * @return The number of messages added to the collection. */
+	public int decode(ByteBuffer buf, Collection<? super IsoMessage> msgs)
+	throws ParseException, UnsupportedEncodingException {
+		int count = 0;
+		while (buf.hasRemaining()) {
+			if (pending == null) {
+				while (headerRead < lengthBytes && buf.hasRemaining()) {
+					frameLength = (frameLength << 8) | (buf.get() & 0xff);
+					headerRead++;
+				}
+				if (headerRead < lengthBytes) {
+					break;
+				}
+				if (frameLength < 0 || frameLength > maxFrameLength) {
+					final int len = frameLength;
+					reset();
+					throw new ParseException(String.format("Invalid message length %d", len & 0xffffffffL), buf.position());
+				} else if (frameLength == 0) {
+					reset();
+				} else if (buf.remaining() >= frameLength && !factory.getLazyParsing()
+						&& !factory.getEchoRequestBytes()) {
+					//The whole message is here, parse it in place
+					final int end = buf.position() + frameLength;
+					ByteBuffer frame = buf.duplicate();
+					frame.limit(end);
+					buf.position(end);
+					reset();
+					count += parse(frame, msgs);
+				} else {
+					pending = new byte[frameLength];
+					pendingPos = 0;
+				}
+			} else {
+				final int n = Math.min(buf.remaining(), pending.length - pendingPos);
+				buf.get(pending, pendingPos, n);
+				pendingPos += n;
+				if (pendingPos == pending.length) {
+					ByteBuffer frame = ByteBuffer.wrap(pending);
+					reset();
+					count += parse(frame, msgs);
+				}
+			}
+		}
+		return count;
+	}
+
+	/** Returns true if the decoder has read part of a message that is not yet complete. */
+	public boolean hasPartialMessage() {
+		return headerRead > 0;
+	}
+
+	/** Discards the data of the incomplete message, if any. */
+	public void reset() {
+		headerRead = 0;
+		frameLength = 0;
+		pending = null;
+		pendingPos = 0;
+	}
+
+	/** Parses the message between the position and the limit of the buffer, after checking
+	 * and removing the ETX if the factory uses one. */
+	private int parse(ByteBuffer frame, Collection<? super IsoMessage> msgs)
+	throws ParseException, UnsupportedEncodingException {
+		final int etx = factory.getEtx();
+		if (etx > -1) {
+			if ((frame.get(frame.limit() - 1) & 0xff) != etx) {
+				throw new ParseException("Message does not end with ETX", frame.limit() - 1);
+			}
+			frame.limit(frame.limit() - 1);
+		}
+		IsoMessage m = factory.parseMessage(frame, isoHeaderLength);
+		if (m == null) {
+			return 0;
+		}
+		msgs.add(m);
+		return 1;
+	}
+
+}
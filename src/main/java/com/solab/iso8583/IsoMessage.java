@@ -18,15 +18,20 @@ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA
 */
 package com.solab.iso8583;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
-import java.util.BitSet;
+import java.nio.charset.Charset;
 import java.util.Map;
 
+import com.solab.iso8583.parse.FieldParseInfo;
+import com.solab.iso8583.util.TextCodec;
+
 /** Represents an ISO8583 message. This is the core class of the framework.
- * Contains the bitmap which is modified as fields are added/removed.
+ * Contains the bitmap which is modified as fields are added/removed; the values are stored
+ * in an array with just the fields that are present, in the order of the bitmap.
  * This class makes no assumptions as to what types belong in each field,
  * nor what fields should each different message type have; that is left
  * for the developer, since the different ISO8583 implementations can vary
@@ -36,21 +41,35 @@ import java.util.Map;
  */
 public class IsoMessage {
 
-	static final byte[] HEX = new byte[]{ '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F' };
-
 	/** The message type. */
     private int type;
     /** Indicates if the message is binary-coded. */
     private boolean binary;
-    /** This is where the values are stored. */
+    /** The fields that are present; field 1 is the most significant bit of the first one,
+     * as in the bitmap, but it's never set. */
+    private long bits1;
+    /** Fields 65 to 128, from the most significant bit down. */
+    private long bits2;
+    /** This is where the values are stored, in the order of the fields in the bitmap,
+     * followed by empty slots. */
+    @SuppressWarnings("rawtypes")
+	private IsoValue[] fields = NO_FIELDS;
     @SuppressWarnings("rawtypes")
-	private IsoValue[] fields = new IsoValue[129];
+	private static final IsoValue[] NO_FIELDS = new IsoValue[0];
     /** Stores the optional ISO header. */
     private String isoHeader;
     private int etx = -1;
     /** Flag to enforce secondary bitmap even if empty. */
     private boolean forceb2;
-    private String encoding = System.getProperty("file.encoding");
+    private Charset charset = Charset.defaultCharset();
+    /** The values parsed into the message that were released by reset(), to be reused. */
+    private LazyValue[] spare;
+    private int spareCount;
+    /** The view of the buffer or array the message was last parsed from, and its source. */
+    private ByteBuffer frame;
+    private Object frameSource;
+    /** Indicates if the message and its values can no longer be modified. */
+    private boolean frozen;
 
     /** Creates a new empty message with no values set. */
     public IsoMessage() {
@@ -63,22 +82,35 @@ public class IsoMessage {
 
     /** If set, this flag will cause the secondary bitmap to be written even if it's not needed. */
     public void setForceSecondaryBitmap(boolean flag) {
+    	checkMutable();
     	forceb2 = flag;
     }
     public boolean getForceSecondaryBitmap() {
     	return forceb2;
     }
 
+    /** Sets the character encoding by name. See {@link #setCharset(Charset)}. */
     public void setCharacterEncoding(String value) {
-    	encoding = value;
+    	checkMutable();
+    	charset = TextCodec.forName(value);
     }
     public String getCharacterEncoding() {
-    	return encoding;
+    	return charset == null ? null : charset.name();
+    }
+
+    /** Sets the charset that is passed to the fields stored in the message, to write their text. */
+    public void setCharset(Charset value) {
+    	checkMutable();
+    	charset = value;
+    }
+    public Charset getCharset() {
+    	return charset;
     }
 
     /** Sets the string to be sent as ISO header, that is, after the length header but before the message type. 
      * This is useful in case an application needs some custom data in the ISO header of each message (very rare). */
     public void setIsoHeader(String value) {
+    	checkMutable();
     	isoHeader = value;
     }
     /** Returns the ISO header that this message was created with. */
@@ -88,6 +120,7 @@ public class IsoMessage {
 
     /** Sets the ISO message type. Common values are 0x200, 0x210, 0x400, 0x410, 0x800, 0x810. */
     public void setType(int value) {
+    	checkMutable();
     	type = value;
     }
     /** Returns the ISO message type. */
@@ -97,6 +130,7 @@ public class IsoMessage {
 
     /** Indicates whether the message should be binary. Default is false. */
     public void setBinary(boolean flag) {
+    	checkMutable();
     	binary = flag;
     }
     /** Returns true if the message is binary coded; default is false. */
@@ -107,6 +141,7 @@ public class IsoMessage {
     /** Sets the ETX character, which is sent at the end of the message as a terminator.
      * Default is -1, which means no terminator is sent. */
     public void setEtx(int value) {
+    	checkMutable();
     	etx = value;
     }
 
@@ -114,28 +149,125 @@ public class IsoMessage {
      * @param field The field number. 1 is the secondary bitmap and is not returned as such;
      * real fields go from 2 to 128. */
     public <T> T getObjectValue(int field) {
-    	@SuppressWarnings("unchecked")
-    	IsoValue<T> v = fields[field];
+    	IsoValue<T> v = getField(field);
     	return v == null ? null : v.getValue();
     }
 
     /** Returns the IsoValue for the specified field. First real field is 2. */
 	@SuppressWarnings("unchecked")
     public <T> IsoValue<T> getField(int field) {
-    	return fields[field];
+    	return hasField(field) ? fields[index(field)] : null;
+    }
+
+    /** Returns the bit of the field in its half of the bitmap, or 0 for field 0. */
+    private static long bit(int field) {
+    	if (field < 0 || field > 128) {
+    		throw new IndexOutOfBoundsException("Field index must be between 2 and 128");
+    	}
+    	if (field == 0) {
+    		return 0;
+    	}
+    	return Long.MIN_VALUE >>> ((field - 1) & 63);
+    }
+
+    /** Returns the position of the field in the array of values, which is the number of
+     * fields before it in the bitmap. */
+    private int index(int field) {
+    	final long bit = bit(field);
+    	//The bits of the fields before this one are the more significant ones
+    	final long before = ~(bit | (bit - 1));
+    	if (field <= 64) {
+    		return Long.bitCount(bits1 & before);
+    	}
+    	return Long.bitCount(bits1) + Long.bitCount(bits2 & before);
+    }
+
+    /** Returns the number of fields in the message. */
+    public int getFieldCount() {
+    	return Long.bitCount(bits1) + Long.bitCount(bits2);
+    }
+
+    /** Returns the number of the first field after the specified one that is in the message,
+     * or -1 if there are no more fields. This walks only the fields that are set:
+     * <pre>for (int i = m.nextField(1); i > 0; i = m.nextField(i))</pre> */
+    public int nextField(int field) {
+    	if (field < 64) {
+    		//The bits after the field's own bit
+    		final long after = field < 1 ? bits1 : bits1 & (-1L >>> field);
+    		if (after != 0) {
+    			return Long.numberOfLeadingZeros(after) + 1;
+    		}
+    		field = 64;
+    	}
+    	if (field < 128) {
+    		final long after = bits2 & (-1L >>> (field - 64));
+    		if (after != 0) {
+    			return Long.numberOfLeadingZeros(after) + 65;
+    		}
+    	}
+    	return -1;
+    }
+
+    /** Stores the value in the field, or removes the field if the value is null, updating
+     * the bitmap and shifting the values of the following fields if needed. */
+    private void store(int index, IsoValue<?> v) {
+    	checkMutable();
+    	final long bit = bit(index);
+    	final boolean present = ((index <= 64 ? bits1 : bits2) & bit) != 0;
+    	final int pos = index(index);
+    	final int count = getFieldCount();
+    	if (present) {
+    		if (v != null) {
+    			fields[pos] = v;
+    			return;
+    		}
+    		System.arraycopy(fields, pos + 1, fields, pos, count - pos - 1);
+    		fields[count - 1] = null;
+    	} else if (v == null) {
+    		return;
+    	} else {
+    		if (count == fields.length) {
+    			reserve(count < 8 ? 8 : count + (count >> 1));
+    		}
+    		System.arraycopy(fields, pos, fields, pos + 1, count - pos);
+    		fields[pos] = v;
+    	}
+    	if (index <= 64) {
+    		bits1 ^= bit;
+    	} else {
+    		bits2 ^= bit;
+    	}
+    }
+
+    /** Makes room for the specified number of fields, so that they can be stored without
+     * growing the array of values again. */
+    void reserve(int capacity) {
+    	if (capacity > fields.length) {
+        	@SuppressWarnings("rawtypes")
+    		IsoValue[] v = new IsoValue[Math.min(capacity, 127)];
+    		System.arraycopy(fields, 0, v, 0, getFieldCount());
+    		fields = v;
+    	}
     }
 
     /** Stored the field in the specified index. The first field is the secondary bitmap and has index 1,
-     * so the first valid value for index must be 2.
+     * so the first valid value for index must be 2. The value gets the message's charset; a value
+     * shared by the messages created from a template, or by frozen messages, is copied first
+     * if its charset is different.
      * @return The receiver (useful for setting several fields in sequence). */
     public IsoMessage setField(int index, IsoValue<?> field) {
+    	checkMutable();
     	if (index < 2 || index > 128) {
     		throw new IndexOutOfBoundsException("Field index must be between 2 and 128");
     	}
     	if (field != null) {
-        	field.setCharacterEncoding(encoding);
+    		if (field instanceof EncodedValue && !((EncodedValue<?>)field).hasCharset(charset)) {
+    			//Shared values can't change their charset, so a copy is stored instead
+    			field = field.clone();
+    		}
+        	field.setCharset(charset);
     	}
-    	fields[index] = field;
+    	store(index, field);
     	return this;
     }
 
@@ -171,7 +303,7 @@ public class IsoMessage {
     		throw new IndexOutOfBoundsException("Field index must be between 2 and 128");
     	}
     	if (value == null) {
-    		fields[index] = null;
+    		store(index, null);
     	} else {
     		IsoValue<T> v = null;
     		if (t.needsLength()) {
@@ -179,60 +311,116 @@ public class IsoMessage {
     		} else {
     			v = new IsoValue<T>(t, value, encoder);
     		}
-    		v.setCharacterEncoding(encoding);
-    		fields[index] = v;
+    		v.setCharset(charset);
+    		store(index, v);
     	}
     	return this;
     }
 
+    /** Stores an {@link AmountValue} with the specified number of minor units in the field.
+     * @param index The field number (2 to 128)
+     * @param minorUnits The amount in minor units, for example 1050 for 10.50.
+     * @return The receiver (useful for setting several values in sequence). */
+    public IsoMessage setAmount(int index, long minorUnits) {
+    	return setField(index, new AmountValue(minorUnits));
+    }
+
+    /** Returns the value of an AMOUNT field as a number of minor units. If the field was
+     * parsed with a factory that reads amounts as minor units, no objects are created.
+     * @param field The field number.
+     * @throws IllegalArgumentException if the field is not an AMOUNT or is not in the message. */
+    public long getAmount(int field) {
+    	IsoValue<?> v = getField(field);
+    	if (v instanceof LazyValue) {
+    		v = ((LazyValue)v).decode();
+    	}
+    	if (v instanceof AmountValue) {
+    		return ((AmountValue)v).getMinorUnits();
+    	} else if (v == null || v.getType() != IsoType.AMOUNT) {
+    		throw new IllegalArgumentException(String.format("Field %d is not an AMOUNT", field));
+    	} else if (v.getValue() instanceof BigDecimal) {
+    		return ((BigDecimal)v.getValue()).movePointRight(2).longValue();
+    	} else if (v.getValue() instanceof Number) {
+    		//Whole numbers are formatted as amounts without decimals
+    		return ((Number)v.getValue()).longValue() * 100;
+    	}
+    	return new BigDecimal(v.toString()).longValue();
+    }
+
+    /** Stores a number in the specified field, without creating a String or boxing it for
+     * NUMERIC fields of up to 18 digits, which are stored as {@link NumericValue}s. AMOUNT
+     * values are taken as minor units and stored as {@link AmountValue}s. Any other type is
+     * stored as with {@link #setValue(int, Object, IsoType, int)}.
+     * @param index The field number (2 to 128)
+     * @param value The value to be stored.
+     * @param t The ISO type.
+     * @param length The length of the field, used for ALPHA and NUMERIC values only.
+     * @return The receiver (useful for setting several values in sequence). */
+    public IsoMessage setLong(int index, long value, IsoType t, int length) {
+    	if (t == IsoType.NUMERIC && length <= NumericValue.MAX_DIGITS) {
+    		return setField(index, new NumericValue(value, length));
+    	} else if (t == IsoType.AMOUNT) {
+    		return setAmount(index, value);
+    	}
+    	return setValue(index, value, t, length);
+    }
+
+    /** Returns the value of a numeric field as a long. No objects are created if the field
+     * is a {@link NumericValue} or an {@link AmountValue}, or if it's a NUMERIC field that was
+     * parsed as a String. AMOUNT fields are returned as minor units, as in {@link #getAmount(int)}.
+     * @param field The field number.
+     * @throws IllegalArgumentException if the field is not in the message or its value
+     * is not a number. */
+    public long getLong(int field) {
+    	IsoValue<?> v = getField(field);
+    	if (v instanceof LazyValue) {
+    		v = ((LazyValue)v).decode();
+    	}
+    	if (v instanceof NumericValue) {
+    		return ((NumericValue)v).getLong();
+    	} else if (v == null) {
+    		throw new IllegalArgumentException(String.format("Field %d is not in the message", field));
+    	} else if (v.getType() == IsoType.AMOUNT) {
+    		return getAmount(field);
+    	}
+    	final Object val = v.getValue();
+    	if (val instanceof Number) {
+    		return ((Number)val).longValue();
+    	} else if (val instanceof String) {
+    		final String s = (String)val;
+    		long l = 0;
+    		for (int i = 0; i < s.length(); i++) {
+    			final int d = s.charAt(i) - 48;
+    			if (d < 0 || d > 9 || i >= NumericValue.MAX_DIGITS) {
+    				return Long.parseLong(s.trim());
+    			}
+    			l = l * 10 + d;
+    		}
+    		if (s.length() > 0) {
+    			return l;
+    		}
+    	}
+    	throw new IllegalArgumentException(String.format("Field %d is not a number", field));
+    }
+
     /** Returns true is the message has a value in the specified field.
      * @param idx The field number. */
     public boolean hasField(int idx) {
-    	return fields[idx] != null;
+    	return ((idx <= 64 ? bits1 : bits2) & bit(idx)) != 0;
     }
 
     /** Writes a message to a stream, after writing the specified number of bytes indicating
-     * the message's length. The message will first be written to an internal memory stream
-     * which will then be dumped into the specified stream. This method flushes the stream
-     * after the write. There are at most three write operations to the stream: one for the
-     * length header, one for the message, and the last one with for the ETX.
+     * the message's length. The message is encoded into an array of the exact size, including
+     * the length header and the ETX, which is written to the stream in a single write
+     * operation. This method flushes the stream after the write; to write many messages
+     * without flushing after each one, use an {@link IsoMessageWriter}.
      * @param outs The stream to write the message to.
      * @param lengthBytes The size of the message length header. Valid ranges are 0 to 4.
      * @throws IllegalArgumentException if the specified length header is more than 4 bytes.
      * @throws IOException if there is a problem writing to the stream. */
     public void write(OutputStream outs, int lengthBytes) throws IOException {
-    	if (lengthBytes > 4) {
-    		throw new IllegalArgumentException("The length header can have at most 4 bytes");
-    	}
-    	byte[] data = writeData();
-
-    	if (lengthBytes > 0) {
-    		int l = data.length;
-    		if (etx > -1) {
-    			l++;
-    		}
-    		byte[] buf = new byte[lengthBytes];
-    		int pos = 0;
-    		if (lengthBytes == 4) {
-    			buf[0] = (byte)((l & 0xff000000) >> 24);
-    			pos++;
-    		}
-    		if (lengthBytes > 2) {
-    			buf[pos] = (byte)((l & 0xff0000) >> 16);
-    			pos++;
-    		}
-    		if (lengthBytes > 1) {
-    			buf[pos] = (byte)((l & 0xff00) >> 8);
-    			pos++;
-    		}
-    		buf[pos] = (byte)(l & 0xff);
-    		outs.write(buf);
-    	}
-    	outs.write(data);
-    	//ETX
-    	if (etx > -1) {
-    		outs.write(etx);
-    	}
+    	ByteBuffer buf = writeToBuffer(lengthBytes);
+    	outs.write(buf.array(), 0, buf.limit());
     	outs.flush();
     }
 
@@ -242,123 +430,142 @@ public class IsoMessage {
     	if (lengthBytes > 4) {
     		throw new IllegalArgumentException("The length header can have at most 4 bytes");
     	}
+    	final int len = encodedLength();
+    	ByteBuffer buf = ByteBuffer.allocate(lengthBytes + len);
+    	writeTo(buf, lengthBytes, len);
+    	buf.flip();
+    	return buf;
+    }
 
-    	byte[] data = writeData();
-    	ByteBuffer buf = ByteBuffer.allocate(lengthBytes + data.length + (etx > -1 ? 1 : 0));
-    	if (lengthBytes > 0) {
-    		int l = data.length;
-    		if (etx > -1) {
-    			l++;
-    		}
-    		byte[] bbuf = new byte[lengthBytes];
-    		int pos = 0;
-    		if (lengthBytes == 4) {
-    			bbuf[0] = (byte)((l & 0xff000000) >> 24);
-    			pos++;
-    		}
-    		if (lengthBytes > 2) {
-    			bbuf[pos] = (byte)((l & 0xff0000) >> 16);
-    			pos++;
-    		}
-    		if (lengthBytes > 1) {
-    			bbuf[pos] = (byte)((l & 0xff00) >> 8);
-    			pos++;
-    		}
-    		bbuf[pos] = (byte)(l & 0xff);
-    		buf.put(bbuf);
+    /** Writes the message to the buffer, at its current position, which is advanced past the
+     * message: the length header, ISO header, message type, bitmap, fields and ETX. The buffer
+     * can be a heap or direct buffer; the message is encoded straight into it, without any
+     * intermediate arrays. Nothing is written if the buffer doesn't have enough space.
+     * @param buf The buffer to write the message to.
+     * @param lengthBytes The size of the message length header. Valid ranges are 0 to 4.
+     * @throws IllegalArgumentException if the specified length header is more than 4 bytes.
+     * @throws java.nio.BufferOverflowException if the remaining space in the buffer is
+     * less than the length header plus {@link #encodedLength()}. */
+    public void writeTo(ByteBuffer buf, int lengthBytes) {
+    	if (lengthBytes > 4) {
+    		throw new IllegalArgumentException("The length header can have at most 4 bytes");
     	}
-    	buf.put(data);
-    	//ETX
-    	if (etx > -1) {
-    		buf.put((byte)etx);
+    	final int len = encodedLength();
+    	if (buf.remaining() < lengthBytes + len) {
+    		throw new BufferOverflowException();
     	}
-    	buf.flip();
-    	return buf;
+    	writeTo(buf, lengthBytes, len);
+    }
+
+    /** Returns the number of bytes that the message occupies after the length header:
+     * the ISO header, message type, bitmap, fields and ETX. This is the value that is written
+     * in the length header. It is calculated from the values, without encoding the message. */
+    public int encodedLength() {
+    	int len = isoHeader == null ? 0 : TextCodec.encodedLength(isoHeader, charset);
+    	len += binary ? 2 : 4;
+    	final int bitmap = hasSecondaryBitmap() ? 16 : 8;
+    	len += binary ? bitmap : bitmap * 2;
+    	final int count = getFieldCount();
+    	for (int i = 0; i < count; i++) {
+    		len += fields[i].encodedLength(binary);
+    	}
+    	return etx > -1 ? len + 1 : len;
     }
 
     /** This calls writeInternal(), allowing applications to get the byte buffer containing the
      * message data, without the length header. */
     public byte[] writeData() {
-    	ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    	final int len = encodedLength() - (etx > -1 ? 1 : 0);
+    	byte[] data = new byte[len];
+    	writeInternal(ByteBuffer.wrap(data));
+    	return data;
+    }
+
+    /** Writes the length header with the specified length, the message whose length has
+     * already been calculated, and the ETX. */
+    void writeTo(ByteBuffer buf, int lengthBytes, int len) {
+    	writeLengthHeader(buf, lengthBytes, len);
+    	writeInternal(buf);
+    	//ETX
+    	if (etx > -1) {
+    		buf.put((byte)etx);
+    	}
+    }
+
+    /** Puts the length in the buffer, as a big-endian number of the specified size. */
+    private static void writeLengthHeader(ByteBuffer buf, int lengthBytes, int l) {
+    	if (lengthBytes == 4) {
+    		buf.put((byte)((l & 0xff000000) >> 24));
+    	}
+    	if (lengthBytes > 2) {
+    		buf.put((byte)((l & 0xff0000) >> 16));
+    	}
+    	if (lengthBytes > 1) {
+    		buf.put((byte)((l & 0xff00) >> 8));
+    	}
+    	if (lengthBytes > 0) {
+    		buf.put((byte)(l & 0xff));
+    	}
+    }
+
+    /** Returns true if the bitmap must include the secondary bitmap. */
+    private boolean hasSecondaryBitmap() {
+    	return forceb2 || bits2 != 0;
+    }
+
+    /** Writes the ISO header, message type, bitmap and fields to the buffer. */
+    private void writeInternal(ByteBuffer buf) {
+    	//The hex digits in the charset; these are the ASCII digits unless it's EBCDIC
+    	final byte[] digits = TextCodec.digitBytes(charset);
     	if (isoHeader != null) {
-    		try {
-    			bout.write(isoHeader.getBytes());
-    		} catch (IOException ex) {
-    			//should never happen, writing to a ByteArrayOutputStream
-    		}
+    		buf.put(TextCodec.encode(isoHeader, charset));
     	}
     	//Message Type
     	if (binary) {
-        	bout.write((type & 0xff00) >> 8);
-        	bout.write(type & 0xff);
+    		buf.put((byte)((type & 0xff00) >> 8));
+    		buf.put((byte)(type & 0xff));
     	} else {
-    		try {
-    			bout.write(String.format("%04x", type).getBytes());
-    		} catch (IOException ex) {
-    			//should never happen, writing to a ByteArrayOutputStream
-    		}
+    		buf.put(digits[(type >> 12) & 0x0f]);
+    		buf.put(digits[(type >> 8) & 0x0f]);
+    		buf.put(digits[(type >> 4) & 0x0f]);
+    		buf.put(digits[type & 0x0f]);
     	}
 
-    	//Bitmap
-    	BitSet bs = new BitSet(forceb2 ? 128 : 64);
-    	for (int i = 2 ; i < 129; i++) {
-    		if (fields[i] != null) {
-        		bs.set(i - 1);
-    		}
-    	}
-    	if (forceb2) {
-    		bs.set(0);
-    	} else if (bs.length() > 64) {
-        	//Extend to 128 if needed
-    		BitSet b2 = new BitSet(128);
-    		b2.or(bs);
-    		bs = b2;
-    		bs.set(0);
-    	}
+    	//Bitmap; field 1 is the most significant bit of the first half
+    	final boolean secondary = hasSecondaryBitmap();
+    	final long bits1 = secondary ? this.bits1 | Long.MIN_VALUE : this.bits1;
     	//Write bitmap to stream
     	if (binary) {
-    		int pos = 128;
-    		int b = 0;
-    		for (int i = 0; i < bs.size(); i++) {
-    			if (bs.get(i)) {
-    				b |= pos;
-    			}
-    			pos >>= 1;
-    			if (pos == 0) {
-    				bout.write(b);
-    				pos = 128;
-    				b = 0;
+    		//byte by byte, since the buffer could be little-endian
+    		for (int i = 56; i >= 0; i -= 8) {
+    			buf.put((byte)(bits1 >>> i));
+    		}
+    		if (secondary) {
+    			for (int i = 56; i >= 0; i -= 8) {
+    				buf.put((byte)(bits2 >>> i));
     			}
     		}
     	} else {
-            int pos = 0;
-            int lim = bs.size() / 4;
-            for (int i = 0; i < lim; i++) {
-                int nibble = 0;
-                if (bs.get(pos++))
-                    nibble |= 8;
-                if (bs.get(pos++))
-                    nibble |= 4;
-                if (bs.get(pos++))
-                    nibble |= 2;
-                if (bs.get(pos++))
-                    nibble |= 1;
-                bout.write(HEX[nibble]);
-            }
+    		for (int i = 60; i >= 0; i -= 4) {
+    			buf.put(digits[(int)(bits1 >>> i) & 0x0f]);
+    		}
+    		if (secondary) {
+    			for (int i = 60; i >= 0; i -= 4) {
+    				buf.put(digits[(int)(bits2 >>> i) & 0x0f]);
+    			}
+    		}
     	}
 
     	//Fields
-    	for (int i = 2; i < 129; i++) {
-    		IsoValue<?> v = fields[i];
-    		if (v != null) {
-        		try {
-        			v.write(bout, binary);
-        		} catch (IOException ex) {
-        			//should never happen, writing to a ByteArrayOutputStream
-        		}
+    	final BufferOutputStream outs = new BufferOutputStream(buf);
+    	final int count = getFieldCount();
+    	for (int i = 0; i < count; i++) {
+    		try {
+    			fields[i].write(outs, binary);
+    		} catch (IOException ex) {
+    			//should never happen, writing to a buffer
     		}
     	}
-    	return bout.toByteArray();
     }
 
     //These are for Groovy compat
@@ -381,6 +588,178 @@ public class IsoMessage {
 		return getField(i);
 	}
 
+    /** Removes all the fields, and clears the type and the ISO header, so that the message can
+     * be filled again. The charset, binary flag, ETX and forced secondary bitmap are kept.
+     * The values stored by {@link MessageFactory#parseInto(IsoMessage, ByteBuffer, int)} are
+     * kept by the message to be reused the next time it's parsed into, so they must not be
+     * used after this; their clones can be kept instead. */
+    public void reset() {
+    	checkMutable();
+    	final int count = getFieldCount();
+    	for (int i = 0; i < count; i++) {
+    		final IsoValue<?> v = fields[i];
+    		if (v instanceof LazyValue && ((LazyValue)v).getOwner() == this && !((LazyValue)v).released) {
+    			if (spare == null) {
+    				spare = new LazyValue[128];
+    			}
+    			((LazyValue)v).released = true;
+    			spare[spareCount++] = (LazyValue)v;
+    		}
+    		fields[i] = null;
+    	}
+    	bits1 = 0;
+    	bits2 = 0;
+    	type = 0;
+    	isoHeader = null;
+    }
+
+    /** Returns a value for the field in the specified region of the frame, reusing one of
+     * the values released by {@link #reset()} if possible. */
+    LazyValue reusableValue(ByteBuffer frame, int start, int end, boolean binary,
+    		FieldParseInfo parser, CustomField<?> custom) {
+    	if (spareCount == 0) {
+    		return new LazyValue(frame, start, end, binary, parser, custom, this);
+    	}
+    	final LazyValue v = spare[--spareCount];
+    	spare[spareCount] = null;
+    	v.released = false;
+    	v.reset(frame, start, end, binary, parser, custom);
+    	return v;
+    }
+
+    /** Returns a buffer that wraps the array, reusing the one of the last parse if it's the same array. */
+    ByteBuffer frame(byte[] buf) {
+    	if (frameSource != buf) {
+    		frame = ByteBuffer.wrap(buf);
+    		frameSource = buf;
+    	}
+    	return frame;
+    }
+
+    /** Returns a view of the buffer with the same position and limit, reusing the one of the last
+     * parse if it's the same buffer. The values parsed into the message read from the view. */
+    ByteBuffer frame(ByteBuffer buf) {
+    	if (frameSource != buf) {
+    		frame = buf.duplicate();
+    		frameSource = buf;
+    	} else {
+    		frame.limit(buf.limit());
+    		frame.position(buf.position());
+    	}
+    	return frame;
+    }
+
+    /** Stores the same values as the other message, except field 128, for a response that
+     * echoes its fields. The values are shared, except the ones that the other message reuses
+     * when it's parsed into again, which are cloned. */
+    void echoFields(IsoMessage src) {
+    	final long b2 = src.bits2 & ~1L;
+    	final int count = Long.bitCount(src.bits1) + Long.bitCount(b2);
+    	reserve(count);
+    	System.arraycopy(src.fields, 0, fields, 0, count);
+    	bits1 = src.bits1;
+    	bits2 = b2;
+    	for (int i = 0; i < count; i++) {
+    		if (fields[i] instanceof LazyValue && ((LazyValue)fields[i]).getOwner() != null) {
+    			fields[i] = fields[i].clone();
+    		}
+    	}
+    }
+
+    /** Makes the message read-only: its values are replaced by immutable ones, which are
+     * decoded and encoded once, and any method that would modify the message throws an
+     * UnsupportedOperationException afterwards. A frozen message can be read and written by
+     * several threads at the same time, once it has been handed to them through a concurrent
+     * queue or any other safe publication, without copying it. The objects returned by
+     * {@link IsoValue#getValue()} are shared, so mutable ones such as dates and byte arrays
+     * must not be modified.
+     * @return The receiver. */
+    public IsoMessage freeze() {
+    	if (!frozen) {
+    		final int count = getFieldCount();
+        	@SuppressWarnings("rawtypes")
+    		IsoValue[] v = count == 0 ? NO_FIELDS : new IsoValue[count];
+    		for (int i = 0; i < count; i++) {
+    			v[i] = immutable(fields[i]);
+    		}
+    		fields = v;
+    		spare = null;
+    		spareCount = 0;
+    		frame = null;
+    		frameSource = null;
+    		frozen = true;
+    	}
+    	return this;
+    }
+
+    /** Returns true if the message has been frozen and can no longer be modified. */
+    public boolean isFrozen() {
+    	return frozen;
+    }
+
+    /** Returns a frozen copy of the message (see {@link #freeze()}), or the receiver if it's
+     * frozen already. The receiver and its values are not modified. */
+    public IsoMessage toImmutable() {
+    	return frozen ? this : copy().freeze();
+    }
+
+    /** Returns a copy of the message that can be modified. The values of a frozen message are
+     * shared by the copy, since they can't be modified; setting a field in the copy replaces
+     * the value instead of changing it, so only the references are copied. The values of a
+     * message that is not frozen are cloned. */
+    public IsoMessage toMutable() {
+    	IsoMessage m = copy();
+    	if (!frozen) {
+    		final int count = m.getFieldCount();
+    		for (int i = 0; i < count; i++) {
+    			m.fields[i] = m.fields[i].clone();
+    		}
+    	}
+    	return m;
+    }
+
+    /** Returns a mutable copy with the same settings and values. */
+    private IsoMessage copy() {
+    	IsoMessage m = new IsoMessage(isoHeader);
+    	m.type = type;
+    	m.binary = binary;
+    	m.etx = etx;
+    	m.forceb2 = forceb2;
+    	m.charset = charset;
+    	m.bits1 = bits1;
+    	m.bits2 = bits2;
+    	final int count = getFieldCount();
+    	if (count > 0) {
+        	@SuppressWarnings("rawtypes")
+    		IsoValue[] v = new IsoValue[count];
+    		System.arraycopy(fields, 0, v, 0, count);
+    		m.fields = v;
+    	}
+    	return m;
+    }
+
+    /** Returns an immutable copy of the value, which is written from its encoded bytes.
+     * Lazy values are decoded, so that the copy doesn't depend on the buffer they were parsed from. */
+    private static IsoValue<?> immutable(IsoValue<?> v) {
+    	if (v instanceof EncodedValue) {
+    		return v;
+    	}
+    	final IsoValue<?> src = v instanceof LazyValue ? ((LazyValue)v).decode() : v;
+    	return encoded(src, v.getCharset());
+    }
+
+    /** Returns an encoded copy of the value, with the specified charset. */
+    private static <T> EncodedValue<T> encoded(IsoValue<T> v, Charset charset) {
+    	return new EncodedValue<T>(v.clone(), charset);
+    }
+
+    /** Throws an UnsupportedOperationException if the message is frozen. */
+    private void checkMutable() {
+    	if (frozen) {
+    		throw new UnsupportedOperationException("The message is frozen; use toMutable() to get a copy that can be modified");
+    	}
+    }
+
     /** Copies the specified fields from the other message into the recipient. If a specified field is
      * not present in the source message it is simply ignored. */
     public void copyFieldsFrom(IsoMessage src, int...idx) {
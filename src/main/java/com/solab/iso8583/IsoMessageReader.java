@@ -0,0 +1,170 @@
+/*
+j8583 A Java implementation of the ISO8583 protocol
+Copyright (C) 2007 Enrique Zamudio Lopez
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA
+*/
+package com.solab.iso8583;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.text.ParseException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+
+/** Reads messages with a length header from a stream or a blocking channel, such as a socket
+ * or a file with messages written by {@link IsoMessage#write(java.io.OutputStream, int)}.
+ * The data is read in large chunks into a buffer that is reused for the whole stream, and the
+ * messages are parsed as they are completed, using an {@link IsoFrameDecoder}.
+ * <P>
+ * Messages can be read one at a time with {@link #read()}, or the reader can be used as an
+ * Iterator; since Iterator methods cannot throw checked exceptions, any IOException or
+ * ParseException is wrapped in an IllegalStateException in that case.
+ *
+ * @author Enrique Zamudio
+ */
+public class IsoMessageReader implements Iterator<IsoMessage>, Closeable {
+
+	/** The default size of the read buffer. */
+	public static final int DEFAULT_BUFFER_SIZE = 65536;
+
+	private final InputStream ins;
+	private final ReadableByteChannel channel;
+	private final IsoFrameDecoder decoder;
+	/** Holds the data that has been read but not yet decoded, between its position and limit. */
+	private final ByteBuffer buf;
+	private final Queue<IsoMessage> decoded = new ArrayDeque<IsoMessage>();
+	private boolean eof;
+	/** The message read by hasNext(), to be returned by next(). */
+	private IsoMessage next;
+
+	/** Creates a reader for the messages in the stream.
+	 * @param factory The factory used to parse the messages.
+	 * @param ins The stream to read from.
+	 * @param lengthBytes The size of the length header, from 1 to 4 bytes.
+	 * @param isoHeaderLength The length of the ISO header in the messages.
+	 * @param bufferSize The size of the read buffer. */
+	public IsoMessageReader(MessageFactory factory, InputStream ins, int lengthBytes, int isoHeaderLength, int bufferSize) {
+		this(factory, ins, null, lengthBytes, isoHeaderLength, bufferSize);
+	}
+
+	/** Creates a reader for the messages in the channel, which must be in blocking mode.
+	 * @param factory The factory used to parse the messages.
+	 * @param channel The channel to read from.
+	 * @param lengthBytes The size of the length header, from 1 to 4 bytes.
+	 * @param isoHeaderLength The length of the ISO header in the messages.
+	 * @param bufferSize The size of the read buffer. */
+	public IsoMessageReader(MessageFactory factory, ReadableByteChannel channel, int lengthBytes, int isoHeaderLength, int bufferSize) {
+		this(factory, null, channel, lengthBytes, isoHeaderLength, bufferSize);
+	}
+
+	private IsoMessageReader(MessageFactory factory, InputStream ins, ReadableByteChannel channel,
+			int lengthBytes, int isoHeaderLength, int bufferSize) {
+		if (bufferSize < 1) {
+			throw new IllegalArgumentException("Buffer size must be greater than zero");
+		}
+		this.ins = ins;
+		this.channel = channel;
+		decoder = new IsoFrameDecoder(factory, lengthBytes, isoHeaderLength);
+		buf = ByteBuffer.allocate(bufferSize);
+		buf.flip();
+	}
+
+	/** Reads the next message.
+	 * @return The next message, or null if the end of the stream has been reached.
+	 * @throws EOFException if the stream ends in the middle of a message.
+	 * @throws ParseException if a message cannot be parsed. The reader can still be used
+	 * to read the messages after it. */
+	public IsoMessage read() throws IOException, ParseException {
+		if (next != null) {
+			IsoMessage m = next;
+			next = null;
+			return m;
+		}
+		while (decoded.isEmpty()) {
+			if (!buf.hasRemaining()) {
+				if (eof || fill() < 0) {
+					eof = true;
+					if (decoder.hasPartialMessage()) {
+						decoder.reset();
+						throw new EOFException("The stream ended in the middle of a message");
+					}
+					return null;
+				}
+			}
+			decoder.decode(buf, decoded);
+		}
+		return decoded.poll();
+	}
+
+	/** Reads the next chunk of data into the buffer, leaving it ready to be decoded. */
+	private int fill() throws IOException {
+		buf.clear();
+		int n;
+		if (ins == null) {
+			n = channel.read(buf);
+		} else {
+			n = ins.read(buf.array(), 0, buf.capacity());
+			if (n > 0) {
+				buf.position(n);
+			}
+		}
+		buf.flip();
+		return n;
+	}
+
+	public boolean hasNext() {
+		if (next == null) {
+			try {
+				next = read();
+			} catch (IOException ex) {
+				throw new IllegalStateException("Reading message", ex);
+			} catch (ParseException ex) {
+				throw new IllegalStateException("Parsing message", ex);
+			}
+		}
+		return next != null;
+	}
+
+	public IsoMessage next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		IsoMessage m = next;
+		next = null;
+		return m;
+	}
+
+	/** Not supported. */
+	public void remove() {
+		throw new UnsupportedOperationException("Messages cannot be removed from a stream");
+	}
+
+	/** Closes the underlying stream or channel. */
+	public void close() throws IOException {
+		if (ins == null) {
+			channel.close();
+		} else {
+			ins.close();
+		}
+	}
+
+}
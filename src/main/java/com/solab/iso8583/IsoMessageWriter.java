@@ -0,0 +1,184 @@
+/*
+j8583 A Java implementation of the ISO8583 protocol
+Copyright (C) 2007 Enrique Zamudio Lopez
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA
+*/
+package com.solab.iso8583;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/** Writes batches of messages with a length header to a blocking channel or a stream. The
+ * messages of a batch are encoded back to back into buffers that are reused from one batch
+ * to the next, and the whole batch is sent with a single gathering write (or a few, if the
+ * channel doesn't take everything at once), instead of one write and one flush per message
+ * like {@link IsoMessage#write(OutputStream, int)} does. The writer never flushes the stream
+ * or forces the channel; that is left to the caller.
+ * <P>
+ * The messages can be read back with an {@link IsoMessageReader}. A writer keeps its buffers
+ * between calls, so it must not be used by several threads at the same time.
+ *
+ * @author Enrique Zamudio
+ */
+public class IsoMessageWriter {
+
+	/** The default size of each buffer. */
+	public static final int DEFAULT_BUFFER_SIZE = 65536;
+
+	private final int lengthBytes;
+	private final int bufferSize;
+	private final boolean direct;
+	/** The buffers kept between batches. */
+	private final List<ByteBuffer> pool = new ArrayList<ByteBuffer>();
+	/** The buffers of the current batch, including those of messages larger than a pooled buffer. */
+	private ByteBuffer[] batch = new ByteBuffer[4];
+	private int used;
+	/** The number of pooled buffers in the current batch. */
+	private int pooled;
+
+	/** Creates a writer with heap buffers of the default size.
+	 * @param lengthBytes The size of the length header, from 0 to 4 bytes. */
+	public IsoMessageWriter(int lengthBytes) {
+		this(lengthBytes, DEFAULT_BUFFER_SIZE, false);
+	}
+
+	/** Creates a writer with buffers of the specified size.
+	 * @param lengthBytes The size of the length header, from 0 to 4 bytes.
+	 * @param bufferSize The size of each buffer. Messages that are larger than this get
+	 * a buffer of their own, which is not reused.
+	 * @param direct Whether to use direct buffers, which saves a copy when writing to a
+	 * channel. Streams are written more efficiently with heap buffers. */
+	public IsoMessageWriter(int lengthBytes, int bufferSize, boolean direct) {
+		if (lengthBytes < 0 || lengthBytes > 4) {
+			throw new IllegalArgumentException("The length header can have at most 4 bytes");
+		} else if (bufferSize < 1) {
+			throw new IllegalArgumentException("Buffer size must be greater than zero");
+		}
+		this.lengthBytes = lengthBytes;
+		this.bufferSize = bufferSize;
+		this.direct = direct;
+	}
+
+	/** Writes the messages to the channel, which must be in blocking mode, using gathering
+	 * writes. The channel is not forced.
+	 * @return The number of bytes written. */
+	public long writeAll(Collection<? extends IsoMessage> msgs, GatheringByteChannel channel) throws IOException {
+		encode(msgs);
+		if (used == 0) {
+			return 0;
+		}
+		try {
+			long total = 0;
+			final ByteBuffer last = batch[used - 1];
+			int first = 0;
+			while (last.hasRemaining()) {
+				while (!batch[first].hasRemaining()) {
+					first++;
+				}
+				total += channel.write(batch, first, used - first);
+			}
+			return total;
+		} finally {
+			release();
+		}
+	}
+
+	/** Writes the messages to the stream, one write per buffer. The stream is not flushed.
+	 * @return The number of bytes written. */
+	public long writeAll(Collection<? extends IsoMessage> msgs, OutputStream outs) throws IOException {
+		encode(msgs);
+		try {
+			long total = 0;
+			byte[] copy = null;
+			for (int i = 0; i < used; i++) {
+				final ByteBuffer buf = batch[i];
+				final int len = buf.remaining();
+				if (buf.hasArray()) {
+					outs.write(buf.array(), buf.arrayOffset() + buf.position(), len);
+				} else {
+					if (copy == null || copy.length < len) {
+						copy = new byte[len];
+					}
+					buf.get(copy, 0, len);
+					outs.write(copy, 0, len);
+				}
+				total += len;
+			}
+			return total;
+		} finally {
+			release();
+		}
+	}
+
+	/** Encodes the messages into the buffers of the batch, leaving them flipped. */
+	private void encode(Collection<? extends IsoMessage> msgs) {
+		used = 0;
+		pooled = 0;
+		ByteBuffer buf = null;
+		for (IsoMessage m : msgs) {
+			final int len = m.encodedLength();
+			final int size = lengthBytes + len;
+			if (buf == null || size > buf.remaining()) {
+				buf = next(size);
+			}
+			m.writeTo(buf, lengthBytes, len);
+		}
+		for (int i = 0; i < used; i++) {
+			batch[i].flip();
+		}
+	}
+
+	/** Adds a buffer to the batch, with at least the specified size: the next pooled buffer
+	 * if it's big enough, or a new one that is pooled only if it has the regular size. */
+	private ByteBuffer next(int size) {
+		ByteBuffer buf;
+		if (size > bufferSize) {
+			buf = allocate(size);
+		} else if (pooled < pool.size()) {
+			buf = pool.get(pooled++);
+			buf.clear();
+		} else {
+			buf = allocate(bufferSize);
+			pool.add(buf);
+			pooled++;
+		}
+		if (used == batch.length) {
+			ByteBuffer[] b = new ByteBuffer[used * 2];
+			System.arraycopy(batch, 0, b, 0, used);
+			batch = b;
+		}
+		batch[used++] = buf;
+		return buf;
+	}
+
+	private ByteBuffer allocate(int size) {
+		return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+	}
+
+	/** Clears the references to the buffers of the last batch. */
+	private void release() {
+		for (int i = 0; i < used; i++) {
+			batch[i] = null;
+		}
+		used = 0;
+	}
+
+}
@@ -20,6 +20,7 @@ package com.solab.iso8583;
 
 import java.math.BigDecimal;
 import java.util.Date;
+import java.util.TimeZone;
 
 /** Defines the possible values types that can be used in the fields.
  * Some types required the length of the value to be specified (NUMERIC
@@ -77,16 +78,84 @@ public enum IsoType {
 	/** Formats a Date if the receiver is DATE10, DATE4, DATE_EXP or TIME; throws an exception
 	 * otherwise. */
 	public String format(Date value) {
+		return digits(dateDigits(value.getTime()), length);
+	}
+
+	/** Returns the digits of the date formatted as the receiver (DATE10, DATE4, DATE_EXP
+	 * or TIME) in the default time zone, as a number; for example 1231235959 is 23:59:59 on
+	 * December 31st as a DATE10. The fields are calculated from the time, without a Calendar,
+	 * and they're cached for the last second that was formatted, since the dates of the messages
+	 * that are sent at the same time are usually in the same second. The time zone is only
+	 * looked up when the second changes. */
+	long dateDigits(long millis) {
+		if (this != DATE10 && this != DATE4 && this != DATE_EXP && this != TIME) {
+			throw new IllegalArgumentException("Cannot format date as " + this);
+		}
+		final long second = millis >= 0 ? millis / 1000 : ((millis + 1) / 1000) - 1;
+		DateFields f = lastDate;
+		if (f == null || f.second != second) {
+			//TimeZone.getDefault() clones the zone, so it's only done once per second
+			f = new DateFields(second, TimeZone.getDefault().getOffset(second * 1000) / 1000);
+			lastDate = f;
+		}
 		if (this == DATE10) {
-			return String.format("%Tm%<Td%<TH%<TM%<TS", value);
+			return f.date10;
 		} else if (this == DATE4) {
-			return String.format("%Tm%<Td", value);
-		} else if (this == DATE_EXP) {
-			return String.format("%Ty%<Tm", value);
+			return f.date10 / 1000000;
 		} else if (this == TIME) {
-			return String.format("%TH%<TM%<TS", value);
+			return f.date10 % 1000000;
+		}
+		return f.expiration;
+	}
+
+	/** The last second that was formatted as a date. */
+	private static volatile DateFields lastDate;
+
+	/** The date fields of a second in the local time. */
+	private static final class DateFields {
+		/** The seconds since the epoch. */
+		final long second;
+		/** The date and time as MMddHHmmss. */
+		final long date10;
+		/** The year and month as yyMM. */
+		final long expiration;
+
+		/** Calculates the fields of the second, with the time zone's offset in seconds. */
+		DateFields(long second, int offset) {
+			this.second = second;
+			final long local = second + offset;
+			long days = local / 86400;
+			long secs = local % 86400;
+			if (secs < 0) {
+				secs += 86400;
+				days--;
+			}
+			final long hhmmss = ((secs / 3600) * 10000L) + (((secs / 60) % 60) * 100) + (secs % 60);
+			//Civil date from the days since 1970-01-01, in eras of 400 years starting on March 1st
+			final long z = days + 719468;
+			final long era = (z >= 0 ? z : z - 146096) / 146097;
+			final long doe = z - (era * 146097);
+			final long yoe = (doe - (doe / 1460) + (doe / 36524) - (doe / 146096)) / 365;
+			final long doy = doe - ((365 * yoe) + (yoe / 4) - (yoe / 100));
+			final long mp = ((5 * doy) + 2) / 153;
+			final long day = doy - (((153 * mp) + 2) / 5) + 1;
+			final long month = mp < 10 ? mp + 3 : mp - 9;
+			final long year = (yoe + (era * 400)) + (month <= 2 ? 1 : 0);
+			date10 = (((month * 100) + day) * 1000000L) + hhmmss;
+			expiration = ((((year % 100) + 100) % 100) * 100) + month;
+		}
+	}
+
+	/** Returns the number as a String of the specified number of digits, padded with zeroes
+	 * to the left. The number must not be negative and must fit in the digits. */
+	static String digits(long value, int length) {
+		char[] c = new char[length];
+		long v = value;
+		for (int i = length - 1; i >= 0; i--) {
+			c[i] = (char)((v % 10) + 48);
+			v /= 10;
 		}
-		throw new IllegalArgumentException("Cannot format date as " + this);
+		return new String(c);
 	}
 
 	/** Formats the string to the given length (length is only useful if type is ALPHA, NUMERIC or BINARY). */
@@ -100,7 +169,12 @@ public enum IsoType {
 	        } else if (value.length() == length) {
 	        	return value;
 	        } else {
-	        	return String.format(String.format("%%-%ds", length), value);
+	        	char[] c = new char[length];
+	        	value.getChars(0, value.length(), c, 0);
+	        	for (int i = value.length(); i < length; i++) {
+	        		c[i] = ' ';
+	        	}
+	        	return new String(c);
 	        }
 		} else if (this == LLVAR || this == LLLVAR) {
 			return value;
@@ -149,6 +223,9 @@ public enum IsoType {
 	/** Formats the integer value as a NUMERIC, an AMOUNT, or a String. */
 	public String format(long value, int length) {
 		if (this == NUMERIC) {
+			if (value >= 0 && NumericValue.fits(value, length)) {
+				return digits(value, length);
+			}
 			String x = String.format(String.format("%%0%dd", length), value);
 	        if (x.length() > length) {
 	        	throw new IllegalArgumentException("Numeric value is larger than intended length: " + value + " LEN " + length);
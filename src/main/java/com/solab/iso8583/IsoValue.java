@@ -21,9 +21,15 @@ package com.solab.iso8583;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.math.BigDecimal;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import com.solab.iso8583.util.HexCodec;
+import com.solab.iso8583.util.TextCodec;
 
 /** Represents a value that is stored in a field inside an ISO8583 message.
  * It can format the value when the message is generated.
@@ -36,11 +42,14 @@ import com.solab.iso8583.util.HexCodec;
  */
 public class IsoValue<T> implements Cloneable {
 
+	/** The subclasses that override {@link #write(OutputStream, boolean)}, and the ones that don't. */
+	private static final ConcurrentMap<Class<?>, Boolean> WRITERS = new ConcurrentHashMap<Class<?>, Boolean>();
+
 	private IsoType type;
 	private T value;
 	private CustomField<T> encoder;
 	private int length;
-	private String encoding;
+	private Charset charset;
 
 	public IsoValue(IsoType t, T value) {
 		this(t, value, null);
@@ -140,6 +149,22 @@ public class IsoValue<T> implements Cloneable {
 		}
 	}
 
+	/** Creates an instance without a value and without validating the length, for subclasses
+	 * that obtain their value on demand. */
+	IsoValue(IsoType t, int len, CustomField<T> custom) {
+		type = t;
+		length = len;
+		encoder = custom;
+	}
+
+	/** Changes the type, length and encoder of a subclass instance that is being reused
+	 * for another field. */
+	void reuse(IsoType t, int len, CustomField<T> custom) {
+		type = t;
+		length = len;
+		encoder = custom;
+	}
+
 	/** Returns the ISO type to which the value must be formatted. */
 	public IsoType getType() {
 		return type;
@@ -157,11 +182,20 @@ public class IsoValue<T> implements Cloneable {
 		return value;
 	}
 
+	/** Sets the character encoding by name. See {@link #setCharset(Charset)}. */
 	public void setCharacterEncoding(String value) {
-		encoding = value;
+		setCharset(TextCodec.forName(value));
 	}
 	public String getCharacterEncoding() {
-		return encoding;
+		return charset == null ? null : charset.name();
+	}
+
+	/** Sets the charset used to write text values. A null charset means the platform's default. */
+	public void setCharset(Charset value) {
+		charset = value;
+	}
+	public Charset getCharset() {
+		return charset;
 	}
 
 	/** Returns the formatted value as a String. The formatting depends on the type of the
@@ -235,83 +269,250 @@ public class IsoValue<T> implements Cloneable {
 		return encoder;
 	}
 
+	/** Returns the number of bytes that {@link #write(OutputStream, boolean)} writes for this
+	 * value, including the length header of variable length types. Numeric, date and binary
+	 * values, as well as text in single-byte charsets or UTF-8, are measured without encoding
+	 * them. Subclasses that override {@link #write(OutputStream, boolean)} but not this method
+	 * are measured by writing them. */
+	public int encodedLength(boolean binary) {
+		return overridesWrite() ? writtenLength(binary) : valueLength(binary);
+	}
+
+	/** Returns the number of bytes that {@link #encode(ByteBuffer, boolean)} puts in a buffer. */
+	private int valueLength(boolean binary) {
+		if (type == IsoType.LLLVAR || type == IsoType.LLVAR || type == IsoType.LLBIN || type == IsoType.LLLBIN) {
+			final boolean three = type == IsoType.LLLVAR || type == IsoType.LLLBIN;
+			final int header = binary ? (three ? 2 : 1) : (three ? 3 : 2);
+			if (type == IsoType.LLVAR || type == IsoType.LLLVAR) {
+				return header + TextCodec.encodedLength(toString(), charset);
+			} else if (binary) {
+				return header + binaryLength();
+			} else if (encoder == null && value instanceof byte[]) {
+				return header + (((byte[])value).length * 2);
+			}
+			return header + TextCodec.encodedLength(toString(), charset);
+		} else if (binary) {
+			if (type == IsoType.NUMERIC) {
+				return (length / 2) + (length % 2);
+			} else if (type == IsoType.AMOUNT) {
+				return 6;
+			} else if (type == IsoType.DATE10 || type == IsoType.DATE4 || type == IsoType.DATE_EXP || type == IsoType.TIME) {
+				return length / 2;
+			} else if (type == IsoType.BINARY) {
+				return Math.max(binaryLength(), length);
+			}
+		} else if (type == IsoType.BINARY && encoder == null && value instanceof byte[]) {
+			return length * 2;
+		} else if (isPlain() && TextCodec.spaceByte(charset) >= 0) {
+			if (number() >= 0) {
+				return type == IsoType.AMOUNT ? 12 : length;
+			} else if (type == IsoType.ALPHA) {
+				final String s = alpha();
+				final int n = Math.min(s.length(), length);
+				return TextCodec.encodedLength(n == s.length() ? s : s.substring(0, n), charset) + length - n;
+			}
+		}
+		return TextCodec.encodedLength(toString(), charset);
+	}
+
+	/** Returns true if the class of this value overrides {@link #write(OutputStream, boolean)},
+	 * so that it can't be measured from its type and value. */
+	private boolean overridesWrite() {
+		final Class<?> c = getClass();
+		if (c == IsoValue.class) {
+			return false;
+		}
+		Boolean b = WRITERS.get(c);
+		if (b == null) {
+			try {
+				b = c.getMethod("write", OutputStream.class, boolean.class).getDeclaringClass() != IsoValue.class;
+			} catch (NoSuchMethodException ex) {
+				b = Boolean.FALSE;
+			}
+			WRITERS.put(c, b);
+		}
+		return b;
+	}
+
+	/** Returns the number of bytes written by {@link #write(OutputStream, boolean)}, which
+	 * writes to a buffer that is made bigger until the value fits in it. */
+	private int writtenLength(boolean binary) {
+		for (int size = 256; ; size *= 2) {
+			final BufferOutputStream outs = new BufferOutputStream(ByteBuffer.allocate(size));
+			try {
+				write(outs, binary);
+				return outs.buffer().position();
+			} catch (BufferOverflowException ex) {
+				//try again with a bigger buffer
+			} catch (IOException ex) {
+				throw new IllegalArgumentException("Cannot write value", ex);
+			}
+		}
+	}
+
+	/** Returns the number of bytes of a binary value, or of the hex digits in its String form. */
+	private int binaryLength() {
+		if (value instanceof byte[]) {
+			return ((byte[])value).length;
+		}
+		final int digits = value.toString().length();
+		return (digits / 2) + (digits % 2);
+	}
+
+	/** Returns true if the value can be encoded directly, without formatting it with
+	 * toString(); subclasses (other than the ones in this package, which encode themselves)
+	 * could be overriding toString() to change the formatted value. */
+	private boolean isPlain() {
+		return value != null && getClass() == IsoValue.class;
+	}
+
+	/** Returns the number that NUMERIC, AMOUNT and date values are written as, with as many digits
+	 * as the field has, or -1 if the value is not a number that fits in the field, or a Date. */
+	private long number() {
+		if (type == IsoType.NUMERIC && value instanceof Number) {
+			final long v = ((Number)value).longValue();
+			return NumericValue.fits(v, length) ? v : -1;
+		} else if (type == IsoType.AMOUNT && value instanceof BigDecimal) {
+			final long v = ((BigDecimal)value).movePointRight(2).longValue();
+			return v >= 0 && v <= AmountValue.MAX_MINOR_UNITS ? v : -1;
+		} else if (value instanceof Date && length == type.getLength() && (type == IsoType.DATE10
+				|| type == IsoType.DATE4 || type == IsoType.DATE_EXP || type == IsoType.TIME)) {
+			return type.dateDigits(((Date)value).getTime());
+		}
+		return -1;
+	}
+
+	/** Returns the text of an ALPHA value, before padding or truncating it. */
+	private String alpha() {
+		final String s = encoder == null ? value.toString() : encoder.encodeField(value);
+		return s == null ? "" : s;
+	}
+
 	/** Writes the formatted value to a stream, with the length header
-	 * if it's a variable length type. */
+	 * if it's a variable length type. The value is encoded straight into the bytes
+	 * that are written: digits, BCD nibbles, padding and length headers are calculated
+	 * from the value itself, and only text, values with a custom encoder, and values
+	 * that can't be encoded otherwise are formatted as a String first. When the message
+	 * is written to a ByteBuffer, the value is encoded straight into it. */
 	public void write(OutputStream outs, boolean binary) throws IOException {
-		if (type == IsoType.LLLVAR || type == IsoType.LLVAR) {
-			if (binary) {
-				if (type == IsoType.LLLVAR) {
-					outs.write(length / 100); //00 to 09 automatically in BCD
-				}
-				//BCD encode the rest of the length
-				outs.write((((length % 100) / 10) << 4) | (length % 10));
-			} else {
-				//write the length in ASCII
-				if (type == IsoType.LLLVAR) {
-					outs.write((length / 100) + 48);
-				}
-				if (length >= 10) {
-					outs.write(((length % 100) / 10) + 48);
-				} else {
-					outs.write(48);
-				}
-				outs.write((length % 10) + 48);
-			}
-		} else if (type == IsoType.LLBIN || type == IsoType.LLLBIN) {
+		if (outs instanceof BufferOutputStream) {
+			encode(((BufferOutputStream)outs).buffer(), binary);
+		} else {
+			//a subclass that overrides this method would be measured by calling it
+			byte[] buf = new byte[overridesWrite() ? valueLength(binary) : encodedLength(binary)];
+			encode(ByteBuffer.wrap(buf), binary);
+			outs.write(buf);
+		}
+	}
+
+	/** Puts the encoded value in the buffer, at its position; this writes exactly
+	 * {@link #encodedLength(boolean)} bytes. */
+	void encode(ByteBuffer buf, boolean binary) {
+		//The digits in the charset; these are the ASCII digits unless it's EBCDIC
+		final byte[] digits = TextCodec.digitBytes(charset);
+		if (type == IsoType.LLLVAR || type == IsoType.LLVAR || type == IsoType.LLBIN || type == IsoType.LLLBIN) {
+			final boolean three = type == IsoType.LLLVAR || type == IsoType.LLLBIN;
+			//The length of LLBIN and LLLBIN in ASCII is the number of hex digits
+			final int len = binary || type == IsoType.LLVAR || type == IsoType.LLLVAR ? length : length * 2;
 			if (binary) {
-				if (type == IsoType.LLLBIN ) {
-					outs.write(length / 100); //00 to 09 automatically in BCD
+				if (three) {
+					buf.put((byte)(len / 100)); //00 to 09 automatically in BCD
 				}
 				//BCD encode the rest of the length
-				outs.write((((length % 100) / 10) << 4) | (length % 10));
+				buf.put((byte)((((len % 100) / 10) << 4) | (len % 10)));
 			} else {
-				int _l = length*2;
-				//write the length in ASCII
-				if (type == IsoType.LLLBIN) {
-					outs.write((_l / 100) + 48);
+				if (three) {
+					buf.put(digits[len / 100]);
 				}
-				if (_l >= 10) {
-					outs.write(((_l % 100) / 10) + 48);
-				} else {
-					outs.write(48);
-				}
-				outs.write((_l % 10) + 48);
-			}
-		} else if (binary) {
-			//numeric types in binary are coded like this
-			byte[] buf = null;
-			if (type == IsoType.NUMERIC) {
-				buf = new byte[(length / 2) + (length % 2)];
-			} else if (type == IsoType.AMOUNT) {
-				buf = new byte[6];
-			} else if (type == IsoType.DATE10 || type == IsoType.DATE4 || type == IsoType.DATE_EXP || type == IsoType.TIME) {
-				buf = new byte[length / 2];
-			}
-			//Encode in BCD if it's one of these types
-			if (buf != null) {
-				toBcd(toString(), buf);
-				outs.write(buf);
-				return;
+				buf.put(digits[(len % 100) / 10]);
+				buf.put(digits[len % 10]);
 			}
 		}
 		if (binary && (type == IsoType.BINARY || type == IsoType.LLBIN || type == IsoType.LLLBIN)) {
 			int missing = 0;
 			if (value instanceof byte[]) {
-				outs.write((byte[])value);
+				buf.put((byte[])value);
 				missing = length - ((byte[])value).length;
 			} else {
 				byte[] binval = HexCodec.hexDecode(value.toString());
-				outs.write(binval);
+				buf.put(binval);
 				missing = length - binval.length;
 			}
-			if (type == IsoType.BINARY && missing > 0) {
+			if (type == IsoType.BINARY) {
 				for (int i = 0; i < missing; i++) {
-					outs.write(0);
+					buf.put((byte)0);
 				}
 			}
-		} else {
-			outs.write(encoding == null ? toString().getBytes() : toString().getBytes(encoding));
+			return;
+		} else if (encoder == null && value instanceof byte[]
+				&& (type == IsoType.BINARY || type == IsoType.LLBIN || type == IsoType.LLLBIN)) {
+			//hex digits are written straight from the bytes
+			final byte[] v = (byte[])value;
+			final int n = type == IsoType.BINARY ? Math.min(v.length, length) : v.length;
+			HexCodec.hexEncode(v, 0, n, buf, digits);
+			if (type == IsoType.BINARY) {
+				for (int i = n * 2; i < length * 2; i++) {
+					buf.put(digits[0]);
+				}
+			}
+			return;
+		}
+		final long number = isPlain() ? number() : -1;
+		if (binary && (type == IsoType.NUMERIC || type == IsoType.AMOUNT || type == IsoType.DATE10
+				|| type == IsoType.DATE4 || type == IsoType.DATE_EXP || type == IsoType.TIME)) {
+			//numeric types in binary are coded in BCD
+			final int bytes = type == IsoType.NUMERIC ? (length / 2) + (length % 2)
+					: type == IsoType.AMOUNT ? 6 : length / 2;
+			if (number >= 0) {
+				putBcd(buf, number, bytes);
+			} else {
+				byte[] bcd = new byte[bytes];
+				toBcd(toString(), bcd);
+				buf.put(bcd);
+			}
+			return;
+		}
+		if (number >= 0 || type == IsoType.ALPHA) {
+			final int space = isPlain() ? TextCodec.spaceByte(charset) : -1;
+			if (space >= 0 && number >= 0) {
+				putDigits(buf, number, type == IsoType.AMOUNT ? 12 : length, digits);
+				return;
+			} else if (space >= 0) {
+				final String s = alpha();
+				final int n = Math.min(s.length(), length);
+				TextCodec.encode(s, 0, n, charset, buf);
+				for (int i = n; i < length; i++) {
+					buf.put((byte)space);
+				}
+				return;
+			}
+		}
+		buf.put(TextCodec.encode(toString(), charset));
+	}
+
+	/** Puts the number in the buffer as the specified number of digits, padded with zeroes to
+	 * the left, using the specified bytes for the digits. */
+	static void putDigits(ByteBuffer buf, long value, int length, byte[] digits) {
+		final int pos = buf.position();
+		long v = value;
+		for (int i = pos + length - 1; i >= pos; i--) {
+			buf.put(i, digits[(int)(v % 10)]);
+			v /= 10;
+		}
+		buf.position(pos + length);
+	}
+
+	/** Puts the number in the buffer in BCD, two digits per byte with the least significant
+	 * ones at the end, using the specified number of bytes. */
+	static void putBcd(ByteBuffer buf, long value, int bytes) {
+		final int pos = buf.position();
+		long v = value;
+		for (int i = pos + bytes - 1; i >= pos; i--) {
+			final int pair = (int)(v % 100);
+			buf.put(i, (byte)(((pair / 10) << 4) | (pair % 10)));
+			v /= 100;
 		}
+		buf.position(pos + bytes);
 	}
 
 	/** Encode the value as BCD and put it in the buffer. The buffer must be big enough
@@ -0,0 +1,192 @@
+/*
+j8583 A Java implementation of the ISO8583 protocol
+Copyright (C) 2007 Enrique Zamudio Lopez
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA
+*/
+package com.solab.iso8583;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+
+import com.solab.iso8583.parse.FieldParseInfo;
+
+/** A value that only remembers where its field is inside the buffer it was parsed from,
+ * and decodes it the first time it's needed. When it's written with the same binary flag
+ * and character encoding it was parsed with, the original bytes are copied as they are.
+ * Reusable instances belong to the IsoMessage they were parsed into, and are pointed to
+ * another field each time a message is parsed into it; their clones are decoded values that
+ * don't depend on the buffer.
+ *
+ * @author Enrique Zamudio
+ */
+final class LazyValue extends IsoValue<Object> {
+
+	private ByteBuffer frame;
+	private int start;
+	private int end;
+	private boolean binary;
+	private FieldParseInfo parser;
+	private CustomField<?> custom;
+	private Charset parseCharset;
+	private volatile IsoValue<?> decoded;
+	/** The message that reuses the value, if it's reusable. */
+	private final IsoMessage owner;
+	/** Indicates if the value is in the owner's list of values to reuse. */
+	boolean released;
+
+	/** Creates a value for the field that occupies the region of the frame between start
+	 * (inclusive) and end (exclusive). */
+	LazyValue(ByteBuffer frame, int start, int end, boolean binary, FieldParseInfo parser, CustomField<?> custom) {
+		this(frame, start, end, binary, parser, custom, null);
+	}
+
+	/** Creates a value that the owner can reset to another field, if the owner is not null. */
+	@SuppressWarnings("unchecked")
+	LazyValue(ByteBuffer frame, int start, int end, boolean binary, FieldParseInfo parser,
+			CustomField<?> custom, IsoMessage owner) {
+		super(parser.getType(), parser.getLength(), (CustomField<Object>)custom);
+		this.owner = owner;
+		reset(frame, start, end, binary, parser, custom);
+	}
+
+	/** Returns the message that reuses the value, or null if it's not reusable. */
+	IsoMessage getOwner() {
+		return owner;
+	}
+
+	/** Points the value to the field that occupies the region of the frame between start
+	 * (inclusive) and end (exclusive), discarding the previous decoded value. */
+	@SuppressWarnings("unchecked")
+	void reset(ByteBuffer frame, int start, int end, boolean binary, FieldParseInfo parser, CustomField<?> custom) {
+		reuse(parser.getType(), parser.getLength(), (CustomField<Object>)custom);
+		this.frame = frame;
+		this.start = start;
+		this.end = end;
+		this.binary = binary;
+		this.parser = parser;
+		this.custom = custom;
+		parseCharset = parser.getCharset();
+		decoded = null;
+	}
+
+	/** Sets the value of a field that was already decoded when it was parsed, so that
+	 * it's only used to remember where the field was. */
+	void setDecoded(IsoValue<?> v) {
+		v.setCharset(getCharset());
+		decoded = v;
+	}
+
+	/** Decodes the field, or returns the value that was decoded previously. */
+	IsoValue<?> decode() {
+		IsoValue<?> v = decoded;
+		if (v == null) {
+			try {
+				v = binary ? parser.parseBinary(frame, start, custom) : parser.parse(frame, start, custom);
+			} catch (ParseException ex) {
+				throw new IllegalStateException(String.format("Cannot decode %s field at pos %d", getType(), start), ex);
+			} catch (UnsupportedEncodingException ex) {
+				throw new IllegalStateException(String.format("Cannot decode %s field at pos %d", getType(), start), ex);
+			}
+			v.setCharset(getCharset());
+			decoded = v;
+		}
+		return v;
+	}
+
+	@Override
+	public int getLength() {
+		return decode().getLength();
+	}
+
+	@Override
+	public Object getValue() {
+		return decode().getValue();
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public CustomField<Object> getEncoder() {
+		return (CustomField<Object>)decode().getEncoder();
+	}
+
+	@Override
+	public void setCharset(Charset value) {
+		super.setCharset(value);
+		IsoValue<?> v = decoded;
+		if (v != null) {
+			v.setCharset(value);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return decode().toString();
+	}
+
+	@Override
+	public int hashCode() {
+		return decode().hashCode();
+	}
+
+	/** Returns a copy of the receiver that references the same buffer region, or a copy
+	 * of the decoded value if the receiver is reusable. */
+	@Override
+	@SuppressWarnings("unchecked")
+	public IsoValue<Object> clone() {
+		if (owner != null) {
+			return (IsoValue<Object>)decode().clone();
+		}
+		LazyValue c = (LazyValue)super.clone();
+		IsoValue<?> v = decoded;
+		if (v != null) {
+			c.decoded = v.clone();
+		}
+		return c;
+	}
+
+	/** Returns true if the value would be written exactly as it was parsed. */
+	private boolean isVerbatim(boolean binary) {
+		Charset cs = getCharset();
+		return binary == this.binary && (parseCharset == null ? cs == null : parseCharset.equals(cs));
+	}
+
+	@Override
+	public int encodedLength(boolean binary) {
+		return isVerbatim(binary) ? end - start : decode().encodedLength(binary);
+	}
+
+	@Override
+	public void write(OutputStream outs, boolean binary) throws IOException {
+		if (isVerbatim(binary)) {
+			if (frame.hasArray()) {
+				outs.write(frame.array(), frame.arrayOffset() + start, end - start);
+			} else {
+				byte[] b = new byte[end - start];
+				ByteBuffer view = frame.duplicate();
+				view.position(start);
+				view.get(b);
+				outs.write(b);
+			}
+		} else {
+			decode().write(outs, binary);
+		}
+	}
+
+}
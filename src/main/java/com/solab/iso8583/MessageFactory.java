@@ -19,21 +19,28 @@ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA
 package com.solab.iso8583;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
 import java.text.ParseException;
+import java.text.ParsePosition;
 import java.util.ArrayList;
-import java.util.BitSet;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.solab.iso8583.parse.AmountParseInfo;
 import com.solab.iso8583.parse.ConfigParser;
+import com.solab.iso8583.parse.Date10ParseInfo;
 import com.solab.iso8583.parse.FieldParseInfo;
+import com.solab.iso8583.parse.NumericParseInfo;
+import com.solab.iso8583.util.TextCodec;
 
 /** This class is used to create messages, either from scratch or from an existing String or byte
  * buffer. It can be configured to put default values on newly created messages, and also to know
@@ -46,6 +53,12 @@ import com.solab.iso8583.parse.FieldParseInfo;
  * It can also be configured to know what fields to expect in incoming messages (all possible values
  * must be stated, indicating the date type for each). This way the messages can be parsed from
  * a byte buffer.
+ * <P>
+ * Once it's configured and {@link #freeze()} has been called, a single factory can be shared
+ * by any number of threads to create and parse messages concurrently, because the parsers
+ * don't keep any state between fields. The factory must be published safely to the other
+ * threads, for example by configuring it before starting them, and the trace number generator,
+ * if any, must be thread-safe as well.
  * 
  * @author Enrique Zamudio
  */
@@ -55,10 +68,12 @@ public class MessageFactory {
 
 	/** This map stores the message template for each message type. */
 	private Map<Integer, IsoMessage> typeTemplates = new HashMap<Integer, IsoMessage>();
+	/** The constant fields of each template, encoded in the factory's charset, by field number. */
+	private Map<Integer, EncodedValue<?>[]> templateValues = new HashMap<Integer, EncodedValue<?>[]>();
 	/** Stores the information needed to parse messages sorted by type. */
 	private Map<Integer, Map<Integer, FieldParseInfo>> parseMap = new HashMap<Integer, Map<Integer, FieldParseInfo>>();
-	/** Stores the field numbers to be parsed, in order of appearance. */
-	private Map<Integer, List<Integer>> parseOrder = new HashMap<Integer, List<Integer>>();
+	/** Stores the parsing guides compiled into plans, by message type. */
+	private Map<Integer, ParsePlan> parsePlans = new HashMap<Integer, ParsePlan>();
 
 	private TraceNumberGenerator traceGen;
 	/** The ISO header to be included in each message type. */
@@ -68,30 +83,64 @@ public class MessageFactory {
 	private Map<Integer, CustomField> customFields = new HashMap<Integer, CustomField>();
 	/** Indicates if the current date should be set on new messages (field 7). */
 	private boolean setDate;
+	/** The clock for the dates of new messages and the year of parsed DATE10 fields. */
+	private Clock clock = Clock.SYSTEM;
+	/** Indicates if the configuration has been frozen. */
+	private boolean frozen;
 	/** Indicates if the factory should create binary messages and also parse binary messages. */
 	private boolean useBinary;
 	private int etx = -1;
 	/** Flag to specify if missing fields should be ignored as long as they're at the end of the message. */
 	private boolean ignoreLast;
 	private boolean forceb2;
-	private String encoding = System.getProperty("file.encoding");
-
-	/** Sets the character encoding used for parsing ALPHA, LLVAR and LLLVAR fields. */
+	/** Indicates if parsed fields should be decoded only when their values are requested. */
+	private boolean lazy;
+	/** Indicates if responses should echo the bytes of the request's fields. */
+	private boolean echo;
+	/** Indicates if AMOUNT fields should be parsed as AmountValues. */
+	private boolean minorUnits;
+	/** Indicates if ASCII NUMERIC fields should be parsed as NumericValues. */
+	private boolean primitiveNumerics;
+	private Charset charset = Charset.defaultCharset();
+	/** The value of each byte as a hex digit in the charset, to read the type and bitmap. */
+	private byte[] digitValues = TextCodec.digitValues(charset);
+
+	/** Sets the character encoding used for parsing ALPHA, LLVAR and LLLVAR fields.
+	 * See {@link #setCharset(Charset)}. */
 	public void setCharacterEncoding(String value) {
-		encoding = value;
+		setCharset(TextCodec.forName(value));
+	}
+
+	/** Sets the charset used for parsing ALPHA, LLVAR and LLLVAR fields, and for the messages
+	 * created by the factory. Parsing and writing ASCII or ISO-8859-1 text is faster, since
+	 * those are converted without a CharsetDecoder or CharsetEncoder. If the charset is EBCDIC
+	 * (Cp037, Cp1047, etc), the whole message is read and written in EBCDIC, including the
+	 * ISO header, message type, bitmap, length headers and numeric fields of non-binary
+	 * messages; this is done with translation tables, without converting the whole message.
+	 * This must be set before the factory is frozen.
+	 * @throws UnsupportedOperationException if the factory has been frozen. */
+	public void setCharset(Charset value) {
+		checkMutable();
+		charset = value;
+		digitValues = TextCodec.digitValues(value);
 		if (parseMap.size() > 0) {
 			for (Map<Integer, FieldParseInfo> pt : parseMap.values()) {
 				for (FieldParseInfo fpi : pt.values()) {
-					fpi.setCharacterEncoding(encoding);
+					fpi.setCharset(charset);
 				}
 			}
+			compileParsePlans();
 		}
+		encodeTemplates();
+	}
+	public Charset getCharset() {
+		return charset;
 	}
 
 	/** Returns the encoding used to parse ALPHA, LLVAR and LLLVAR fields. The default is the file.encoding
 	 * system property. */
 	public String getCharacterEncoding() {
-		return encoding;
+		return charset == null ? null : charset.name();
 	}
 
 	/** Sets or clears the flag to pass to new messages, to include a secondary bitmap even if it's not needed. */
@@ -116,15 +165,87 @@ public class MessageFactory {
 		return ignoreLast;
 	}
 
-	/** Specifies a map for custom field encoder/decoders. The keys are the field numbers. */
+	/** Tells the receiver to parse messages lazily: the parser only finds out where each field
+	 * begins and ends, and the fields are decoded the first time their values are requested.
+	 * Lazily parsed fields that are written again with the same encoding are copied as they are
+	 * from the original buffer. Messages parsed this way keep a reference to the buffer they
+	 * were parsed from, so its contents must not be modified while the messages are in use.
+	 * Since the fields are only decoded when they're used, a malformed field doesn't make
+	 * {@link #parseMessage(byte[], int)} throw a ParseException (unless its length is wrong,
+	 * which is found when the message is parsed); instead, the first call to
+	 * {@link IsoValue#getValue()} or {@link IsoMessage#getObjectValue(int)} for that field
+	 * throws an IllegalStateException, with the ParseException as its cause.
+	 * Default is false. */
+	public void setLazyParsing(boolean flag) {
+		lazy = flag;
+	}
+	/** Returns true if the factory decodes the fields of parsed messages on demand. Default is false. */
+	public boolean getLazyParsing() {
+		return lazy;
+	}
+
+	/** Tells the receiver to create responses that echo the fields of the request as they were
+	 * received. Parsed messages remember where each field is in the buffer, as with lazy parsing
+	 * (even if the fields are decoded when they're parsed), and {@link #createResponse(IsoMessage)}
+	 * shares the request's values instead of cloning them, so the fields that the application
+	 * doesn't change are written by copying the bytes of the request; only the fields that
+	 * are set in the response are encoded. The buffer that the request was parsed from must
+	 * not be modified while the request and its response are in use. Default is false. */
+	public void setEchoRequestBytes(boolean flag) {
+		echo = flag;
+	}
+	/** Returns true if responses echo the bytes of the request's fields. Default is false. */
+	public boolean getEchoRequestBytes() {
+		return echo;
+	}
+
+	/** Tells the receiver to parse AMOUNT fields as {@link AmountValue}s, which store the amount
+	 * as a number of minor units instead of creating a BigDecimal, and can be read with
+	 * {@link IsoMessage#getAmount(int)}. Their values are still BigDecimals when requested.
+	 * Default is false. This must be set before the factory is frozen.
+	 * @throws UnsupportedOperationException if the factory has been frozen. */
+	public void setAmountsAsMinorUnits(boolean flag) {
+		checkMutable();
+		minorUnits = flag;
+		compileParsePlans();
+	}
+	/** Returns true if the factory parses AMOUNT fields as minor units. Default is false. */
+	public boolean getAmountsAsMinorUnits() {
+		return minorUnits;
+	}
+
+	/** Tells the receiver to parse ASCII NUMERIC fields of up to 18 digits as {@link NumericValue}s,
+	 * which store a primitive long and can be read with {@link IsoMessage#getLong(int)}, instead
+	 * of Strings. Fields with custom field encoders, or with anything other than digits, are still
+	 * parsed as Strings. Binary NUMERIC fields are always parsed as numbers. Default is false.
+	 * This must be set before the factory is frozen.
+	 * @throws UnsupportedOperationException if the factory has been frozen. */
+	public void setPrimitiveNumerics(boolean flag) {
+		checkMutable();
+		primitiveNumerics = flag;
+		compileParsePlans();
+	}
+	/** Returns true if the factory parses ASCII NUMERIC fields as primitive values. Default is false. */
+	public boolean getPrimitiveNumerics() {
+		return primitiveNumerics;
+	}
+
+	/** Specifies a map for custom field encoder/decoders. The keys are the field numbers.
+	 * This must be set before the factory is frozen.
+	 * @throws UnsupportedOperationException if the factory has been frozen. */
 	@SuppressWarnings("rawtypes")
 	public void setCustomFields(Map<Integer, CustomField> value) {
+		checkMutable();
 		customFields = value;
+		compileParsePlans();
 	}
 
-	/** Sets the CustomField encoder for the specified field number. */
+	/** Sets the CustomField encoder for the specified field number.
+	 * @throws UnsupportedOperationException if the factory has been frozen. */
 	public void setCustomField(int index, CustomField<?> value) {
+		checkMutable();
 		customFields.put(index, value);
+		compileParsePlans();
 	}
 	/** Returns a custom field encoder/decoder for the specified field number, if one is available. */
 	@SuppressWarnings("unchecked")
@@ -175,16 +296,23 @@ public class MessageFactory {
 		m.setEtx(etx);
 		m.setBinary(useBinary);
 		m.setForceSecondaryBitmap(forceb2);
-		m.setCharacterEncoding(encoding);
+		m.setCharset(charset);
 
 		//Copy the values from the template
 		IsoMessage templ = typeTemplates.get(type);
 		if (templ != null) {
-			for (int i = 2; i <= 128; i++) {
-				if (templ.hasField(i)) {
+			final EncodedValue<?>[] encoded = templateValues.get(type);
+			//Room for the trace and date too
+			m.reserve(templ.getFieldCount() + 2);
+			for (int i = templ.nextField(1); i > 0; i = templ.nextField(i)) {
+				IsoValue<?> v = templ.getField(i);
+				if (encoded != null && encoded[i] != null && encoded[i].getSource() == v) {
+					//The encoded value is shared, as long as the template still has the same value
+					m.setField(i, encoded[i]);
+				} else {
 					//We could detect here if there's a custom object with a CustomField,
 					//but we can't copy the value so there's no point.
-					m.setField(i, templ.getField(i).clone());
+					m.setField(i, v.clone());
 				}
 			}
 		}
@@ -192,35 +320,38 @@ public class MessageFactory {
 			m.setValue(11, traceGen.nextTrace(), IsoType.NUMERIC, 6);
 		}
 		if (setDate) {
-			m.setValue(7, new Date(), IsoType.DATE10, 10);
+			m.setValue(7, new Date(clock.currentTimeMillis()), IsoType.DATE10, 10);
 		}
 		return m;
 	}
 
 	/** Creates a message to respond to a request. Increments the message type by 16,
 	 * sets all fields from the template if there is one, and copies all values from the request,
-	 * overwriting fields from the template if they overlap.
+	 * overwriting fields from the template if they overlap. Field 128 is not copied.
+	 * If the factory echoes the request bytes (see {@link #setEchoRequestBytes(boolean)}),
+	 * the response shares the request's values instead of copying them.
 	 * @param request An ISO8583 message with a request type (ending in 00). */
 	public IsoMessage createResponse(IsoMessage request) {
 		IsoMessage resp = new IsoMessage(isoHeaders.get(request.getType() + 16));
-		resp.setCharacterEncoding(request.getCharacterEncoding());
+		resp.setCharset(request.getCharset());
 		resp.setBinary(request.isBinary());
 		resp.setType(request.getType() + 16);
 		resp.setEtx(etx);
 		resp.setForceSecondaryBitmap(forceb2);
 		//Copy the values from the template or the request (request has preference)
 		IsoMessage templ = typeTemplates.get(resp.getType());
-		if (templ == null) {
-			for (int i = 2; i < 128; i++) {
-				if (request.hasField(i)) {
-					resp.setField(i, request.getField(i).clone());
-				}
-			}
+		resp.reserve(request.getFieldCount() + (templ == null ? 0 : templ.getFieldCount()));
+		//Field 128 is not copied
+		if (echo) {
+			resp.echoFields(request);
 		} else {
-			for (int i = 2; i < 128; i++) {
-				if (request.hasField(i)) {
-					resp.setField(i, request.getField(i).clone());
-				} else if (templ.hasField(i)) {
+			for (int i = request.nextField(1); i > 0 && i < 128; i = request.nextField(i)) {
+				resp.setField(i, request.getField(i).clone());
+			}
+		}
+		if (templ != null) {
+			for (int i = templ.nextField(1); i > 0 && i < 128; i = templ.nextField(i)) {
+				if (!request.hasField(i)) {
 					resp.setField(i, templ.getField(i).clone());
 				}
 			}
@@ -236,175 +367,323 @@ public class MessageFactory {
 	 * and the rest of the message must come. */
 	public IsoMessage parseMessage(byte[] buf, int isoHeaderLength)
 	throws ParseException, UnsupportedEncodingException {
+		return parseMessage(ByteBuffer.wrap(buf), isoHeaderLength);
+	}
+
+	/** Creates a new message instance from the remaining bytes in the buffer (from its position
+	 * to its limit), which must contain a valid ISO8583 message. The buffer can be a heap or a
+	 * direct buffer; the message is parsed in place, without copying it to an intermediate array.
+	 * The buffer's position and limit are not modified.
+	 * @param buf The buffer containing the message. Must not include the length header.
+	 * @param isoHeaderLength The expected length of the ISO header, after which the message type
+	 * and the rest of the message must come. */
+	public IsoMessage parseMessage(ByteBuffer buf, int isoHeaderLength)
+	throws ParseException, UnsupportedEncodingException {
+		return parse(null, buf, isoHeaderLength, -1L, -1L, null);
+	}
+
+	/** Parses the message in the array into the target message, like
+	 * {@link #parseInto(IsoMessage, ByteBuffer, int)} does. Parsing messages from the same
+	 * array into the same target doesn't create any objects once it's warmed up, with lazy parsing.
+	 * @param target The message to store the type, ISO header and fields in. It is reset first.
+	 * @param buf The array containing the message. Must not include the length header.
+	 * @param isoHeaderLength The expected length of the ISO header.
+	 * @return The target, or null if there's no parsing guide for the message type. */
+	public IsoMessage parseInto(IsoMessage target, byte[] buf, int isoHeaderLength)
+	throws ParseException, UnsupportedEncodingException {
+		return parse(target, target.frame(buf), isoHeaderLength, -1L, -1L, null);
+	}
+
+	/** Parses the message in the remaining bytes of the buffer into the target message, instead
+	 * of creating a new one. The target is reset first, and it gets the factory's charset and
+	 * binary flag; its ISO header is kept if the new message has the same one.
+	 * <P>
+	 * With lazy parsing (see {@link #setLazyParsing(boolean)}), the fields are stored in values
+	 * that only point to the buffer, and they're reused the next time a message is parsed into
+	 * the same target. A handler that parses every message from the same buffer into the same
+	 * target doesn't create any objects once it's warmed up, except for the values of the fields
+	 * that it decodes. The values are only valid until the target is reset or parsed into again,
+	 * and as long as the buffer isn't overwritten; their clones can be kept instead.
+	 * <P>
+	 * If the message can't be parsed, the target keeps the fields parsed before the error.
+	 * @param target The message to store the type, ISO header and fields in.
+	 * @param buf The buffer containing the message. Must not include the length header.
+	 * Its position and limit are not modified.
+	 * @param isoHeaderLength The expected length of the ISO header.
+	 * @return The target, or null if there's no parsing guide for the message type. */
+	public IsoMessage parseInto(IsoMessage target, ByteBuffer buf, int isoHeaderLength)
+	throws ParseException, UnsupportedEncodingException {
+		return parse(target, target.frame(buf), isoHeaderLength, -1L, -1L, null);
+	}
+
+	/** Creates a new message instance from the buffer, decoding only the specified fields.
+	 * The rest of the fields are skipped (only their length headers are read, in the case of
+	 * variable-length fields), and the fields after the last one requested are not read at all,
+	 * so the resulting message only contains the requested fields that are in the bitmap.
+	 * @param buf The byte buffer containing the message. Must not include the length header.
+	 * @param isoHeaderLength The expected length of the ISO header, after which the message type
+	 * and the rest of the message must come.
+	 * @param fields The numbers of the fields to decode (2 to 128). */
+	public IsoMessage parseMessage(byte[] buf, int isoHeaderLength, int... fields)
+	throws ParseException, UnsupportedEncodingException {
+		return parseMessage(ByteBuffer.wrap(buf), isoHeaderLength, fields);
+	}
+
+	/** Creates a new message instance from the remaining bytes in the buffer, decoding only the
+	 * specified fields, like {@link #parseMessage(byte[], int, int...)} does. The buffer's
+	 * position and limit are not modified.
+	 * @param buf The buffer containing the message. Must not include the length header.
+	 * @param isoHeaderLength The expected length of the ISO header, after which the message type
+	 * and the rest of the message must come.
+	 * @param fields The numbers of the fields to decode (2 to 128). */
+	public IsoMessage parseMessage(ByteBuffer buf, int isoHeaderLength, int... fields)
+	throws ParseException, UnsupportedEncodingException {
+		long wanted1 = 0;
+		long wanted2 = 0;
+		for (int f : fields) {
+			if (f < 2 || f > 128) {
+				throw new IndexOutOfBoundsException("Field index must be between 2 and 128");
+			} else if (f <= 64) {
+				wanted1 |= Long.MIN_VALUE >>> (f - 1);
+			} else {
+				wanted2 |= Long.MIN_VALUE >>> (f - 65);
+			}
+		}
+		return parse(null, buf, isoHeaderLength, wanted1, wanted2, null);
+	}
+
+	/** Creates an editor to change some fields of the encoded message in the array, and write
+	 * the rest of it as it is, like {@link #editFrame(ByteBuffer, int)} does.
+	 * @param buf The array containing the message. Must not include the length header.
+	 * @param isoHeaderLength The expected length of the ISO header. */
+	public FrameEditor editFrame(byte[] buf, int isoHeaderLength)
+	throws ParseException, UnsupportedEncodingException {
+		return editFrame(ByteBuffer.wrap(buf), isoHeaderLength);
+	}
+
+	/** Creates an editor to replace, insert or remove fields in the encoded message in the
+	 * remaining bytes of the buffer, and write the new message without decoding and encoding
+	 * the fields that don't change. Only the boundaries of the fields are read, with the
+	 * parsing guide for the message type; the length headers of variable-length fields are
+	 * the only part of the fields that is decoded. The buffer's position and limit are
+	 * not modified, and its contents must not be modified while the editor is in use.
+	 * @param buf The buffer containing the message. Must not include the length header.
+	 * @param isoHeaderLength The expected length of the ISO header.
+	 * @return The editor, or null if there's no parsing guide for the message type.
+	 * @throws ParseException if the message can't be read, or if it has fields that are
+	 * not in the parsing guide. */
+	public FrameEditor editFrame(ByteBuffer buf, int isoHeaderLength)
+	throws ParseException, UnsupportedEncodingException {
+		final int[] bounds = new int[129];
+		final ByteBuffer frame = buf.duplicate();
+		if (parse(null, frame, isoHeaderLength, 0L, 0L, bounds) == null) {
+			return null;
+		}
+		if (bounds[0] == 0) {
+			throw new ParseException("The message has fields that are not in the parsing guide",
+					buf.position() + isoHeaderLength);
+		}
+		return new FrameEditor(frame, buf.position() + isoHeaderLength + (useBinary ? 2 : 4),
+				bounds, useBinary, charset, forceb2);
+	}
+
+	/** Parses the message in the buffer, decoding only the fields in the specified masks,
+	 * which have the same layout as the bitmap (field 1 in the most significant bit of the first
+	 * one, field 128 in the least significant bit of the second one).
+	 * @param target The message to parse into, or null to create a new one. The buffer must be
+	 * the target's own view, which is kept by its lazy values.
+	 * @param bounds If not null, the position where each field in the bitmap starts is stored
+	 * in it, indexed by field number, and the position after the last field in the first element
+	 * (which is left as 0 if the message can't be read up to there). Every field is read,
+	 * regardless of the masks. */
+	private IsoMessage parse(IsoMessage target, ByteBuffer buf, int isoHeaderLength, long wanted1, long wanted2,
+			int[] bounds)
+	throws ParseException, UnsupportedEncodingException {
+		final int start = buf.position();
+		final int limit = buf.limit();
 		final int minlength = isoHeaderLength+(useBinary ? 10 : 20);
-		if (buf.length < minlength) {
+		if (limit - start < minlength) {
 			throw new ParseException("Insufficient buffer length, needs to be at least " + minlength, 0);
 		}
-		final IsoMessage m = new IsoMessage(isoHeaderLength > 0 ? new String(buf, 0, isoHeaderLength) : null);
-		m.setCharacterEncoding(encoding);
+		final IsoMessage m;
+		if (target == null) {
+			m = new IsoMessage(isoHeaderLength > 0 ? TextCodec.decode(buf, start, isoHeaderLength, charset) : null);
+		} else {
+			//The ISO header is usually the same as in the previous message
+			final String header = target.getIsoHeader();
+			m = target;
+			m.reset();
+			if (isoHeaderLength > 0) {
+				m.setIsoHeader(header != null && TextCodec.equals(buf, start, isoHeaderLength, header, charset)
+						? header : TextCodec.decode(buf, start, isoHeaderLength, charset));
+			}
+		}
+		m.setCharset(charset);
+		final int hdr = start + isoHeaderLength;
 		int type = 0;
 		if (useBinary) {
-			type = ((buf[isoHeaderLength] & 0xff) << 8) | (buf[isoHeaderLength + 1] & 0xff);
+			type = ((buf.get(hdr) & 0xff) << 8) | (buf.get(hdr + 1) & 0xff);
 		} else {
-			type = ((buf[isoHeaderLength] - 48) << 12)
-			| ((buf[isoHeaderLength + 1] - 48) << 8)
-			| ((buf[isoHeaderLength + 2] - 48) << 4)
-			| (buf[isoHeaderLength + 3] - 48);
+			final byte[] values = digitValues;
+			type = (values[buf.get(hdr) & 0xff] << 12)
+			| (values[buf.get(hdr + 1) & 0xff] << 8)
+			| (values[buf.get(hdr + 2) & 0xff] << 4)
+			| values[buf.get(hdr + 3) & 0xff];
 		}
 		m.setType(type);
-		//Parse the bitmap (primary first)
-		final BitSet bs = new BitSet(64);
-		int pos = 0;
+		//Parse the bitmap (primary first); bit 63 of the first long is field 1, bit 0 of the second is field 128
+		long bits1 = 0;
+		long bits2 = 0;
+		int pos;
 		if (useBinary) {
-			for (int i = isoHeaderLength + 2; i < isoHeaderLength + 10; i++) {
-				int bit = 128;
-				for (int b = 0; b < 8; b++) {
-					bs.set(pos++, (buf[i] & bit) != 0);
-					bit >>= 1;
-				}
+			for (int i = hdr + 2; i < hdr + 10; i++) {
+				bits1 = (bits1 << 8) | (buf.get(i) & 0xff);
 			}
 			//Check for secondary bitmap and parse if necessary
-			if (bs.get(0)) {
-				if (buf.length < minlength + 8) {
+			if (bits1 < 0) {
+				if (limit - start < minlength + 8) {
 					throw new ParseException("Insufficient length for secondary bitmap", minlength);
 				}
-				for (int i = isoHeaderLength + 10; i < isoHeaderLength + 18; i++) {
-					int bit = 128;
-					for (int b = 0; b < 8; b++) {
-						bs.set(pos++, (buf[i] & bit) != 0);
-						bit >>= 1;
-					}
+				for (int i = hdr + 10; i < hdr + 18; i++) {
+					bits2 = (bits2 << 8) | (buf.get(i) & 0xff);
 				}
-				pos = minlength + 8;
+				pos = start + minlength + 8;
 			} else {
-				pos = minlength;
+				pos = start + minlength;
 			}
 		} else {
-			//ASCII parsing
-			try {
-				for (int i = isoHeaderLength + 4; i < isoHeaderLength + 20; i++) {
-					if (buf[i] >= '0' && buf[i] <= '9') {
-						bs.set(pos++, ((buf[i] - 48) & 8) > 0);
-						bs.set(pos++, ((buf[i] - 48) & 4) > 0);
-						bs.set(pos++, ((buf[i] - 48) & 2) > 0);
-						bs.set(pos++, ((buf[i] - 48) & 1) > 0);
-					} else if (buf[i] >= 'A' && buf[i] <= 'F') {
-						bs.set(pos++, ((buf[i] - 55) & 8) > 0);
-						bs.set(pos++, ((buf[i] - 55) & 4) > 0);
-						bs.set(pos++, ((buf[i] - 55) & 2) > 0);
-						bs.set(pos++, ((buf[i] - 5) & 1) > 0);
-					} else if (buf[i] >= 'a' && buf[i] <= 'f') {
-						bs.set(pos++, ((buf[i] - 87) & 8) > 0);
-						bs.set(pos++, ((buf[i] - 87) & 4) > 0);
-						bs.set(pos++, ((buf[i] - 87) & 2) > 0);
-						bs.set(pos++, ((buf[i] - 87) & 1) > 0);
-					}
+			//ASCII (or EBCDIC) parsing
+			final byte[] values = digitValues;
+			for (int i = hdr + 4; i < hdr + 20; i++) {
+				bits1 = (bits1 << 4) | hexNibble(values, buf, i);
+			}
+			//Check for secondary bitmap and parse it if necessary
+			if (bits1 < 0) {
+				if (limit - start < minlength + 16) {
+					throw new ParseException("Insufficient length for secondary bitmap", minlength);
 				}
-				//Check for secondary bitmap and parse it if necessary
-				if (bs.get(0)) {
-					if (buf.length < minlength + 16) {
-						throw new ParseException("Insufficient length for secondary bitmap", minlength);
-					}
-					for (int i = isoHeaderLength + 20; i < isoHeaderLength + 36; i++) {
-						if (buf[i] >= '0' && buf[i] <= '9') {
-							bs.set(pos++, ((buf[i] - 48) & 8) > 0);
-							bs.set(pos++, ((buf[i] - 48) & 4) > 0);
-							bs.set(pos++, ((buf[i] - 48) & 2) > 0);
-							bs.set(pos++, ((buf[i] - 48) & 1) > 0);
-						} else if (buf[i] >= 'A' && buf[i] <= 'F') {
-							bs.set(pos++, ((buf[i] - 55) & 8) > 0);
-							bs.set(pos++, ((buf[i] - 55) & 4) > 0);
-							bs.set(pos++, ((buf[i] - 55) & 2) > 0);
-							bs.set(pos++, ((buf[i] - 5) & 1) > 0);
-						} else if (buf[i] >= 'a' && buf[i] <= 'f') {
-							bs.set(pos++, ((buf[i] - 87) & 8) > 0);
-							bs.set(pos++, ((buf[i] - 87) & 4) > 0);
-							bs.set(pos++, ((buf[i] - 87) & 2) > 0);
-							bs.set(pos++, ((buf[i] - 87) & 1) > 0);
-						}
-					}
-					pos = 16 + minlength;
-				} else {
-					pos = minlength;
+				for (int i = hdr + 20; i < hdr + 36; i++) {
+					bits2 = (bits2 << 4) | hexNibble(values, buf, i);
 				}
-			} catch (NumberFormatException ex) {
-				ParseException _e = new ParseException("Invalid ISO8583 bitmap", pos);
-				_e.initCause(ex);
-				throw _e;
+				pos = start + minlength + 16;
+			} else {
+				pos = start + minlength;
 			}
 		}
 		//Parse each field
-		Map<Integer, FieldParseInfo> parseGuide = parseMap.get(type);
-		List<Integer> index = parseOrder.get(type);
-		if (index == null) {
+		final ParsePlan plan = parsePlans.get(type);
+		if (plan == null) {
 			log.error(String.format("ISO8583 MessageFactory has no parsing guide for message type %04x [%s]",
-				type, new String(buf)));
+				type, TextCodec.decode(buf, start, limit - start, charset)));
 			return null;
 		}
 		//First we check if the message contains fields not specified in the parsing template
-		boolean abandon = false;
-		for (int i = 1; i < bs.length(); i++) {
-			if (bs.get(i) && !index.contains(i+1)) {
-				log.warn("ISO8583 MessageFactory cannot parse field {}: unspecified in parsing guide", i+1);
-				abandon = true;
+		final long unknown1 = bits1 & ~plan.allowed1 & Long.MAX_VALUE;
+		final long unknown2 = bits2 & ~plan.allowed2;
+		if (unknown1 != 0 || unknown2 != 0) {
+			for (int i = 2; i <= 128; i++) {
+				if (((i <= 64 ? unknown1 << (i - 1) : unknown2 << (i - 65)) & Long.MIN_VALUE) != 0) {
+					log.warn("ISO8583 MessageFactory cannot parse field {}: unspecified in parsing guide", i);
+				}
 			}
-		}
-		if (abandon) {
 			return m;
 		}
-		//Now we parse each field
-		if (useBinary) {
-			for (Integer i : index) {
-				FieldParseInfo fpi = parseGuide.get(i);
-				if (bs.get(i - 1)) {
-					if (ignoreLast && pos >= buf.length && i == index.get(index.size() -1)) {
-						log.warn("Field {} is not really in the message even though it's in the bitmap", i);
-						bs.clear(i - 1);
+		m.reserve(Long.bitCount(bits1 & wanted1 & Long.MAX_VALUE) + Long.bitCount(bits2 & wanted2));
+		//Now we parse each field; the parsers advance the cursor past each field they read
+		ParsePosition cursor = null;
+		//Lazily parsed fields only keep the boundaries of each field, decoding is deferred
+		final ByteBuffer frame = target != null ? buf : lazy || echo ? buf.duplicate() : null;
+		//Fields after the last one requested don't need to be read at all
+		final int stop = bounds != null ? 128 : lastField(bits1 & wanted1 & Long.MAX_VALUE, bits2 & wanted2);
+		//Walk the set bits only, skipping the secondary bitmap indicator
+		long bits = bits1 & Long.MAX_VALUE;
+		long wanted = wanted1;
+		for (int base = 1; base <= 65; base += 64) {
+			while (bits != 0) {
+				final int i = base + Long.numberOfLeadingZeros(bits);
+				if (i > stop) {
+					break;
+				}
+				final long bit = Long.MIN_VALUE >>> (i - base);
+				bits &= ~bit;
+				final FieldParseInfo fpi = plan.fields[i];
+				if (bounds != null) {
+					bounds[i] = pos;
+				}
+				if (ignoreLast && pos >= limit && i == plan.last) {
+					log.warn("Field {} is not really in the message even though it's in the bitmap", i);
+				} else if ((wanted & bit) == 0) {
+					pos = useBinary ? fpi.skipBinary(buf, pos) : fpi.skip(buf, pos);
+				} else if (lazy) {
+					final int end = useBinary ? fpi.skipBinary(buf, pos) : fpi.skip(buf, pos);
+					m.setField(i, target == null ? new LazyValue(frame, pos, end, useBinary, fpi, plan.custom[i])
+							: m.reusableValue(frame, pos, end, useBinary, fpi, plan.custom[i]));
+					pos = end;
+				} else {
+					if (cursor == null) {
+						cursor = new ParsePosition(pos);
 					} else {
-						IsoValue<?> val = fpi.parseBinary(buf, pos, getCustomField(i));
-						m.setField(i, val);
-						if (val != null) {
-							if (val.getType() == IsoType.NUMERIC || val.getType() == IsoType.DATE10
-									|| val.getType() == IsoType.DATE4 || val.getType() == IsoType.DATE_EXP
-									|| val.getType() == IsoType.AMOUNT || val.getType() == IsoType.TIME) {
-								pos += (val.getLength() / 2) + (val.getLength() % 2);
-							} else {
-								pos += val.getLength();
-							}
-							if (val.getType() == IsoType.LLVAR || val.getType() == IsoType.LLBIN) {
-								pos++;
-							} else if (val.getType() == IsoType.LLLVAR || val.getType() == IsoType.LLLBIN) {
-								pos += 2;
-							}
-						}
+						cursor.setIndex(pos);
 					}
-				}
-			}
-		} else {
-			for (Integer i : index) {
-				FieldParseInfo fpi = parseGuide.get(i);
-				if (bs.get(i - 1)) {
-					if (ignoreLast && pos >= buf.length && i == index.get(index.size() -1)) {
-						log.warn("Field {} is not really in the message even though it's in the bitmap", i);
-						bs.clear(i - 1);
+					final IsoValue<?> v = useBinary ? fpi.parseBinary(buf, cursor, plan.custom[i])
+							: fpi.parse(buf, cursor, plan.custom[i]);
+					if (echo && target == null) {
+						//Remember where the field is, to echo it in the response
+						LazyValue raw = new LazyValue(frame, pos, cursor.getIndex(), useBinary, fpi, plan.custom[i]);
+						raw.setDecoded(v);
+						m.setField(i, raw);
 					} else {
-						IsoValue<?> val = fpi.parse(buf, pos, getCustomField(i));
-						m.setField(i, val);
-						//To get the correct next position, we need to get the number of bytes, not chars
-						pos += val.toString().getBytes(fpi.getCharacterEncoding()).length;
-						if (val.getType() == IsoType.LLVAR || val.getType() == IsoType.LLBIN) {
-							pos += 2;
-						} else if (val.getType() == IsoType.LLLVAR || val.getType() == IsoType.LLLBIN) {
-							pos += 3;
-						}
+						m.setField(i, v);
 					}
+					pos = cursor.getIndex();
 				}
 			}
+			bits = bits2;
+			wanted = wanted2;
+		}
+		if (bounds != null) {
+			bounds[0] = pos;
 		}
 		m.setBinary(useBinary);
 		return m;
 	}
 
+	/** Creates a reader that parses the messages from the stream with this factory.
+	 * @param ins The stream to read from.
+	 * @param lengthBytes The size of the length header before each message, from 1 to 4 bytes.
+	 * @param isoHeaderLength The length of the ISO header in the messages. */
+	public IsoMessageReader newReader(InputStream ins, int lengthBytes, int isoHeaderLength) {
+		return new IsoMessageReader(this, ins, lengthBytes, isoHeaderLength, IsoMessageReader.DEFAULT_BUFFER_SIZE);
+	}
+
+	/** Creates a reader that parses the messages from the blocking channel with this factory.
+	 * @param channel The channel to read from.
+	 * @param lengthBytes The size of the length header before each message, from 1 to 4 bytes.
+	 * @param isoHeaderLength The length of the ISO header in the messages. */
+	public IsoMessageReader newReader(ReadableByteChannel channel, int lengthBytes, int isoHeaderLength) {
+		return new IsoMessageReader(this, channel, lengthBytes, isoHeaderLength, IsoMessageReader.DEFAULT_BUFFER_SIZE);
+	}
+
+	/** Returns the number of the last field set in the specified bitmap halves, or 0 if none is set. */
+	private static int lastField(long bits1, long bits2) {
+		if (bits2 != 0) {
+			return 128 - Long.numberOfTrailingZeros(bits2);
+		} else if (bits1 != 0) {
+			return 64 - Long.numberOfTrailingZeros(bits1);
+		}
+		return 0;
+	}
+
+	/** Returns the value of the hex digit at the specified position of the buffer,
+	 * using the table of digit values of the charset. */
+	private static int hexNibble(byte[] values, ByteBuffer buf, int pos) throws ParseException {
+		final int v = values[buf.get(pos) & 0xff];
+		if (v < 0) {
+			throw new ParseException("Invalid ISO8583 bitmap", pos);
+		}
+		return v;
+	}
+
 	/** Sets whether the factory should set the current date on newly created messages,
 	 * in field 7. Default is false. */
 	public void setAssignDate(boolean flag) {
@@ -416,6 +695,29 @@ public class MessageFactory {
 		return setDate;
 	}
 
+	/** Sets the clock used for the date of new messages (field 7), and by the DATE10 parsers to
+	 * tell the current year. With a {@link com.solab.iso8583.impl.CoarseClock}, all the messages
+	 * created in the same second get the same date, which is formatted only once when they're
+	 * written. The parsing guides are not modified; each factory uses its own DATE10 parsers
+	 * for its clock. The default is the system clock.
+	 * @throws UnsupportedOperationException if the factory has been frozen. */
+	public void setClock(Clock value) {
+		checkMutable();
+		clock = value == null ? Clock.SYSTEM : value;
+		compileParsePlans();
+	}
+	/** Returns the clock used for the date of new messages. */
+	public Clock getClock() {
+		return clock;
+	}
+
+	/** Throws an UnsupportedOperationException if the factory has been frozen. */
+	private void checkMutable() {
+		if (frozen) {
+			throw new UnsupportedOperationException("The factory is frozen");
+		}
+	}
+
 	/** Sets the generator that this factory will get new trace numbers from. There is no
 	 * default generator. */
 	public void setTraceNumberGenerator(TraceNumberGenerator value) {
@@ -451,16 +753,49 @@ public class MessageFactory {
 	}
 
 	/** Adds a message template to the factory. If there was a template for the same
-	 * message type as the new one, it is overwritten. */
+	 * message type as the new one, it is overwritten. The fields of the template that don't
+	 * have a CustomField are encoded once, and the new messages share them instead of
+	 * formatting a copy of each one every time they're written. */
 	public void addMessageTemplate(IsoMessage templ) {
 		if (templ != null) {
 			typeTemplates.put(templ.getType(), templ);
+			templateValues.put(templ.getType(), encodeTemplate(templ));
 		}
 	}
 
 	/** Removes the message template for the specified type. */
 	public void removeMessageTemplate(int type) {
 		typeTemplates.remove(type);
+		templateValues.remove(type);
+	}
+
+	/** Encodes the constant fields of all the templates again, in the current charset. */
+	private void encodeTemplates() {
+		for (IsoMessage templ : typeTemplates.values()) {
+			templateValues.put(templ.getType(), encodeTemplate(templ));
+		}
+	}
+
+	/** Encodes the fields of the template that are plain IsoValues without a CustomField,
+	 * in the factory's charset. Fields that can't be formatted are left to be copied, so that
+	 * they fail when the messages are written, as usual. */
+	private EncodedValue<?>[] encodeTemplate(IsoMessage templ) {
+		EncodedValue<?>[] encoded = new EncodedValue<?>[129];
+		for (int i = templ.nextField(1); i > 0; i = templ.nextField(i)) {
+			IsoValue<?> v = templ.getField(i);
+			if (v.getClass() == IsoValue.class && v.getEncoder() == null && v.getValue() != null) {
+				try {
+					encoded[i] = encode(v);
+				} catch (IllegalArgumentException ex) {
+					log.debug("Template field {} of type {} can't be encoded: {}", new Object[]{ i, v.getType(), ex.getMessage() });
+				}
+			}
+		}
+		return encoded;
+	}
+
+	private <T> EncodedValue<T> encode(IsoValue<T> v) {
+		return new EncodedValue<T>(v, charset);
 	}
 
 	/** Returns the template for the specified message type. This allows templates to be modified
@@ -470,13 +805,18 @@ public class MessageFactory {
 	}
 
 	/** Invoke this method in case you want to freeze the configuration, making message and parsing
-	 * templates, as well as iso headers and custom fields, immutable. */
+	 * templates, as well as iso headers and custom fields, immutable. After this, the factory
+	 * can be used to parse messages from several threads at the same time. */
 	public void freeze() {
+		//The templates may have been modified since they were added
+		encodeTemplates();
 		typeTemplates = Collections.unmodifiableMap(typeTemplates);
 		parseMap = Collections.unmodifiableMap(parseMap);
-		parseOrder = Collections.unmodifiableMap(parseOrder);
+		compileParsePlans();
+		parsePlans = Collections.unmodifiableMap(parsePlans);
 		isoHeaders = Collections.unmodifiableMap(isoHeaders);
 		customFields = Collections.unmodifiableMap(customFields);
+		frozen = true;
 	}
 
 	/** Sets a map with the fields that are to be expected when parsing a certain type of
@@ -490,7 +830,67 @@ public class MessageFactory {
 		index.addAll(map.keySet());
 		Collections.sort(index);
 		log.trace(String.format("ISO8583 MessageFactory adding parse map for type %04x with fields %s", type, index));
-		parseOrder.put(type, index);
+		parsePlans.put(type, new ParsePlan(map, customFields, minorUnits, primitiveNumerics, clock));
+	}
+
+	/** Compiles the parsing guides again, so that they use the current custom fields and options. */
+	private void compileParsePlans() {
+		for (Map.Entry<Integer, Map<Integer, FieldParseInfo>> e : parseMap.entrySet()) {
+			parsePlans.put(e.getKey(), new ParsePlan(e.getValue(), customFields, minorUnits, primitiveNumerics, clock));
+		}
+	}
+
+	/** The parsing guide for a message type, compiled into arrays indexed by field number
+	 * along with the custom field for each one, and a mask with the fields it can parse.
+	 * The AMOUNT and NUMERIC parsers are replaced by ones that read primitive values, if needed,
+	 * and the DATE10 parsers by ones that use the factory's clock. */
+	private static final class ParsePlan {
+		final FieldParseInfo[] fields = new FieldParseInfo[129];
+		final CustomField<?>[] custom = new CustomField<?>[129];
+		/** Fields 1 to 64, from the most significant bit down. */
+		final long allowed1;
+		/** Fields 65 to 128, from the most significant bit down. */
+		final long allowed2;
+		/** The highest field number in the guide. */
+		final int last;
+
+		@SuppressWarnings("rawtypes")
+		ParsePlan(Map<Integer, FieldParseInfo> guide, Map<Integer, CustomField> customFields,
+				boolean minorUnits, boolean primitiveNumerics, Clock clock) {
+			long a1 = 0;
+			long a2 = 0;
+			int l = 0;
+			for (Map.Entry<Integer, FieldParseInfo> e : guide.entrySet()) {
+				final int i = e.getKey();
+				if (i < 1 || i > 128) {
+					continue;
+				}
+				fields[i] = e.getValue();
+				FieldParseInfo replacement = null;
+				if (fields[i] instanceof AmountParseInfo && ((AmountParseInfo)fields[i]).isMinorUnits() != minorUnits) {
+					replacement = new AmountParseInfo(minorUnits);
+				} else if (fields[i] instanceof NumericParseInfo
+						&& ((NumericParseInfo)fields[i]).isPrimitive() != primitiveNumerics) {
+					replacement = new NumericParseInfo(fields[i].getLength(), primitiveNumerics);
+				} else if (fields[i] instanceof Date10ParseInfo && ((Date10ParseInfo)fields[i]).getClock() != clock) {
+					replacement = new Date10ParseInfo(clock);
+				}
+				if (replacement != null) {
+					replacement.setCharset(fields[i].getCharset());
+					fields[i] = replacement;
+				}
+				custom[i] = customFields.get(i);
+				if (i <= 64) {
+					a1 |= Long.MIN_VALUE >>> (i - 1);
+				} else {
+					a2 |= Long.MIN_VALUE >>> (i - 65);
+				}
+				l = Math.max(l, i);
+			}
+			allowed1 = a1;
+			allowed2 = a2;
+			last = l;
+		}
 	}
 
 }
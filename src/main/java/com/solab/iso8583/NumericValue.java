@@ -0,0 +1,116 @@
+/*
+j8583 A Java implementation of the ISO8583 protocol
+Copyright (C) 2007 Enrique Zamudio Lopez
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA
+*/
+package com.solab.iso8583;
+
+import java.nio.ByteBuffer;
+
+import com.solab.iso8583.util.TextCodec;
+
+/** A NUMERIC value of up to 18 digits stored as a primitive long. The digits are written
+ * directly from the number, padded with zeroes to the left, and the value is only boxed
+ * if it's requested with {@link #getValue()}; use {@link #getLong()} or
+ * {@link IsoMessage#getLong(int)} to read it without creating any objects.
+ *
+ * @author Enrique Zamudio
+ */
+public class NumericValue extends IsoValue<Number> {
+
+	/** The largest number of digits that always fits in a long. */
+	public static final int MAX_DIGITS = 18;
+	/** Powers of 10, to check that the values fit in their length. */
+	private static final long[] POWERS = new long[MAX_DIGITS + 1];
+	static {
+		POWERS[0] = 1;
+		for (int i = 1; i < POWERS.length; i++) {
+			POWERS[i] = POWERS[i - 1] * 10;
+		}
+	}
+
+	private final long value;
+
+	/** Creates a NUMERIC value with the specified number of digits.
+	 * @param value The value, which must not be negative.
+	 * @param length The number of digits of the field, from 1 to {@link #MAX_DIGITS}. */
+	public NumericValue(long value, int length) {
+		super(IsoType.NUMERIC, length, null);
+		if (length < 1 || length > MAX_DIGITS) {
+			throw new IllegalArgumentException("Length must be between 1 and 18 for a primitive NUMERIC: " + length);
+		}
+		if (!fits(value, length)) {
+			throw new IllegalArgumentException("Numeric value is larger than intended length: " + value + " LEN " + length);
+		}
+		this.value = value;
+	}
+
+	/** Returns true if the value can be stored in a NumericValue of the specified length. */
+	public static boolean fits(long value, int length) {
+		return length > 0 && length <= MAX_DIGITS && value >= 0 && value < POWERS[length];
+	}
+
+	/** Returns the value as a primitive. */
+	public long getLong() {
+		return value;
+	}
+
+	/** Returns the value as a Long. */
+	@Override
+	public Number getValue() {
+		return value;
+	}
+
+	@Override
+	public String toString() {
+		char[] c = new char[getLength()];
+		long v = value;
+		for (int i = c.length - 1; i >= 0; i--) {
+			c[i] = (char)((v % 10) + 48);
+			v /= 10;
+		}
+		return new String(c);
+	}
+
+	@Override
+	public int hashCode() {
+		return toString().hashCode();
+	}
+
+	@Override
+	public NumericValue clone() {
+		return (NumericValue)super.clone();
+	}
+
+	@Override
+	public int encodedLength(boolean binary) {
+		final int length = getLength();
+		return binary ? (length / 2) + (length % 2) : length;
+	}
+
+	@Override
+	void encode(ByteBuffer buf, boolean binary) {
+		final int length = getLength();
+		if (binary) {
+			//Two digits per byte, the least significant ones at the end;
+			//odd lengths leave the first nibble empty
+			putBcd(buf, value, (length / 2) + (length % 2));
+		} else {
+			putDigits(buf, value, length, TextCodec.digitBytes(getCharset()));
+		}
+	}
+
+}
@@ -0,0 +1,57 @@
+/*
+j8583 A Java implementation of the ISO8583 protocol
+Copyright (C) 2007 Enrique Zamudio Lopez
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA
+*/
+package com.solab.iso8583.impl;
+
+import com.solab.iso8583.Clock;
+
+/** A Clock that only advances in steps of a fixed resolution, one second by default.
+ * The date fields only have a precision of seconds, so the messages created during the
+ * same step get the same date, which is formatted only once.
+ *
+ * @author Enrique Zamudio
+ */
+public class CoarseClock implements Clock {
+
+	private final long resolution;
+
+	/** Creates a clock that advances once per second. */
+	public CoarseClock() {
+		this(1000);
+	}
+
+	/** Creates a clock that advances in steps of the specified number of milliseconds.
+	 * @throws IllegalArgumentException if the resolution is less than 1. */
+	public CoarseClock(long resolution) {
+		if (resolution < 1) {
+			throw new IllegalArgumentException("Resolution must be at least 1 ms");
+		}
+		this.resolution = resolution;
+	}
+
+	public long getResolution() {
+		return resolution;
+	}
+
+	/** Returns the system time, truncated to the resolution. */
+	public long currentTimeMillis() {
+		final long t = System.currentTimeMillis();
+		return t - (t % resolution);
+	}
+
+}
@@ -19,7 +19,9 @@ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA
 package com.solab.iso8583.parse;
 
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.text.ParseException;
+import java.text.ParsePosition;
 
 import com.solab.iso8583.CustomField;
 import com.solab.iso8583.IsoType;
@@ -35,17 +37,23 @@ public abstract class AlphaNumericFieldParseInfo extends FieldParseInfo {
 		super(t, len);
 	}
 
-	public IsoValue<?> parse(byte[] buf, int pos, CustomField<?> custom) throws ParseException, UnsupportedEncodingException {
+	public IsoValue<?> parse(ByteBuffer buf, ParsePosition cursor, CustomField<?> custom)
+	throws ParseException, UnsupportedEncodingException {
+		final int pos = cursor.getIndex();
 		if (pos < 0) {
 			throw new ParseException(String.format("Invalid ALPHA/NUM position %d", pos), pos);
-		} else if (pos+length > buf.length) {
+		} else if (pos+length > buf.limit()) {
 			throw new ParseException(String.format("Insufficient data for %s field of length %d, pos %d",
 				type, length, pos), pos);
 		}
-		String _v = new String(buf, pos, length, getCharacterEncoding());
+		String _v = decodeString(buf, pos, length, getCharset());
+		int end = pos + length;
 		if (_v.length() != length) {
-			_v = new String(buf, pos, buf.length-pos, getCharacterEncoding()).substring(0, length);
+			final int bytes = textLength(buf, pos, length);
+			_v = decodeString(buf, pos, bytes, getCharset());
+			end = pos + bytes;
 		}
+		cursor.setIndex(end);
 		if (custom == null) {
 			return new IsoValue<String>(type, _v, length, null);
 		} else {
@@ -58,4 +66,9 @@ public abstract class AlphaNumericFieldParseInfo extends FieldParseInfo {
 		}
 	}
 
+	@Override
+	public int skip(ByteBuffer buf, int pos) throws ParseException, UnsupportedEncodingException {
+		return pos + textLength(buf, pos, length);
+	}
+
 }
@@ -19,7 +19,9 @@ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA
 package com.solab.iso8583.parse;
 
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.text.ParseException;
+import java.text.ParsePosition;
 
 import com.solab.iso8583.CustomField;
 import com.solab.iso8583.IsoType;
@@ -35,24 +37,32 @@ public class AlphaParseInfo extends AlphaNumericFieldParseInfo {
 		super(IsoType.ALPHA, len);
 	}
 
-	public IsoValue<?> parseBinary(byte[] buf, int pos, CustomField<?> custom)
+	public IsoValue<?> parseBinary(ByteBuffer buf, ParsePosition cursor, CustomField<?> custom)
 	throws ParseException, UnsupportedEncodingException {
+		final int pos = cursor.getIndex();
 		if (pos < 0) {
 			throw new ParseException(String.format("Invalid bin ALPHA position %d", pos), pos);
-		} else if (pos+length > buf.length) {
+		} else if (pos+length > buf.limit()) {
 			throw new ParseException(String.format("Insufficient data for bin %s field of length %d, pos %d",
 				type, length, pos), pos);
 		}
+		final String _v = decodeString(buf, pos, length, getCharset());
+		cursor.setIndex(pos + length);
 		if (custom == null) {
-			return new IsoValue<String>(type, new String(buf, pos, length, getCharacterEncoding()), length, null);
+			return new IsoValue<String>(type, _v, length, null);
 		} else {
 			@SuppressWarnings({"unchecked", "rawtypes"})
-			IsoValue<?> v = new IsoValue(type, custom.decodeField(new String(buf, pos, length, getCharacterEncoding())), length, custom);
+			IsoValue<?> v = new IsoValue(type, custom.decodeField(_v), length, custom);
 			if (v.getValue() == null) {
-				return new IsoValue<String>(type, new String(buf, pos, length, getCharacterEncoding()), length, null);
+				return new IsoValue<String>(type, _v, length, null);
 			}
 			return v;
 		}
 	}
 
+	@Override
+	public int skipBinary(ByteBuffer buf, int pos) throws ParseException {
+		return fieldEnd(buf, pos, length);
+	}
+
 }
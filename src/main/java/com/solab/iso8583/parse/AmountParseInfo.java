@@ -19,51 +19,110 @@ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA
 package com.solab.iso8583.parse;
 
 import java.math.BigDecimal;
+import java.nio.ByteBuffer;
 import java.text.ParseException;
+import java.text.ParsePosition;
 
+import com.solab.iso8583.AmountValue;
 import com.solab.iso8583.CustomField;
 import com.solab.iso8583.IsoType;
 import com.solab.iso8583.IsoValue;
 
-/** This class is used to parse AMOUNT fields.
+/** This class is used to parse AMOUNT fields. The values are BigDecimals with two decimals,
+ * or {@link AmountValue}s if the parser reads amounts as minor units; in that case the digits
+ * are read directly as a number, without creating a String or a BigDecimal.
  * 
  * @author Enrique Zamudio
  */
 public class AmountParseInfo extends FieldParseInfo {
 
-	
+	private final boolean minorUnits;
+
 	public AmountParseInfo() {
+		this(false);
+	}
+
+	/** Creates a parser that reads the amounts as {@link AmountValue}s if the flag is true. */
+	public AmountParseInfo(boolean minorUnits) {
 		super(IsoType.AMOUNT, 12);
+		this.minorUnits = minorUnits;
+	}
+
+	/** Returns true if the amounts are read as minor units. */
+	public boolean isMinorUnits() {
+		return minorUnits;
 	}
 
 	public IsoValue<BigDecimal> parse(byte[] buf, int pos, CustomField<?> custom) throws ParseException {
+		return parse(ByteBuffer.wrap(buf), new ParsePosition(pos), custom);
+	}
+
+	public IsoValue<BigDecimal> parse(ByteBuffer buf, ParsePosition cursor, CustomField<?> custom)
+	throws ParseException {
+		final int pos = cursor.getIndex();
 		if (pos < 0) {
 			throw new ParseException(String.format("Invalid AMOUNT position %d", pos), pos);
 		}
-		if (pos+12 > buf.length) {
+		if (pos+12 > buf.limit()) {
 			throw new ParseException(String.format("Insufficient data for AMOUNT field, pos %d", pos), pos);
 		}
-		String c = new String(buf, pos, 12);
+		if (minorUnits) {
+			long v = 0;
+			for (int i = pos; i < pos + 12; i++) {
+				final int d = digit(buf, i);
+				if (d < 0 || d > 9) {
+					throw new ParseException(String.format("Cannot read amount '%s' pos %d",
+						decodeString(buf, pos, 12, getCharset()), pos), pos);
+				}
+				v = v * 10 + d;
+			}
+			cursor.setIndex(pos + 12);
+			return new AmountValue(v);
+		}
+		String c = decodeString(buf, pos, 12, getCharset());
 		try {
-			return new IsoValue<BigDecimal>(type, new BigDecimal(c).movePointLeft(2), null);
+			IsoValue<BigDecimal> v = new IsoValue<BigDecimal>(type, new BigDecimal(c).movePointLeft(2), null);
+			cursor.setIndex(pos + 12);
+			return v;
 		} catch (NumberFormatException ex) {
 			throw new ParseException(String.format("Cannot read amount '%s' pos %d", new String(c), pos), pos);
 		}
 	}
 
 	public IsoValue<BigDecimal> parseBinary(byte[] buf, int pos, CustomField<?> custom) throws ParseException {
+		return parseBinary(ByteBuffer.wrap(buf), new ParsePosition(pos), custom);
+	}
+
+	public IsoValue<BigDecimal> parseBinary(ByteBuffer buf, ParsePosition cursor, CustomField<?> custom)
+	throws ParseException {
+		final int pos = cursor.getIndex();
+		if (minorUnits) {
+			long v = 0;
+			for (int i = pos; i < pos + 6; i++) {
+				final int hi = (buf.get(i) & 0xf0) >> 4;
+				final int lo = buf.get(i) & 0x0f;
+				if (hi > 9 || lo > 9) {
+					throw new ParseException(String.format("Cannot read BCD amount at pos %d", pos), pos);
+				}
+				v = v * 100 + hi * 10 + lo;
+			}
+			cursor.setIndex(pos + 6);
+			return new AmountValue(v);
+		}
 		char[] digits = new char[13];
 		digits[10] = '.';
 		int start = 0;
 		for (int i = pos; i < pos + 6; i++) {
-			digits[start++] = (char)(((buf[i] & 0xf0) >> 4) + 48);
-			digits[start++] = (char)((buf[i] & 0x0f) + 48);
+			digits[start++] = (char)(((buf.get(i) & 0xf0) >> 4) + 48);
+			digits[start++] = (char)((buf.get(i) & 0x0f) + 48);
 			if (start == 10) {
 				start++;
 			}
 		}
 		try {
-			return new IsoValue<BigDecimal>(IsoType.AMOUNT, new BigDecimal(new String(digits)), null);
+			IsoValue<BigDecimal> v = new IsoValue<BigDecimal>(IsoType.AMOUNT, new BigDecimal(new String(digits)), null);
+			cursor.setIndex(pos + 6);
+			return v;
 		} catch (NumberFormatException ex) {
 			throw new ParseException(String.format("Cannot read amount '%s' pos %d", new String(digits), pos), pos);
 		}
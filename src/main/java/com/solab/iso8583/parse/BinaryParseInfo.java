@@ -19,7 +19,9 @@ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA
 package com.solab.iso8583.parse;
 
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.text.ParseException;
+import java.text.ParsePosition;
 
 import com.solab.iso8583.CustomField;
 import com.solab.iso8583.IsoType;
@@ -38,32 +40,44 @@ public class BinaryParseInfo extends FieldParseInfo {
 	}
 
 	@Override
-	public IsoValue<?> parse(byte[] buf, int pos, CustomField<?> custom)
+	public IsoValue<?> parse(ByteBuffer buf, ParsePosition cursor, CustomField<?> custom)
 			throws ParseException, UnsupportedEncodingException {
+		final int pos = cursor.getIndex();
 		if (pos < 0) {
 			throw new ParseException(String.format("Invalid BINARY position %d", pos), pos);
 		}
-		if (pos+(length*2) > buf.length) {
+		if (pos+(length*2) > buf.limit()) {
 			throw new ParseException(String.format("Insufficient data for BINARY field of length %d, pos %d",
 				length, pos), pos);
 		}
-		byte[] binval = HexCodec.hexDecode(new String(buf, pos, length*2));
 		if (custom == null) {
+			byte[] binval = decodeHex(buf, pos, length*2);
+			cursor.setIndex(pos + (length*2));
 			return new IsoValue<byte[]>(type, binval, binval.length, null);
 		} else {
 			@SuppressWarnings({"unchecked", "rawtypes"})
-			IsoValue<?> v = new IsoValue(type, custom.decodeField(new String(buf, pos, length*2, getCharacterEncoding())), length, custom);
+			IsoValue<?> v = new IsoValue(type, custom.decodeField(decodeString(buf, pos, length*2, getCharset())), length, custom);
 			if (v.getValue() == null) {
+				byte[] binval = decodeHex(buf, pos, length*2);
+				cursor.setIndex(pos + (length*2));
 				return new IsoValue<byte[]>(type, binval, binval.length, null);
 			}
+			cursor.setIndex(pos + (length*2));
 			return v;
 		}
 	}
 
 	@Override
-	public IsoValue<?> parseBinary(byte[] buf, int pos, CustomField<?> custom) throws ParseException {
-		byte[] _v = new byte[length];
-		System.arraycopy(buf, pos, _v, 0, length);
+	public IsoValue<?> parseBinary(ByteBuffer buf, ParsePosition cursor, CustomField<?> custom) throws ParseException {
+		final int pos = cursor.getIndex();
+		if (pos < 0) {
+			throw new ParseException(String.format("Invalid bin BINARY position %d", pos), pos);
+		} else if (pos+length > buf.limit()) {
+			throw new ParseException(String.format("Insufficient data for bin BINARY field of length %d, pos %d",
+				length, pos), pos);
+		}
+		byte[] _v = copyBytes(buf, pos, length);
+		cursor.setIndex(pos + length);
 		if (custom == null) {
 			return new IsoValue<byte[]>(type, _v, length, null);
 		} else {
@@ -76,4 +90,14 @@ public class BinaryParseInfo extends FieldParseInfo {
 		}
 	}
 
+	@Override
+	public int skip(ByteBuffer buf, int pos) throws ParseException {
+		return fieldEnd(buf, pos, length*2);
+	}
+
+	@Override
+	public int skipBinary(ByteBuffer buf, int pos) throws ParseException {
+		return fieldEnd(buf, pos, length);
+	}
+
 }
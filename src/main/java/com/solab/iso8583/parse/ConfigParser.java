@@ -154,7 +154,7 @@ public class ConfigParser {
 			NodeList fields = elem.getElementsByTagName("field");
 			IsoMessage m = new IsoMessage();
 			m.setType(type);
-			m.setCharacterEncoding(mfact.getCharacterEncoding());
+			m.setCharset(mfact.getCharset());
 			for (int j = 0; j < fields.getLength(); j++) {
 				Element f = (Element)fields.item(j);
 				int num = Integer.parseInt(f.getAttribute("num"));
@@ -188,7 +188,7 @@ public class ConfigParser {
 				if (f.getAttribute("length").length() > 0) {
 					length = Integer.parseInt(f.getAttribute("length"));
 				}
-				parseMap.put(num, FieldParseInfo.getInstance(itype, length, mfact.getCharacterEncoding()));
+				parseMap.put(num, FieldParseInfo.getInstance(itype, length, mfact.getCharset()));
 			}
 			mfact.setParseMap(type, parseMap);
 		}
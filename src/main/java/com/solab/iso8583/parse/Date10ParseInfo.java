@@ -18,10 +18,13 @@ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA
 */
 package com.solab.iso8583.parse;
 
+import java.nio.ByteBuffer;
 import java.text.ParseException;
+import java.text.ParsePosition;
 import java.util.Calendar;
 import java.util.Date;
 
+import com.solab.iso8583.Clock;
 import com.solab.iso8583.CustomField;
 import com.solab.iso8583.IsoType;
 import com.solab.iso8583.IsoValue;
@@ -37,54 +40,100 @@ public class Date10ParseInfo extends FieldParseInfo {
 	static {
 		FUTURE_TOLERANCE = Long.parseLong(System.getProperty("j8583.future.tolerance", "900000"));
 	}
+	private final Clock clock;
+	/** The last snapshot of the clock's time, unless it's the system clock, whose snapshot
+	 * is shared by all the date parsers. */
+	private volatile DateReference reference;
+
 	public Date10ParseInfo() {
+		this(Clock.SYSTEM);
+	}
+
+	/** Creates a parser that takes the current year from the specified clock. */
+	public Date10ParseInfo(Clock clock) {
 		super(IsoType.DATE10, 10);
+		this.clock = clock == null ? Clock.SYSTEM : clock;
+	}
+
+	/** Returns the clock that tells the current year, for the dates that are parsed. */
+	public Clock getClock() {
+		return clock;
+	}
+
+	/** Returns a snapshot of the clock's time that is at most a second old. */
+	private DateReference reference() {
+		if (clock == Clock.SYSTEM) {
+			return DateReference.get();
+		}
+		final DateReference ref = reference;
+		final DateReference current = DateReference.get(clock, ref);
+		if (current != ref) {
+			reference = current;
+		}
+		return current;
 	}
 
 	@Override
 	public IsoValue<Date> parse(byte[] buf, int pos, CustomField<?> custom)
 			throws ParseException {
+		return parse(ByteBuffer.wrap(buf), new ParsePosition(pos), custom);
+	}
+
+	@Override
+	public IsoValue<Date> parse(ByteBuffer buf, ParsePosition cursor, CustomField<?> custom)
+			throws ParseException {
+		final int pos = cursor.getIndex();
 		if (pos < 0) {
 			throw new ParseException(String.format("Invalid DATE10 position %d", pos), pos);
 		}
-		if (pos+10 > buf.length) {
+		if (pos+10 > buf.limit()) {
 			throw new ParseException(String.format("Insufficient data for DATE10 field, pos %d", pos), pos);
 		}
-		//A SimpleDateFormat in the case of dates won't help because of the missing data
-		//we have to use the current date for reference and change what comes in the buffer
-		Calendar cal = Calendar.getInstance();
-		//Set the month in the date
-		cal.set(Calendar.MONTH, ((buf[pos] - 48) * 10) + buf[pos + 1] - 49);
-		cal.set(Calendar.DATE, ((buf[pos + 2] - 48) * 10) + buf[pos + 3] - 48);
-		cal.set(Calendar.HOUR_OF_DAY, ((buf[pos + 4] - 48) * 10) + buf[pos + 5] - 48);
-		cal.set(Calendar.MINUTE, ((buf[pos + 6] - 48) * 10) + buf[pos + 7] - 48);
-		cal.set(Calendar.SECOND, ((buf[pos + 8] - 48) * 10) + buf[pos + 9] - 48);
-		cal.set(Calendar.MILLISECOND,0);
-		adjustWithFutureTolerance(cal);
-		return new IsoValue<Date>(type, cal.getTime(), null);
+		//The year is missing, so we use the current one unless that puts the date in the future
+		final long t = toMillis(reference(),
+				digits2(buf, pos),
+				digits2(buf, pos + 2),
+				digits2(buf, pos + 4),
+				digits2(buf, pos + 6),
+				digits2(buf, pos + 8));
+		cursor.setIndex(pos + 10);
+		return new IsoValue<Date>(type, new Date(t), null);
 	}
 
 	@Override
 	public IsoValue<Date> parseBinary(byte[] buf, int pos, CustomField<?> custom) throws ParseException {
-		int[] tens = new int[5];
-		int start = 0;
-		for (int i = pos; i < pos + tens.length; i++) {
-			tens[start++] = (((buf[i] & 0xf0) >> 4) * 10) + (buf[i] & 0x0f);
+		return parseBinary(ByteBuffer.wrap(buf), new ParsePosition(pos), custom);
+	}
+
+	@Override
+	public IsoValue<Date> parseBinary(ByteBuffer buf, ParsePosition cursor, CustomField<?> custom) throws ParseException {
+		final int pos = cursor.getIndex();
+		final long t = toMillis(reference(), bcd(buf, pos), bcd(buf, pos + 1),
+				bcd(buf, pos + 2), bcd(buf, pos + 3), bcd(buf, pos + 4));
+		cursor.setIndex(pos + 5);
+		return new IsoValue<Date>(type, new Date(t), null);
+	}
+
+	/** Returns the value of a byte with two BCD digits. */
+	static int bcd(ByteBuffer buf, int pos) {
+		final int b = buf.get(pos);
+		return (((b & 0xf0) >> 4) * 10) + (b & 0x0f);
+	}
+
+	/** Returns the instant of the specified date and time in the current year, or in the
+	 * previous one if that's further into the future than the tolerance. */
+	static long toMillis(DateReference ref, int month, int day, int hour, int minute, int second) {
+		long t = ref.millis(ref.year, month, day, hour, minute, second);
+		if (t - ref.now > FUTURE_TOLERANCE) {
+			//Feb 29 becomes Feb 28, as Calendar.add does
+			t = ref.millis(ref.year - 1, month,
+					month == 2 && day == 29 && !DateReference.isLeapYear(ref.year - 1) ? 28 : day,
+					hour, minute, second);
 		}
-		Calendar cal = Calendar.getInstance();
-		//A SimpleDateFormat in the case of dates won't help because of the missing data
-		//we have to use the current date for reference and change what comes in the buffer
-		//Set the month in the date
-		cal.set(Calendar.MONTH, tens[0] - 1);
-		cal.set(Calendar.DATE, tens[1]);
-		cal.set(Calendar.HOUR_OF_DAY, tens[2]);
-		cal.set(Calendar.MINUTE, tens[3]);
-		cal.set(Calendar.SECOND, tens[4]);
-		cal.set(Calendar.MILLISECOND,0);
-		adjustWithFutureTolerance(cal);
-		return new IsoValue<Date>(type, cal.getTime(), null);
+		return t;
 	}
 
+	/** Subtracts a year from the date if it's further into the future than the tolerance. */
 	public static void adjustWithFutureTolerance(Calendar cal) {
 		//We need to handle a small tolerance into the future (a couple of minutes)
 		long now = System.currentTimeMillis();
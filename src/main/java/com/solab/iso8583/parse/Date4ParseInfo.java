@@ -18,8 +18,9 @@ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA
 */
 package com.solab.iso8583.parse;
 
+import java.nio.ByteBuffer;
 import java.text.ParseException;
-import java.util.Calendar;
+import java.text.ParsePosition;
 import java.util.Date;
 
 import com.solab.iso8583.CustomField;
@@ -38,41 +39,38 @@ public class Date4ParseInfo extends FieldParseInfo {
 
 	@Override
 	public IsoValue<Date> parse(byte[] buf, int pos, CustomField<?> custom) throws ParseException {
+		return parse(ByteBuffer.wrap(buf), new ParsePosition(pos), custom);
+	}
+
+	@Override
+	public IsoValue<Date> parse(ByteBuffer buf, ParsePosition cursor, CustomField<?> custom) throws ParseException {
+		final int pos = cursor.getIndex();
 		if (pos < 0) {
 			throw new ParseException(String.format("Invalid DATE4 position %d", pos), pos);
 		}
-		if (pos+4 > buf.length) {
+		if (pos+4 > buf.limit()) {
 			throw new ParseException(String.format("Insufficient data for DATE4 field, pos %d", pos), pos);
 		}
-		Calendar cal = Calendar.getInstance();
-		cal.set(Calendar.HOUR, 0);
-		cal.set(Calendar.MINUTE, 0);
-		cal.set(Calendar.SECOND, 0);
-		cal.set(Calendar.MILLISECOND, 0);
-		//Set the month in the date
-		cal.set(Calendar.MONTH, ((buf[pos] - 48) * 10) + buf[pos + 1] - 49);
-		cal.set(Calendar.DATE, ((buf[pos + 2] - 48) * 10) + buf[pos + 3] - 48);
-		Date10ParseInfo.adjustWithFutureTolerance(cal);
-		return new IsoValue<Date>(type, cal.getTime(), null);
+		//Midnight of that date in the current year, or the previous one if it's in the future
+		final long t = Date10ParseInfo.toMillis(DateReference.get(),
+				digits2(buf, pos),
+				digits2(buf, pos + 2), 0, 0, 0);
+		cursor.setIndex(pos + 4);
+		return new IsoValue<Date>(type, new Date(t), null);
 	}
 
 	@Override
 	public IsoValue<Date> parseBinary(byte[] buf, int pos, CustomField<?> custom) throws ParseException {
-		int[] tens = new int[2];
-		int start = 0;
-		for (int i = pos; i < pos + tens.length; i++) {
-			tens[start++] = (((buf[i] & 0xf0) >> 4) * 10) + (buf[i] & 0x0f);
-		}
-		Calendar cal = Calendar.getInstance();
-		cal.set(Calendar.HOUR, 0);
-		cal.set(Calendar.MINUTE, 0);
-		cal.set(Calendar.SECOND, 0);
-		//Set the month in the date
-		cal.set(Calendar.MONTH, tens[0] - 1);
-		cal.set(Calendar.DATE, tens[1]);
-		cal.set(Calendar.MILLISECOND,0);
-		Date10ParseInfo.adjustWithFutureTolerance(cal);
-		return new IsoValue<Date>(type, cal.getTime(), null);
+		return parseBinary(ByteBuffer.wrap(buf), new ParsePosition(pos), custom);
+	}
+
+	@Override
+	public IsoValue<Date> parseBinary(ByteBuffer buf, ParsePosition cursor, CustomField<?> custom) throws ParseException {
+		final int pos = cursor.getIndex();
+		final long t = Date10ParseInfo.toMillis(DateReference.get(),
+				Date10ParseInfo.bcd(buf, pos), Date10ParseInfo.bcd(buf, pos + 1), 0, 0, 0);
+		cursor.setIndex(pos + 2);
+		return new IsoValue<Date>(type, new Date(t), null);
 	}
 
 }
@@ -18,8 +18,9 @@ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA
 */
 package com.solab.iso8583.parse;
 
+import java.nio.ByteBuffer;
 import java.text.ParseException;
-import java.util.Calendar;
+import java.text.ParsePosition;
 import java.util.Date;
 
 import com.solab.iso8583.CustomField;
@@ -38,40 +39,38 @@ public class DateExpParseInfo extends FieldParseInfo {
 
 	@Override
 	public IsoValue<Date> parse(byte[] buf, int pos, CustomField<?> custom) throws ParseException {
+		return parse(ByteBuffer.wrap(buf), new ParsePosition(pos), custom);
+	}
+
+	@Override
+	public IsoValue<Date> parse(ByteBuffer buf, ParsePosition cursor, CustomField<?> custom) throws ParseException {
+		final int pos = cursor.getIndex();
 		if (pos < 0) {
 			throw new ParseException(String.format("Invalid DATE_EXP position %d", pos), pos);
 		}
-		if (pos+4 > buf.length) {
+		if (pos+4 > buf.limit()) {
 			throw new ParseException(String.format("Insufficient data for DATE_EXP field, pos %d", pos), pos);
 		}
-		Calendar cal = Calendar.getInstance();
-		cal.set(Calendar.HOUR, 0);
-		cal.set(Calendar.MINUTE, 0);
-		cal.set(Calendar.SECOND, 0);
-		cal.set(Calendar.DATE, 1);
-		//Set the month in the date
-		cal.set(Calendar.YEAR, cal.get(Calendar.YEAR) - (cal.get(Calendar.YEAR) % 100)
-				+ ((buf[pos] - 48) * 10) + buf[pos + 1] - 48);
-		cal.set(Calendar.MONTH, ((buf[pos + 2] - 48) * 10) + buf[pos + 3] - 49);
-		return new IsoValue<Date>(type, cal.getTime(), null);
+		//Midnight of the first day of the month, in the current century
+		final DateReference ref = DateReference.get();
+		final long t = ref.millis(ref.year - (ref.year % 100) + digits2(buf, pos),
+				digits2(buf, pos + 2), 1, 0, 0, 0);
+		cursor.setIndex(pos + 4);
+		return new IsoValue<Date>(type, new Date(t), null);
 	}
 
 	@Override
 	public IsoValue<Date> parseBinary(byte[] buf, int pos, CustomField<?> custom) throws ParseException {
-		int[] tens = new int[2];
-		int start = 0;
-		for (int i = pos; i < pos + tens.length; i++) {
-			tens[start++] = (((buf[i] & 0xf0) >> 4) * 10) + (buf[i] & 0x0f);
-		}
-		Calendar cal = Calendar.getInstance();
-		cal.set(Calendar.HOUR, 0);
-		cal.set(Calendar.MINUTE, 0);
-		cal.set(Calendar.SECOND, 0);
-		cal.set(Calendar.DATE, 1);
-		//Set the month in the date
-		cal.set(Calendar.YEAR, cal.get(Calendar.YEAR)
-				- (cal.get(Calendar.YEAR) % 100) + tens[0]);
-		cal.set(Calendar.MONTH, tens[1] - 1);
-		return new IsoValue<Date>(type, cal.getTime(), null);
+		return parseBinary(ByteBuffer.wrap(buf), new ParsePosition(pos), custom);
+	}
+
+	@Override
+	public IsoValue<Date> parseBinary(ByteBuffer buf, ParsePosition cursor, CustomField<?> custom) throws ParseException {
+		final int pos = cursor.getIndex();
+		final DateReference ref = DateReference.get();
+		final long t = ref.millis(ref.year - (ref.year % 100) + Date10ParseInfo.bcd(buf, pos),
+				Date10ParseInfo.bcd(buf, pos + 1), 1, 0, 0, 0);
+		cursor.setIndex(pos + 2);
+		return new IsoValue<Date>(type, new Date(t), null);
 	}
 }
@@ -0,0 +1,115 @@
+/*
+j8583 A Java implementation of the ISO8583 protocol
+Copyright (C) 2007 Enrique Zamudio Lopez
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA
+*/
+package com.solab.iso8583.parse;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+import com.solab.iso8583.Clock;
+
+/** A snapshot of the current time, year and default time zone, used to decode the date
+ * fields with plain arithmetic instead of creating a Calendar for each one. The snapshot
+ * of the system clock is shared and taken again at most once per second; the parsers that
+ * use another clock keep their own snapshot of it.
+ *
+ * @author Enrique Zamudio
+ */
+final class DateReference {
+
+	private static final long DAY = 86400000L;
+	private static volatile DateReference current;
+
+	/** The time when the snapshot was taken. */
+	final long now;
+	final TimeZone zone;
+	/** The current year in the time zone. */
+	final int year;
+	/** The current date in the time zone, as days since the epoch. */
+	final long today;
+
+	private DateReference(long now) {
+		this.now = now;
+		zone = TimeZone.getDefault();
+		Calendar cal = Calendar.getInstance(zone);
+		cal.setTimeInMillis(now);
+		year = cal.get(Calendar.YEAR);
+		today = days(year, cal.get(Calendar.MONTH) + 1, cal.get(Calendar.DATE));
+	}
+
+	/** Returns the snapshot of the system clock, taking a new one if it's more than a second old. */
+	static DateReference get() {
+		final DateReference ref = current;
+		final DateReference now = get(Clock.SYSTEM, ref);
+		if (now != ref) {
+			current = now;
+		}
+		return now;
+	}
+
+	/** Returns the specified snapshot of the clock's time, or a new one if it's null or more
+	 * than a second older than the clock. */
+	static DateReference get(Clock clock, DateReference ref) {
+		final long t = clock.currentTimeMillis();
+		if (ref == null || t - ref.now >= 1000 || t < ref.now) {
+			return new DateReference(t);
+		}
+		return ref;
+	}
+
+	/** Returns the number of days from the epoch to the specified date. As with a lenient
+	 * Calendar, months and days out of range roll over into the next or previous years. */
+	static long days(int y, int month, int day) {
+		//Normalize the month and count years from March, so that leap days come last
+		int m = month - 1;
+		if (m < 0 || m > 11) {
+			final int years = m >= 0 ? m / 12 : (m - 11) / 12;
+			y += years;
+			m -= years * 12;
+		}
+		m++;
+		if (m <= 2) {
+			y--;
+		}
+		final int era = (y >= 0 ? y : y - 399) / 400;
+		final int yoe = y - era * 400;
+		final int doy = (153 * (m > 2 ? m - 3 : m + 9) + 2) / 5 + day - 1;
+		final int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+		return era * 146097L + doe - 719468;
+	}
+
+	static boolean isLeapYear(int y) {
+		return (y % 4 == 0 && y % 100 != 0) || y % 400 == 0;
+	}
+
+	/** Returns the instant of the specified local date and time, in the snapshot's time zone. */
+	long millis(int y, int month, int day, int hour, int minute, int second) {
+		return millis(days(y, month, day), hour, minute, second);
+	}
+
+	/** Returns the instant of the specified local time on the specified day (counted from the
+	 * epoch), in the snapshot's time zone. */
+	long millis(long days, int hour, int minute, int second) {
+		final long local = days * DAY + hour * 3600000L + minute * 60000L + second * 1000L;
+		//The offset can change between the standard and the local time (DST), so check it again
+		final int offset = zone.getOffset(local - zone.getRawOffset());
+		final int offset2 = zone.getOffset(local - offset);
+		return local - offset2;
+	}
+
+}
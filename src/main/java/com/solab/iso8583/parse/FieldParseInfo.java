@@ -19,21 +19,33 @@ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA
 package com.solab.iso8583.parse;
 
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.text.ParseException;
+import java.text.ParsePosition;
 
 import com.solab.iso8583.CustomField;
 import com.solab.iso8583.IsoType;
 import com.solab.iso8583.IsoValue;
+import com.solab.iso8583.util.HexCodec;
+import com.solab.iso8583.util.TextCodec;
 
 /** This class is used to parse a field from a message buffer. There are concrete subclasses for each IsoType.
+ * Instances keep no state between calls to the parse and skip methods; everything read from
+ * the buffer is kept in local variables, so one instance can be used by several threads at
+ * the same time, as long as its character encoding isn't changed while parsing.
  * 
  * @author Enrique Zamudio
  */
 public abstract class FieldParseInfo {
 
-	protected IsoType type;
-	protected int length;
-	private String encoding = System.getProperty("file.encoding");
+	protected final IsoType type;
+	protected final int length;
+	private Charset charset = Charset.defaultCharset();
+	/** The most bytes a character can take in the charset, or 0 if it's unknown. */
+	private int maxBytesPerChar = TextCodec.maxBytesPerChar(charset);
+	/** The value of each byte as a digit in the charset, see {@link TextCodec#digitValues(Charset)}. */
+	private byte[] digitValues = TextCodec.digitValues(charset);
 
 	/** Creates a new instance that parses a value of the specified type, with the specified length.
 	 * The length is only useful for ALPHA and NUMERIC types.
@@ -47,11 +59,26 @@ public abstract class FieldParseInfo {
 		length = len;
 	}
 
+	/** Sets the character encoding by name. See {@link #setCharset(Charset)}. */
 	public void setCharacterEncoding(String value) {
-		encoding = value;
+		setCharset(TextCodec.forName(value));
 	}
+	/** Returns the name of the charset used to decode text fields. */
 	public String getCharacterEncoding() {
-		return encoding;
+		return charset == null ? null : charset.name();
+	}
+
+	/** Sets the charset used to decode text fields. ASCII and ISO-8859-1 are decoded directly,
+	 * without a CharsetDecoder, and other single-byte charsets with a translation table.
+	 * The length headers and the digits of numeric and date fields are also read in this
+	 * charset, so EBCDIC fields can be parsed without converting them first. */
+	public void setCharset(Charset value) {
+		charset = value;
+		maxBytesPerChar = TextCodec.maxBytesPerChar(value);
+		digitValues = TextCodec.digitValues(value);
+	}
+	public Charset getCharset() {
+		return charset;
 	}
 
 	/** Returns the specified length for the data to be parsed. */
@@ -66,16 +93,174 @@ public abstract class FieldParseInfo {
 
 	/** Parses the character data from the buffer and returns the
 	 * IsoValue with the correct data type in it. */
-	public abstract IsoValue<?> parse(byte[] buf, int pos, CustomField<?> custom)
-	throws ParseException, UnsupportedEncodingException;
+	public IsoValue<?> parse(byte[] buf, int pos, CustomField<?> custom)
+	throws ParseException, UnsupportedEncodingException {
+		return parse(ByteBuffer.wrap(buf), new ParsePosition(pos), custom);
+	}
 
 	/** Parses binary data from the buffer, creating and returning an IsoValue of the configured
 	 * type and length. */
-	public abstract IsoValue<?> parseBinary(byte[] buf, int pos, CustomField<?> custom)
+	public IsoValue<?> parseBinary(byte[] buf, int pos, CustomField<?> custom)
+	throws ParseException, UnsupportedEncodingException {
+		return parseBinary(ByteBuffer.wrap(buf), new ParsePosition(pos), custom);
+	}
+
+	/** Parses the character data from the buffer and returns the IsoValue with the correct
+	 * data type in it. The position is an absolute index into the buffer and the data ends at
+	 * the buffer's limit; neither the buffer's position nor its limit are modified. */
+	public IsoValue<?> parse(ByteBuffer buf, int pos, CustomField<?> custom)
+	throws ParseException, UnsupportedEncodingException {
+		return parse(buf, new ParsePosition(pos), custom);
+	}
+
+	/** Parses binary data from the buffer, creating and returning an IsoValue of the configured
+	 * type and length. The position is an absolute index into the buffer and the data ends at
+	 * the buffer's limit; neither the buffer's position nor its limit are modified. */
+	public IsoValue<?> parseBinary(ByteBuffer buf, int pos, CustomField<?> custom)
+	throws ParseException, UnsupportedEncodingException {
+		return parseBinary(buf, new ParsePosition(pos), custom);
+	}
+
+	/** Parses the character data from the buffer, starting at the index of the specified
+	 * position, and returns the IsoValue with the correct data type in it. Upon return, the
+	 * index is updated to point to the byte right after the field (including its length
+	 * header, if any); if the data cannot be parsed, a ParseException is thrown and the index
+	 * is not modified. The buffer can be a heap or direct buffer, the data ends at its limit,
+	 * and neither the buffer's position nor its limit are modified. */
+	public abstract IsoValue<?> parse(ByteBuffer buf, ParsePosition pos, CustomField<?> custom)
 	throws ParseException, UnsupportedEncodingException;
 
+	/** Parses binary data from the buffer, starting at the index of the specified position,
+	 * and returns an IsoValue of the configured type and length. Upon return, the index is
+	 * updated to point to the byte right after the field; if the data cannot be parsed, a
+	 * ParseException is thrown and the index is not modified. */
+	public abstract IsoValue<?> parseBinary(ByteBuffer buf, ParsePosition pos, CustomField<?> custom)
+	throws ParseException, UnsupportedEncodingException;
+
+	/** Returns the position right after the field that starts at the specified position,
+	 * without decoding the field's contents. This default implementation skips the configured
+	 * length; variable-length types only read their length header.
+	 * @throws ParseException if the buffer does not contain the whole field. */
+	public int skip(ByteBuffer buf, int pos) throws ParseException, UnsupportedEncodingException {
+		return fieldEnd(buf, pos, length);
+	}
+
+	/** Returns the position right after the binary field that starts at the specified position,
+	 * without decoding the field's contents. This default implementation skips the BCD digits
+	 * of the configured length.
+	 * @throws ParseException if the buffer does not contain the whole field. */
+	public int skipBinary(ByteBuffer buf, int pos) throws ParseException, UnsupportedEncodingException {
+		return fieldEnd(buf, pos, (length / 2) + (length % 2));
+	}
+
+	/** Returns the position after the specified number of bytes, checking that the buffer
+	 * contains them. */
+	protected int fieldEnd(ByteBuffer buf, int pos, int len) throws ParseException {
+		if (pos < 0) {
+			throw new ParseException(String.format("Invalid %s position %d", type, pos), pos);
+		} else if (pos+len > buf.limit()) {
+			throw new ParseException(String.format("Insufficient data for %s field of length %d, pos %d",
+				type, len, pos), pos);
+		}
+		return pos + len;
+	}
+
+	/** Returns the value of the digit at the specified position, in the configured charset:
+	 * 0 to 9 for decimal digits, 10 to 15 for hex letters, or -1 for any other byte. */
+	protected final int digit(ByteBuffer buf, int pos) {
+		return digitValues[buf.get(pos) & 0xff];
+	}
+
+	/** Returns the value of the two decimal digits at the specified position. */
+	protected final int digits2(ByteBuffer buf, int pos) {
+		return (digit(buf, pos) * 10) + digit(buf, pos + 1);
+	}
+
+	/** Reads a length header made up of the specified number of digits. */
+	protected int readLengthHeader(ByteBuffer buf, int pos, int digits) throws ParseException {
+		fieldEnd(buf, pos, digits);
+		int len = 0;
+		for (int i = pos; i < pos + digits; i++) {
+			final int d = digit(buf, i);
+			if (d < 0 || d > 9) {
+				throw new ParseException(String.format("Invalid %s length '%s' pos %d",
+					type, decodeString(buf, pos, digits, charset), pos), pos);
+			}
+			len = len * 10 + d;
+		}
+		return len;
+	}
+
+	/** Reads a BCD-encoded length header of the specified number of bytes. */
+	protected int readBinaryLengthHeader(ByteBuffer buf, int pos, int bytes) throws ParseException {
+		fieldEnd(buf, pos, bytes);
+		int len = 0;
+		for (int i = pos; i < pos + bytes; i++) {
+			len = (len * 100) + (((buf.get(i) & 0xf0) >> 4) * 10) + (buf.get(i) & 0x0f);
+		}
+		return len;
+	}
+
+	/** Returns the number of bytes occupied by the specified number of characters at the specified
+	 * position, encoded with the configured character encoding. This is the same as the number of
+	 * characters unless the data contains multibyte characters. */
+	protected int textLength(ByteBuffer buf, int pos, int chars)
+	throws ParseException, UnsupportedEncodingException {
+		fieldEnd(buf, pos, chars);
+		if (maxBytesPerChar == 1 || decodeString(buf, pos, chars, charset).length() == chars) {
+			return chars;
+		}
+		//There are multibyte characters; the characters can't take more than this
+		int window = buf.limit() - pos;
+		if (maxBytesPerChar > 0 && chars * maxBytesPerChar < window) {
+			window = chars * maxBytesPerChar;
+		}
+		String _v = decodeString(buf, pos, window, charset);
+		if (_v.length() < chars) {
+			throw new ParseException(String.format("Insufficient data for %s field of length %d, pos %d",
+				type, chars, pos), pos);
+		}
+		return TextCodec.encode(_v.substring(0, chars), charset).length;
+	}
+
+	/** Creates a String from the specified region of the buffer, using the specified charset. */
+	protected static String decodeString(ByteBuffer buf, int pos, int len, Charset charset) {
+		return TextCodec.decode(buf, pos, len, charset);
+	}
+
+	/** Returns a new array containing the specified region of the buffer. */
+	protected static byte[] copyBytes(ByteBuffer buf, int pos, int len) {
+		byte[] b = new byte[len];
+		if (buf.hasArray()) {
+			System.arraycopy(buf.array(), buf.arrayOffset() + pos, b, 0, len);
+		} else {
+			ByteBuffer view = buf.duplicate();
+			view.position(pos);
+			view.get(b);
+		}
+		return b;
+	}
+
+	/** Decodes the specified number of hex digits from the buffer into a new array, without
+	 * creating a String. An odd number of digits is read as if it had a leading zero. */
+	protected byte[] decodeHex(ByteBuffer buf, int pos, int digits) throws ParseException {
+		byte[] b = new byte[(digits / 2) + (digits % 2)];
+		try {
+			HexCodec.hexDecode(buf, pos, digits, b, 0, digitValues);
+		} catch (IllegalArgumentException ex) {
+			throw new ParseException(ex.getMessage(), pos);
+		}
+		return b;
+	}
+
 	/** Returns a new FieldParseInfo instance that can parse the specified type. */
 	public static FieldParseInfo getInstance(IsoType t, int len, String encoding) {
+		return getInstance(t, len, TextCodec.forName(encoding));
+	}
+
+	/** Returns a new FieldParseInfo instance that can parse the specified type,
+	 * decoding text with the specified charset. */
+	public static FieldParseInfo getInstance(IsoType t, int len, Charset charset) {
 		FieldParseInfo fpi = null;
 		if (t == IsoType.ALPHA) {
 			fpi = new AlphaParseInfo(len);
@@ -105,7 +290,7 @@ public abstract class FieldParseInfo {
 		if (fpi == null) {
 	 		throw new IllegalArgumentException(String.format("Cannot parse type %s", t));
 		}
-		fpi.setCharacterEncoding(encoding);
+		fpi.setCharset(charset);
 		return fpi;
 	}
 
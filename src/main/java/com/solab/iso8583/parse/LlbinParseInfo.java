@@ -18,7 +18,9 @@ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA
 */
 package com.solab.iso8583.parse;
 
+import java.nio.ByteBuffer;
 import java.text.ParseException;
+import java.text.ParsePosition;
 
 import com.solab.iso8583.CustomField;
 import com.solab.iso8583.IsoType;
@@ -37,49 +39,46 @@ public class LlbinParseInfo extends FieldParseInfo {
 	}
 
 	@Override
-	public IsoValue<?> parse(byte[] buf, int pos, CustomField<?> custom) throws ParseException {
+	public IsoValue<?> parse(ByteBuffer buf, ParsePosition cursor, CustomField<?> custom) throws ParseException {
+		final int pos = cursor.getIndex();
 		if (pos < 0) {
 			throw new ParseException(String.format("Invalid LLBIN position %d", pos), pos);
-		} else if (pos+2 > buf.length) {
-			throw new ParseException("Insufficient LLBIN header", pos);
 		}
-		length = ((buf[pos] - 48) * 10) + (buf[pos + 1] - 48);
-		if (length < 0) {
-			throw new ParseException(String.format("Invalid LLBIN length %d pos %d", length, pos), pos);
+		final int len = readLengthHeader(buf, pos, 2);
+		if (len+pos+2 > buf.limit()) {
+			throw new ParseException(String.format("Insufficient data for LLBIN field, pos %d (LEN states '%s')",
+				pos, decodeString(buf, pos, 2, getCharset())), pos);
 		}
-		if (length+pos+2 > buf.length) {
-			throw new ParseException(String.format("Insufficient data for LLBIN field, pos %d (LEN states '%s')", pos, new String(buf, pos, 2)), pos);
-		}
-		byte[] binval = length == 0 ? new byte[0] : HexCodec.hexDecode(new String(buf, pos + 2, length));
 		if (custom == null) {
+			byte[] binval = decodeHex(buf, pos + 2, len);
+			cursor.setIndex(pos + 2 + len);
 			return new IsoValue<byte[]>(type, binval, binval.length, null);
 		} else {
 			@SuppressWarnings({"unchecked", "rawtypes"})
 			IsoValue<?> v = new IsoValue(type, custom.decodeField(
-				new String(buf, pos + 2, length)), binval.length, custom);
+				len == 0 ? "" : decodeString(buf, pos + 2, len, getCharset())), (len / 2) + (len % 2), custom);
 			if (v.getValue() == null) {
+				byte[] binval = decodeHex(buf, pos + 2, len);
+				cursor.setIndex(pos + 2 + len);
 				return new IsoValue<byte[]>(type, binval, binval.length, null);
 			}
+			cursor.setIndex(pos + 2 + len);
 			return v;
 		}
 	}
 
 	@Override
-	public IsoValue<?> parseBinary(byte[] buf, int pos, CustomField<?> custom) throws ParseException {
+	public IsoValue<?> parseBinary(ByteBuffer buf, ParsePosition cursor, CustomField<?> custom) throws ParseException {
+		final int pos = cursor.getIndex();
 		if (pos < 0) {
 			throw new ParseException(String.format("Invalid bin LLBIN position %d", pos), pos);
-		} else if (pos+1 > buf.length) {
-			throw new ParseException("Insufficient bin LLBIN header", pos);
-		}
-		length = (((buf[pos] & 0xf0) >> 4) * 10) + (buf[pos] & 0x0f);
-		if (length < 0) {
-			throw new ParseException(String.format("Invalid bin LLBIN length %d pos %d", length, pos), pos);
 		}
-		if (length+pos+1 > buf.length) {
+		final int len = readBinaryLengthHeader(buf, pos, 1);
+		if (len+pos+1 > buf.limit()) {
 			throw new ParseException(String.format("Insufficient data for bin LLBIN field, pos %d", pos), pos);
 		}
-		byte[] _v = new byte[length];
-		System.arraycopy(buf, pos+1, _v, 0, length);
+		byte[] _v = copyBytes(buf, pos + 1, len);
+		cursor.setIndex(pos + 1 + len);
 		if (custom == null) {
 			return new IsoValue<byte[]>(type, _v, null);
 		} else {
@@ -92,4 +91,14 @@ public class LlbinParseInfo extends FieldParseInfo {
 		}
 	}
 
+	@Override
+	public int skip(ByteBuffer buf, int pos) throws ParseException {
+		return fieldEnd(buf, pos + 2, readLengthHeader(buf, pos, 2));
+	}
+
+	@Override
+	public int skipBinary(ByteBuffer buf, int pos) throws ParseException {
+		return fieldEnd(buf, pos + 1, readBinaryLengthHeader(buf, pos, 1));
+	}
+
 }
@@ -18,7 +18,9 @@ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA
 */
 package com.solab.iso8583.parse;
 
+import java.nio.ByteBuffer;
 import java.text.ParseException;
+import java.text.ParsePosition;
 
 import com.solab.iso8583.CustomField;
 import com.solab.iso8583.IsoType;
@@ -37,52 +39,47 @@ public class LllbinParseInfo extends FieldParseInfo {
 	}
 
 	@Override
-	public IsoValue<?> parse(byte[] buf, int pos, CustomField<?> custom) throws ParseException {
+	public IsoValue<?> parse(ByteBuffer buf, ParsePosition cursor, CustomField<?> custom) throws ParseException {
+		final int pos = cursor.getIndex();
 		if (pos < 0) {
 			throw new ParseException(String.format("Invalid LLLBIN position %d", pos), pos);
-		} else if (pos+3 > buf.length) {
-			throw new ParseException("Insufficient LLLBIN header", pos);
 		}
-		if (!(Character.isDigit(buf[pos]) && Character.isDigit(buf[pos+1]) && Character.isDigit(buf[pos+2]))) {
-			throw new ParseException(String.format("Invalid LLLBIN length '%s' pos %d", new String(buf, pos, 3), pos), pos);
+		final int len = readLengthHeader(buf, pos, 3);
+		if (len+pos+3 > buf.limit()) {
+			throw new ParseException(String.format("Insufficient data for LLLBIN field, pos %d (LEN states '%s')",
+				pos, decodeString(buf, pos, 3, getCharset())), pos);
 		}
-		length = ((buf[pos] - 48) * 100) + ((buf[pos + 1] - 48) * 10) + (buf[pos + 2] - 48);
-		if (length < 0) {
-			throw new ParseException(String.format("Invalid LLLBIN length %d pos %d", length, pos), pos);
-		} else if (length+pos+3 > buf.length) {
-			throw new ParseException(String.format("Insufficient data for LLLBIN field, pos %d", pos), pos);
-		}
-		byte[] binval = length == 0 ? new byte[0] : HexCodec.hexDecode(new String(buf, pos + 3, length));
 		if (custom == null) {
+			byte[] binval = decodeHex(buf, pos + 3, len);
+			cursor.setIndex(pos + 3 + len);
 			return new IsoValue<byte[]>(type, binval, binval.length, null);
 		} else {
 			@SuppressWarnings({"unchecked", "rawtypes"})
 			IsoValue<?> v = new IsoValue(type, custom.decodeField(
-				length == 0 ? "" : new String(buf, pos + 3, length)), length, custom);
+				len == 0 ? "" : decodeString(buf, pos + 3, len, getCharset())), len, custom);
 			if (v.getValue() == null) {
 				//problems decoding? return the string
+				byte[] binval = decodeHex(buf, pos + 3, len);
+				cursor.setIndex(pos + 3 + len);
 				return new IsoValue<byte[]>(type, binval, binval.length, null);
 			}
+			cursor.setIndex(pos + 3 + len);
 			return v;
 		}
 	}
 
 	@Override
-	public IsoValue<?> parseBinary(byte[] buf, int pos, CustomField<?> custom) throws ParseException {
+	public IsoValue<?> parseBinary(ByteBuffer buf, ParsePosition cursor, CustomField<?> custom) throws ParseException {
+		final int pos = cursor.getIndex();
 		if (pos < 0) {
 			throw new ParseException(String.format("Invalid bin LLLBIN position %d", pos), pos);
-		} else if (pos+3 > buf.length) {
-			throw new ParseException("Insufficient bin LLLBIN header", pos);
-		}
-		length = ((buf[pos] & 0x0f) * 100) + (((buf[pos + 1] & 0xf0) >> 4) * 10) + (buf[pos + 1] & 0x0f);
-		if (length < 0) {
-			throw new ParseException(String.format("Invalid bin LLLBIN length %d pos %d", length, pos), pos);
 		}
-		if (length+pos+2 > buf.length) {
+		final int len = readBinaryLengthHeader(buf, pos, 2);
+		if (len+pos+2 > buf.limit()) {
 			throw new ParseException(String.format("Insufficient data for bin LLLBIN field, pos %d", pos), pos);
 		}
-		byte[] _v = new byte[length];
-		System.arraycopy(buf, pos+2, _v, 0, length);
+		byte[] _v = copyBytes(buf, pos + 2, len);
+		cursor.setIndex(pos + 2 + len);
 		if (custom == null) {
 			return new IsoValue<byte[]>(type, _v, null);
 		} else {
@@ -95,4 +92,14 @@ public class LllbinParseInfo extends FieldParseInfo {
 		}
 	}
 
+	@Override
+	public int skip(ByteBuffer buf, int pos) throws ParseException {
+		return fieldEnd(buf, pos + 3, readLengthHeader(buf, pos, 3));
+	}
+
+	@Override
+	public int skipBinary(ByteBuffer buf, int pos) throws ParseException {
+		return fieldEnd(buf, pos + 2, readBinaryLengthHeader(buf, pos, 2));
+	}
+
 }
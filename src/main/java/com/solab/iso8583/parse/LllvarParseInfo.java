@@ -19,7 +19,9 @@ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA
 package com.solab.iso8583.parse;
 
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.text.ParseException;
+import java.text.ParsePosition;
 
 import com.solab.iso8583.CustomField;
 import com.solab.iso8583.IsoType;
@@ -36,62 +38,69 @@ public class LllvarParseInfo extends FieldParseInfo {
 		super(IsoType.LLLVAR, 0);
 	}
 
-	public IsoValue<?> parse(byte[] buf, int pos, CustomField<?> custom)
+	public IsoValue<?> parse(ByteBuffer buf, ParsePosition cursor, CustomField<?> custom)
 	throws ParseException, UnsupportedEncodingException {
+		final int pos = cursor.getIndex();
 		if (pos < 0) {
 			throw new ParseException(String.format("Invalid LLLVAR position %d", pos), pos);
-		} else if (pos+3 > buf.length) {
-			throw new ParseException(String.format("Insufficient data for LLLVAR header, pos %d", pos), pos);
 		}
-		if (!(Character.isDigit(buf[pos]) && Character.isDigit(buf[pos+1]) && Character.isDigit(buf[pos+2]))) {
-			throw new ParseException(String.format("Invalid LLLVAR length '%s' pos %d",
-				new String(buf, pos, 3), pos), pos);
-		}
-		length = ((buf[pos] - 48) * 100) + ((buf[pos + 1] - 48) * 10) + (buf[pos + 2] - 48);
-		if (length < 0) {
-			throw new ParseException(String.format("Invalid LLLVAR length %d pos %d", length, pos), pos);
-		} else if (length+pos+3 > buf.length) {
+		final int len = readLengthHeader(buf, pos, 3);
+		if (len+pos+3 > buf.limit()) {
 			throw new ParseException(String.format("Insufficient data for LLLVAR field, pos %d", pos), pos);
 		}
-		String _v = length == 0 ? "" : new String(buf, pos + 3, length, getCharacterEncoding());
+		String _v = len == 0 ? "" : decodeString(buf, pos + 3, len, getCharset());
+		int end = pos + 3 + len;
 		//This is new: if the String's length is different from the specified length in the buffer,
-		//there are probably some extended characters. So we create a String from the rest of the buffer,
-		//and then cut it to the specified length.
-		if (_v.length() != length) {
-			_v = new String(buf, pos + 3, buf.length-pos-3, getCharacterEncoding()).substring(0, length);
+		//there are probably some extended characters. So we find out how many bytes the specified
+		//number of characters take, reading only as much of the buffer as they can need.
+		if (_v.length() != len) {
+			final int bytes = textLength(buf, pos + 3, len);
+			_v = decodeString(buf, pos + 3, bytes, getCharset());
+			end = pos + 3 + bytes;
 		}
+		cursor.setIndex(end);
 		if (custom == null) {
-			return new IsoValue<String>(type, _v, length, null);
+			return new IsoValue<String>(type, _v, len, null);
 		} else {
 			Object decoded = custom.decodeField(_v);
 			//If decode fails, return string; otherwise use the decoded object and its codec
-			return new IsoValue(type, decoded == null ? _v : decoded, length, decoded == null ? null : custom);
+			return new IsoValue(type, decoded == null ? _v : decoded, len, decoded == null ? null : custom);
 		}
 	}
 
-	public IsoValue<?> parseBinary(byte[] buf, int pos, CustomField<?> custom)
-			throws ParseException, UnsupportedEncodingException {
+	public IsoValue<?> parseBinary(ByteBuffer buf, ParsePosition cursor, CustomField<?> custom)
+	throws ParseException, UnsupportedEncodingException {
+		final int pos = cursor.getIndex();
 		if (pos < 0) {
 			throw new ParseException(String.format("Invalid bin LLLVAR position %d", pos), pos);
-		} else if (pos+3 > buf.length) {
-			throw new ParseException(String.format("Insufficient data for bin LLLVAR header, pos %d", pos), pos);
 		}
-		length = ((buf[pos] & 0x0f) * 100) + (((buf[pos + 1] & 0xf0) >> 4) * 10) + (buf[pos + 1] & 0x0f);
-		if (length < 0) {
-			throw new ParseException(String.format("Invalid bin LLLVAR length %d pos %d", length, pos), pos);
-		} else if (length+pos+2 > buf.length) {
+		final int len = readBinaryLengthHeader(buf, pos, 2);
+		if (len+pos+2 > buf.limit()) {
 			throw new ParseException(String.format("Insufficient data for bin LLLVAR field, pos %d", pos), pos);
 		}
+		final String _v = decodeString(buf, pos + 2, len, getCharset());
+		cursor.setIndex(pos + 2 + len);
 		if (custom == null) {
-			return new IsoValue<String>(type, new String(buf, pos + 2, length, getCharacterEncoding()), null);
+			return new IsoValue<String>(type, _v, null);
 		} else {
 			@SuppressWarnings({"unchecked", "rawtypes"})
-			IsoValue<?> v = new IsoValue(type, custom.decodeField(new String(buf, pos + 2, length, getCharacterEncoding())), custom);
+			IsoValue<?> v = new IsoValue(type, custom.decodeField(_v), custom);
 			if (v.getValue() == null) {
-				return new IsoValue<String>(type, new String(buf, pos + 2, length, getCharacterEncoding()), null);
+				return new IsoValue<String>(type, _v, null);
 			}
 			return v;
 		}
 	}
 
+	@Override
+	public int skip(ByteBuffer buf, int pos) throws ParseException, UnsupportedEncodingException {
+		final int len = readLengthHeader(buf, pos, 3);
+		return pos + 3 + textLength(buf, pos + 3, len);
+	}
+
+	@Override
+	public int skipBinary(ByteBuffer buf, int pos) throws ParseException {
+		return fieldEnd(buf, pos + 2, readBinaryLengthHeader(buf, pos, 2));
+	}
+
 }
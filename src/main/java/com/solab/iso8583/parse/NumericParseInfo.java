@@ -18,48 +18,100 @@ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA
 */
 package com.solab.iso8583.parse;
 
+import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.text.ParseException;
+import java.text.ParsePosition;
 
 import com.solab.iso8583.CustomField;
 import com.solab.iso8583.IsoType;
 import com.solab.iso8583.IsoValue;
+import com.solab.iso8583.NumericValue;
 
-/** This class is used to parse NUMERIC fields.
+/** This class is used to parse NUMERIC fields. Binary fields of up to 18 digits are parsed
+ * as {@link NumericValue}s. ASCII fields are parsed as Strings, unless the parser is set to
+ * read primitive values; in that case fields of up to 18 digits without a custom field are
+ * parsed as NumericValues too, as long as they only contain digits.
  * 
  * @author Enrique Zamudio
  */
 public class NumericParseInfo extends AlphaNumericFieldParseInfo {
 
+	private final boolean primitive;
+
 	public NumericParseInfo(int len) {
+		this(len, false);
+	}
+
+	/** Creates a parser that reads ASCII fields as {@link NumericValue}s if the flag is true. */
+	public NumericParseInfo(int len, boolean primitive) {
 		super(IsoType.NUMERIC, len);
+		this.primitive = primitive;
+	}
+
+	/** Returns true if ASCII fields are read as primitive values. */
+	public boolean isPrimitive() {
+		return primitive;
+	}
+
+	@Override
+	public IsoValue<?> parse(ByteBuffer buf, ParsePosition cursor, CustomField<?> custom)
+	throws ParseException, UnsupportedEncodingException {
+		final int pos = cursor.getIndex();
+		if (primitive && custom == null && length <= NumericValue.MAX_DIGITS
+				&& pos >= 0 && pos + length <= buf.limit()) {
+			long l = 0;
+			int i = pos;
+			for (; i < pos + length; i++) {
+				final int d = digit(buf, i);
+				if (d < 0 || d > 9) {
+					break;
+				}
+				l = l * 10 + d;
+			}
+			if (i == pos + length) {
+				cursor.setIndex(i);
+				return new NumericValue(l, length);
+			}
+		}
+		//Anything else is read as text
+		return super.parse(buf, cursor, custom);
 	}
 
 	public IsoValue<Number> parseBinary(byte[] buf, int pos, CustomField<?> custom) throws ParseException {
+		return parseBinary(ByteBuffer.wrap(buf), new ParsePosition(pos), custom);
+	}
+
+	public IsoValue<Number> parseBinary(ByteBuffer buf, ParsePosition cursor, CustomField<?> custom)
+	throws ParseException {
+		final int pos = cursor.getIndex();
+		final int end = pos + (length / 2) + (length % 2);
 		if (pos < 0) {
 			throw new ParseException(String.format("Invalid bin NUMERIC position %d", pos), pos);
-		} else if (pos+length > buf.length) {
+		} else if (end > buf.limit()) {
 			throw new ParseException(String.format("Insufficient data for bin %s field of length %d, pos %d",
 				type, length, pos), pos);
 		}
+		cursor.setIndex(end);
 		//A long covers up to 18 digits
-		if (length < 19) {
+		if (length <= NumericValue.MAX_DIGITS) {
 			long l = 0;
-			long power = 1L;
-			for (int i = pos + (length / 2) + (length % 2) - 1; i >= pos; i--) {
-				l += (buf[i] & 0x0f) * power;
-				power *= 10L;
-				l += ((buf[i] & 0xf0) >> 4) * power;
-				power *= 10L;
+			for (int i = pos; i < end; i++) {
+				l = (l * 100) + (((buf.get(i) & 0xf0) >> 4) * 10) + (buf.get(i) & 0x0f);
+			}
+			if (NumericValue.fits(l, length)) {
+				return new NumericValue(l, length);
 			}
+			//Invalid digits, keep the value as it was read
 			return new IsoValue<Number>(IsoType.NUMERIC, l, length, null);
 		} else {
 			//Use a BigInteger
 			char[] digits = new char[length];
 			int start = 0;
-			for (int i = pos; i < pos + (length / 2) + (length % 2); i++) {
-				digits[start++] = (char)(((buf[i] & 0xf0) >> 4) + 48);
-				digits[start++] = (char)((buf[i] & 0x0f) + 48);
+			for (int i = pos; i < end; i++) {
+				digits[start++] = (char)(((buf.get(i) & 0xf0) >> 4) + 48);
+				digits[start++] = (char)((buf.get(i) & 0x0f) + 48);
 			}
 			return new IsoValue<Number>(IsoType.NUMERIC, new BigInteger(new String(digits)), length, null);
 		}
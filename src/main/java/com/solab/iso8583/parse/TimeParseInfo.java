@@ -18,8 +18,9 @@ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA
 */
 package com.solab.iso8583.parse;
 
+import java.nio.ByteBuffer;
 import java.text.ParseException;
-import java.util.Calendar;
+import java.text.ParsePosition;
 import java.util.Date;
 
 import com.solab.iso8583.CustomField;
@@ -39,35 +40,44 @@ public class TimeParseInfo extends FieldParseInfo {
 
 	@Override
 	public IsoValue<Date> parse(byte[] buf, int pos, CustomField<?> custom) throws ParseException {
+		return parse(ByteBuffer.wrap(buf), new ParsePosition(pos), custom);
+	}
+
+	@Override
+	public IsoValue<Date> parse(ByteBuffer buf, ParsePosition cursor, CustomField<?> custom) throws ParseException {
+		final int pos = cursor.getIndex();
 		if (pos < 0) {
 			throw new ParseException(String.format("Invalid TIME position %d", pos), pos);
-		} else if (pos+6 > buf.length) {
+		} else if (pos+6 > buf.limit()) {
 			throw new ParseException(String.format("Insufficient data for TIME field, pos %d", pos), pos);
 		}
-		Calendar cal = Calendar.getInstance();
-		cal.set(Calendar.HOUR_OF_DAY, ((buf[pos] - 48) * 10) + buf[pos + 1] - 48);
-		cal.set(Calendar.MINUTE, ((buf[pos + 2] - 48) * 10) + buf[pos + 3] - 48);
-		cal.set(Calendar.SECOND, ((buf[pos + 4] - 48) * 10) + buf[pos + 5] - 48);
-		return new IsoValue<Date>(type, cal.getTime(), null);
+		//The time is set on the current date
+		final DateReference ref = DateReference.get();
+		final long t = ref.millis(ref.today, digits2(buf, pos),
+				digits2(buf, pos + 2),
+				digits2(buf, pos + 4));
+		cursor.setIndex(pos + 6);
+		return new IsoValue<Date>(type, new Date(t), null);
 	}
 
 	@Override
 	public IsoValue<Date> parseBinary(byte[] buf, int pos, CustomField<?> custom) throws ParseException {
+		return parseBinary(ByteBuffer.wrap(buf), new ParsePosition(pos), custom);
+	}
+
+	@Override
+	public IsoValue<Date> parseBinary(ByteBuffer buf, ParsePosition cursor, CustomField<?> custom) throws ParseException {
+		final int pos = cursor.getIndex();
 		if (pos < 0) {
 			throw new ParseException(String.format("Invalid bin TIME position %d", pos), pos);
-		} else if (pos+3 > buf.length) {
+		} else if (pos+3 > buf.limit()) {
 			throw new ParseException(String.format("Insufficient data for bin TIME field, pos %d", pos), pos);
 		}
-		int[] tens = new int[3];
-		int start = 0;
-		for (int i = pos; i < pos + 3; i++) {
-			tens[start++] = (((buf[i] & 0xf0) >> 4) * 10) + (buf[i] & 0x0f);
-		}
-		Calendar cal = Calendar.getInstance();
-		cal.set(Calendar.HOUR_OF_DAY, tens[0]);
-		cal.set(Calendar.MINUTE, tens[1]);
-		cal.set(Calendar.SECOND, tens[2]);
-		return new IsoValue<Date>(type, cal.getTime(), null);
+		final DateReference ref = DateReference.get();
+		final long t = ref.millis(ref.today, Date10ParseInfo.bcd(buf, pos),
+				Date10ParseInfo.bcd(buf, pos + 1), Date10ParseInfo.bcd(buf, pos + 2));
+		cursor.setIndex(pos + 3);
+		return new IsoValue<Date>(type, new Date(t), null);
 	}
 
 }
@@ -1,9 +1,30 @@
 package com.solab.iso8583.util;
 
-/** Utility class to perform HEX encoding/decoding of values. */
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/** Utility class to perform HEX encoding/decoding of values. The methods that work with
+ * byte arrays and buffers read and write ASCII hex digits at the specified offsets, using
+ * lookup tables, without creating any intermediate objects. */
 public class HexCodec {
 
 	static final char[] HEX = new char[]{ '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F' };
+	/** The two ASCII hex digits for each byte value, at 2*b and 2*b+1. */
+	private static final byte[] ENCODE = new byte[512];
+	/** The value of each ASCII hex digit, or -1 for any other byte. */
+	private static final byte[] DECODE = new byte[256];
+
+	static {
+		for (int i = 0; i < 256; i++) {
+			ENCODE[i * 2] = (byte)HEX[i >> 4];
+			ENCODE[(i * 2) + 1] = (byte)HEX[i & 0x0f];
+			DECODE[i] = -1;
+		}
+		for (int i = 0; i < 16; i++) {
+			DECODE[HEX[i]] = (byte)i;
+			DECODE[Character.toLowerCase(HEX[i])] = (byte)i;
+		}
+	}
 
 	public static String hexEncode(byte[] buffer) {
 		if (buffer.length == 0) {
@@ -60,4 +81,136 @@ public class HexCodec {
 		return buf;
 	}
 
+	/** Writes the hex digits of the specified region of the source array into the destination,
+	 * two for each byte.
+	 * @return The offset in the destination after the last digit written. */
+	public static int hexEncode(byte[] src, int off, int len, byte[] dest, int destOff) {
+		for (int i = off; i < off + len; i++) {
+			final int b = (src[i] & 0xff) << 1;
+			dest[destOff++] = ENCODE[b];
+			dest[destOff++] = ENCODE[b + 1];
+		}
+		return destOff;
+	}
+
+	/** Writes the hex digits of the specified region of the source array into the destination,
+	 * using the specified bytes for the digits 0 to F, such as the ones of an EBCDIC charset.
+	 * @return The offset in the destination after the last digit written. */
+	public static int hexEncode(byte[] src, int off, int len, byte[] dest, int destOff, byte[] digits) {
+		for (int i = off; i < off + len; i++) {
+			dest[destOff++] = digits[(src[i] & 0xf0) >> 4];
+			dest[destOff++] = digits[src[i] & 0x0f];
+		}
+		return destOff;
+	}
+
+	/** Puts the hex digits of the specified region of the source array in the buffer, at its
+	 * current position, which is advanced past them.
+	 * @throws BufferOverflowException if the buffer doesn't have room for all the digits,
+	 * in which case nothing is written. */
+	public static void hexEncode(byte[] src, int off, int len, ByteBuffer dest) {
+		if (dest.remaining() < len * 2) {
+			throw new BufferOverflowException();
+		}
+		if (dest.hasArray()) {
+			final int end = hexEncode(src, off, len, dest.array(), dest.arrayOffset() + dest.position());
+			dest.position(end - dest.arrayOffset());
+		} else {
+			for (int i = off; i < off + len; i++) {
+				final int b = (src[i] & 0xff) << 1;
+				dest.put(ENCODE[b]).put(ENCODE[b + 1]);
+			}
+		}
+	}
+
+	/** Puts the hex digits of the specified region of the source array in the buffer, using
+	 * the specified bytes for the digits 0 to F, such as the ones of an EBCDIC charset.
+	 * @throws BufferOverflowException if the buffer doesn't have room for all the digits,
+	 * in which case nothing is written. */
+	public static void hexEncode(byte[] src, int off, int len, ByteBuffer dest, byte[] digits) {
+		if (dest.remaining() < len * 2) {
+			throw new BufferOverflowException();
+		}
+		if (dest.hasArray()) {
+			final int end = hexEncode(src, off, len, dest.array(), dest.arrayOffset() + dest.position(), digits);
+			dest.position(end - dest.arrayOffset());
+		} else {
+			for (int i = off; i < off + len; i++) {
+				dest.put(digits[(src[i] & 0xf0) >> 4]).put(digits[src[i] & 0x0f]);
+			}
+		}
+	}
+
+	/** Decodes the specified number of hex digits from the source array into the destination.
+	 * If the number of digits is odd, the first byte only gets one digit, as if the digits
+	 * had a leading zero.
+	 * @return The number of bytes written, which is half the number of digits, rounded up.
+	 * @throws IllegalArgumentException if one of the bytes is not a hex digit. */
+	public static int hexDecode(byte[] src, int off, int len, byte[] dest, int destOff) {
+		return hexDecode(src, off, len, dest, destOff, DECODE);
+	}
+
+	/** Decodes the specified number of hex digits from the source array into the destination,
+	 * using the specified table with the value of each byte as a hex digit (-1 for the bytes that
+	 * are not digits), such as the one of an EBCDIC charset.
+	 * See {@link #hexDecode(byte[], int, int, byte[], int)}. */
+	public static int hexDecode(byte[] src, int off, int len, byte[] dest, int destOff, byte[] values) {
+		int d = destOff;
+		int i = off;
+		final int end = off + len;
+		if (len % 2 == 1) {
+			dest[d++] = (byte)nibble(src[i], i, values);
+			i++;
+		}
+		while (i < end) {
+			final int hi = values[src[i] & 0xff];
+			final int lo = values[src[i + 1] & 0xff];
+			if ((hi | lo) < 0) {
+				nibble(src[i], i, values);
+				nibble(src[i + 1], i + 1, values);
+			}
+			dest[d++] = (byte)((hi << 4) | lo);
+			i += 2;
+		}
+		return d - destOff;
+	}
+
+	/** Decodes the specified number of hex digits from the buffer, starting at the specified
+	 * absolute position, into the destination array. The buffer's position is not modified.
+	 * See {@link #hexDecode(byte[], int, int, byte[], int)}. */
+	public static int hexDecode(ByteBuffer src, int pos, int len, byte[] dest, int destOff) {
+		return hexDecode(src, pos, len, dest, destOff, DECODE);
+	}
+
+	/** Decodes the specified number of hex digits from the buffer, starting at the specified
+	 * absolute position, into the destination array, using the specified table with the value
+	 * of each byte as a hex digit. The buffer's position is not modified.
+	 * See {@link #hexDecode(byte[], int, int, byte[], int, byte[])}. */
+	public static int hexDecode(ByteBuffer src, int pos, int len, byte[] dest, int destOff, byte[] values) {
+		if (src.hasArray()) {
+			return hexDecode(src.array(), src.arrayOffset() + pos, len, dest, destOff, values);
+		}
+		int d = destOff;
+		int i = pos;
+		final int end = pos + len;
+		if (len % 2 == 1) {
+			dest[d++] = (byte)nibble(src.get(i), i, values);
+			i++;
+		}
+		while (i < end) {
+			dest[d++] = (byte)((nibble(src.get(i), i, values) << 4) | nibble(src.get(i + 1), i + 1, values));
+			i += 2;
+		}
+		return d - destOff;
+	}
+
+	/** Returns the value of a hex digit, or throws an exception if it's not one. */
+	private static int nibble(byte b, int pos, byte[] values) {
+		final int v = values[b & 0xff];
+		if (v < 0) {
+			throw new IllegalArgumentException(String.format("Invalid hex digit 0x%02x at %d", b & 0xff, pos));
+		}
+		return v;
+	}
+
 }
@@ -0,0 +1,382 @@
+package com.solab.iso8583.util;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/** Utility class to convert text fields between bytes and Strings. ASCII and ISO-8859-1 have
+ * one byte per character, so they are converted with plain loops, without going through a
+ * CharsetDecoder or CharsetEncoder; other single-byte charsets, such as the EBCDIC code pages
+ * (Cp037, Cp1047, etc), are converted with 256-entry translation tables that are computed
+ * once per charset. Any other charset is handled by the JDK. A null charset means the
+ * platform's default.
+ *
+ * The digits and hex letters that make up the structure of a message (message type, bitmap,
+ * length headers and numeric fields) are also converted with tables, so that a message can
+ * be entirely encoded in EBCDIC. */
+public class TextCodec {
+
+	public static final Charset US_ASCII = Charset.forName("US-ASCII");
+	public static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+	public static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/** The ASCII hex digits, in the order of their values. */
+	private static final byte[] ASCII_DIGITS = new byte[]{ '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F' };
+	/** The value of each ASCII hex digit, or -1 for any other byte. */
+	private static final byte[] ASCII_VALUES = new byte[256];
+
+	/** The tables of the single-byte charsets; other charsets are mapped to NONE. */
+	private static final ConcurrentMap<Charset, Table> tables = new ConcurrentHashMap<Charset, Table>();
+	private static final Table NONE = new Table();
+
+	static {
+		short[] ascii = new short[256];
+		for (int i = 0; i < 256; i++) {
+			ascii[i] = (short)i;
+		}
+		digitValues(ascii, ASCII_VALUES);
+	}
+
+	/** Returns true if the charset is one of those that are converted directly. */
+	public static boolean isSingleByte(Charset cs) {
+		return US_ASCII.equals(cs) || ISO_8859_1.equals(cs);
+	}
+
+	/** Returns true if the digits of the charset are not encoded as in ASCII, which is
+	 * the case with EBCDIC. */
+	public static boolean isEbcdic(Charset cs) {
+		return digitBytes(cs) != ASCII_DIGITS;
+	}
+
+	/** Returns the maximum number of bytes that the charset uses for a character,
+	 * or 0 if it's unknown. */
+	public static int maxBytesPerChar(Charset cs) {
+		if (cs == null) {
+			cs = Charset.defaultCharset();
+		}
+		if (isSingleByte(cs) || table(cs) != null) {
+			return 1;
+		} else if (!cs.canEncode()) {
+			return 0;
+		}
+		return (int)Math.ceil(cs.newEncoder().maxBytesPerChar());
+	}
+
+	/** Returns the bytes that encode the hex digits 0 to F in the charset, indexed by value.
+	 * The array must not be modified. */
+	public static byte[] digitBytes(Charset cs) {
+		final Table t = table(cs);
+		return t == null ? ASCII_DIGITS : t.digits;
+	}
+
+	/** Returns the value of each byte as a hex digit in the charset, indexed by the byte
+	 * as an unsigned number: 0 to 9 for the decimal digits, 10 to 15 for the letters A to F
+	 * (upper or lower case), and -1 for any other byte. The array must not be modified. */
+	public static byte[] digitValues(Charset cs) {
+		final Table t = table(cs);
+		return t == null ? ASCII_VALUES : t.values;
+	}
+
+	/** Creates a String from the specified region of the array. */
+	public static String decode(byte[] buf, int off, int len, Charset cs) {
+		if (US_ASCII.equals(cs)) {
+			char[] c = new char[len];
+			for (int i = 0; i < len; i++) {
+				final byte b = buf[off + i];
+				//Same replacement the JDK decoder uses for malformed input
+				c[i] = b < 0 ? '\uFFFD' : (char)b;
+			}
+			return new String(c);
+		} else if (ISO_8859_1.equals(cs)) {
+			char[] c = new char[len];
+			for (int i = 0; i < len; i++) {
+				c[i] = (char)(buf[off + i] & 0xff);
+			}
+			return new String(c);
+		}
+		final Table t = table(cs);
+		if (t != null) {
+			char[] c = new char[len];
+			for (int i = 0; i < len; i++) {
+				c[i] = t.chars[buf[off + i] & 0xff];
+			}
+			return new String(c);
+		}
+		return cs == null ? new String(buf, off, len) : new String(buf, off, len, cs);
+	}
+
+	/** Creates a String from the specified region of the buffer, which is read at absolute
+	 * positions. Heap buffers are read in place; direct buffers are only copied if the charset
+	 * is not converted directly or with a table. */
+	public static String decode(ByteBuffer buf, int pos, int len, Charset cs) {
+		if (buf.hasArray()) {
+			return decode(buf.array(), buf.arrayOffset() + pos, len, cs);
+		} else if (isSingleByte(cs)) {
+			final boolean ascii = US_ASCII.equals(cs);
+			char[] c = new char[len];
+			for (int i = 0; i < len; i++) {
+				final byte b = buf.get(pos + i);
+				c[i] = ascii && b < 0 ? '\uFFFD' : (char)(b & 0xff);
+			}
+			return new String(c);
+		}
+		final Table t = table(cs);
+		if (t != null) {
+			char[] c = new char[len];
+			for (int i = 0; i < len; i++) {
+				c[i] = t.chars[buf.get(pos + i) & 0xff];
+			}
+			return new String(c);
+		}
+		byte[] b = new byte[len];
+		ByteBuffer view = buf.duplicate();
+		view.position(pos);
+		view.get(b);
+		return decode(b, 0, len, cs);
+	}
+
+	/** Returns true if the specified region of the buffer decodes to the String. Single-byte
+	 * charsets, as well as ASCII text in UTF-8, are compared without decoding the bytes. */
+	public static boolean equals(ByteBuffer buf, int pos, int len, String s, Charset cs) {
+		if (cs == null) {
+			cs = Charset.defaultCharset();
+		}
+		final Table t = table(cs);
+		if (t != null || isSingleByte(cs) || UTF_8.equals(cs)) {
+			final boolean ascii = !ISO_8859_1.equals(cs);
+			int i = 0;
+			for (; i < len && i < s.length(); i++) {
+				final byte b = buf.get(pos + i);
+				if (t == null && ascii && b < 0) {
+					//Multibyte UTF-8, or a replacement char in ASCII
+					break;
+				}
+				if ((t == null ? (char)(b & 0xff) : t.chars[b & 0xff]) != s.charAt(i)) {
+					return false;
+				}
+			}
+			if (i == len || i == s.length()) {
+				return len == s.length();
+			}
+		}
+		return s.equals(decode(buf, pos, len, cs));
+	}
+
+	/** Encodes the String with the charset. */
+	public static byte[] encode(String s, Charset cs) {
+		final int max = US_ASCII.equals(cs) ? 0x7f : ISO_8859_1.equals(cs) ? 0xff : 0;
+		if (max > 0) {
+			byte[] b = new byte[s.length()];
+			int i = 0;
+			for (; i < b.length; i++) {
+				final char c = s.charAt(i);
+				if (c > max) {
+					break;
+				}
+				b[i] = (byte)c;
+			}
+			if (i == b.length) {
+				return b;
+			}
+			//Characters that can't be encoded are replaced by the JDK
+		} else {
+			final Table t = table(cs);
+			if (t != null) {
+				byte[] b = new byte[s.length()];
+				int i = 0;
+				for (; i < b.length; i++) {
+					final char c = s.charAt(i);
+					if (c > 0xff || t.bytes[c] < 0) {
+						break;
+					}
+					b[i] = (byte)t.bytes[c];
+				}
+				if (i == b.length) {
+					return b;
+				}
+			}
+		}
+		return cs == null ? s.getBytes() : s.getBytes(cs);
+	}
+
+	/** Puts the characters of the String between start (inclusive) and end (exclusive) in the
+	 * buffer, encoded with the charset, advancing the buffer's position. Single-byte charsets,
+	 * and ASCII text in UTF-8, are encoded straight into the buffer. */
+	public static void encode(String s, int start, int end, Charset cs, ByteBuffer dest) {
+		final int pos = dest.position();
+		final int max = US_ASCII.equals(cs) ? 0x7f : ISO_8859_1.equals(cs) ? 0xff : UTF_8.equals(cs) ? 0x7f : 0;
+		final Table t = max > 0 ? null : table(cs);
+		if (max > 0 || t != null) {
+			int i = start;
+			for (; i < end; i++) {
+				final char c = s.charAt(i);
+				if (t == null) {
+					if (c > max) {
+						break;
+					}
+					dest.put((byte)c);
+				} else {
+					if (c > 0xff || t.bytes[c] < 0) {
+						break;
+					}
+					dest.put((byte)t.bytes[c]);
+				}
+			}
+			if (i == end) {
+				return;
+			}
+			//Start over with the JDK
+			dest.position(pos);
+		}
+		dest.put(encode(s.substring(start, end), cs));
+	}
+
+	/** Returns the byte that encodes a space in the charset, or -1 if the charset is not
+	 * single-byte, UTF-8 or ASCII. */
+	public static int spaceByte(Charset cs) {
+		if (cs == null) {
+			cs = Charset.defaultCharset();
+		}
+		if (isSingleByte(cs) || UTF_8.equals(cs)) {
+			return ' ';
+		}
+		final Table t = table(cs);
+		return t == null ? -1 : t.bytes[' '];
+	}
+
+	/** Returns the number of bytes of the String encoded with the charset. Single-byte
+	 * charsets and UTF-8 are measured without encoding the String. */
+	public static int encodedLength(String s, Charset cs) {
+		if (cs == null) {
+			cs = Charset.defaultCharset();
+		}
+		final int n = s.length();
+		if (UTF_8.equals(cs)) {
+			int len = 0;
+			for (int i = 0; i < n; i++) {
+				final char c = s.charAt(i);
+				if (c < 0x80) {
+					len++;
+				} else if (c < 0x800) {
+					len += 2;
+				} else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+					len += 4;
+					i++;
+				} else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+					//replaced with '?'
+					len++;
+				} else {
+					len += 3;
+				}
+			}
+			return len;
+		} else if (isSingleByte(cs) || table(cs) != null) {
+			//One byte per char, except for surrogate pairs, which are replaced with a single byte
+			for (int i = 0; i < n; i++) {
+				final char c = s.charAt(i);
+				if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+					return encode(s, cs).length;
+				}
+			}
+			return n;
+		}
+		return encode(s, cs).length;
+	}
+
+	/** Returns the charset with the specified name, or null if the name is null. */
+	public static Charset forName(String name) {
+		return name == null ? null : Charset.forName(name);
+	}
+
+	/** Returns the translation tables for the charset, or null if it's converted directly
+	 * or it's not a single-byte charset. */
+	private static Table table(Charset cs) {
+		if (cs == null || isSingleByte(cs)) {
+			return null;
+		}
+		Table t = tables.get(cs);
+		if (t == null) {
+			t = Table.create(cs);
+			Table prev = tables.putIfAbsent(cs, t == null ? NONE : t);
+			if (prev != null) {
+				t = prev;
+			}
+		}
+		return t == NONE ? null : t;
+	}
+
+	/** Fills the table with the value of each byte as a hex digit, given the byte of each
+	 * character from 0 to 255 (-1 for the characters that can't be encoded). */
+	private static void digitValues(short[] bytes, byte[] values) {
+		for (int i = 0; i < 256; i++) {
+			values[i] = -1;
+		}
+		for (int i = 0; i < 16; i++) {
+			values[bytes[ASCII_DIGITS[i]]] = (byte)i;
+			//lower case hex letters are also accepted when parsing
+			final int lower = i < 10 ? -1 : bytes[Character.toLowerCase((char)ASCII_DIGITS[i])];
+			if (lower >= 0) {
+				values[lower] = (byte)i;
+			}
+		}
+	}
+
+	/** The translation tables of a single-byte charset. */
+	private static class Table {
+		/** The character of each byte. */
+		final char[] chars = new char[256];
+		/** The byte of each character from 0 to 255, or -1 if the charset can't encode it
+		 * in a way that decodes back to the same character. */
+		final short[] bytes = new short[256];
+		byte[] digits;
+		byte[] values;
+
+		/** Creates the tables of the charset, or returns null if it's not single-byte
+		 * or it can't encode the hex digits. */
+		static Table create(Charset cs) {
+			if (!cs.canEncode() || cs.newEncoder().maxBytesPerChar() != 1.0f) {
+				return null;
+			}
+			Table t = new Table();
+			byte[] b = new byte[256];
+			for (int i = 0; i < 256; i++) {
+				b[i] = (byte)i;
+				t.bytes[i] = -1;
+			}
+			final String all = new String(b, cs);
+			if (all.length() != 256) {
+				return null;
+			}
+			all.getChars(0, 256, t.chars, 0);
+			//The JDK's encoder decides which byte each character is written as
+			for (int i = 0; i < 256; i++) {
+				final char c = t.chars[i];
+				if (c <= 0xff && c != '\uFFFD' && t.bytes[c] < 0) {
+					final byte[] e = String.valueOf(c).getBytes(cs);
+					if (e.length == 1 && t.chars[e[0] & 0xff] == c) {
+						t.bytes[c] = (short)(e[0] & 0xff);
+					}
+				}
+			}
+			t.digits = new byte[16];
+			for (int i = 0; i < 16; i++) {
+				final int e = t.bytes[ASCII_DIGITS[i]];
+				if (e < 0) {
+					return null;
+				}
+				t.digits[i] = (byte)e;
+			}
+			if (Arrays.equals(t.digits, ASCII_DIGITS)) {
+				t.digits = ASCII_DIGITS;
+				t.values = ASCII_VALUES;
+			} else {
+				t.values = new byte[256];
+				digitValues(t.bytes, t.values);
+			}
+			return t;
+		}
+	}
+
+}
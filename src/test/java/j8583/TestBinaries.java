@@ -12,7 +12,9 @@ import org.junit.Before;
 import org.junit.Test;
 
 import com.solab.iso8583.IsoMessage;
+import com.solab.iso8583.IsoValue;
 import com.solab.iso8583.MessageFactory;
+import com.solab.iso8583.parse.NumericParseInfo;
 import com.solab.iso8583.util.HexCodec;
 
 /** Test binary message encoding and binary fields. */
@@ -85,4 +87,61 @@ public class TestBinaries {
 		Assert.assertEquals(bin.getObjectValue(7).toString(), bin2.getObjectValue(7).toString());
 	}
 
+	/** Parses ASCII and binary messages lazily and checks the fields and the re-encoded data. */
+	@Test
+	public void testLazyParsing() throws ParseException, UnsupportedEncodingException {
+		mfactAscii.setLazyParsing(true);
+		mfactBin.setLazyParsing(true);
+		byte[] asciiBuf = mfactAscii.newMessage(0x600).writeData();
+		IsoMessage ascii = mfactAscii.parseMessage(asciiBuf, 0);
+		Assert.assertTrue(Arrays.equals(asciiBuf, ascii.writeData()));
+		testParsed(ascii);
+		byte[] binBuf = mfactBin.newMessage(0x600).writeData();
+		IsoMessage bin = mfactBin.parseMessage(binBuf, 0);
+		testParsed(bin);
+		Assert.assertTrue(Arrays.equals(binBuf, bin.writeData()));
+		//Writing in a different format decodes the fields
+		bin.setBinary(false);
+		Assert.assertTrue(Arrays.equals(mfactAscii.parseMessage(bin.writeData(), 0).writeData(), bin.writeData()));
+	}
+
+	/** A malformed field is only reported when it's decoded, if the message is parsed lazily. */
+	@Test
+	public void testLazyParseError() throws ParseException, UnsupportedEncodingException {
+		byte[] buf = mfactAscii.newMessage(0x600).writeData();
+		buf[new String(buf, "UTF-8").indexOf("000000123400") + 3] = 'X';
+		try {
+			mfactAscii.parseMessage(buf, 0);
+			Assert.fail("Parsed a malformed AMOUNT field");
+		} catch (ParseException ex) {
+			//ok
+		}
+		mfactAscii.setLazyParsing(true);
+		IsoMessage m = mfactAscii.parseMessage(buf, 0);
+		Assert.assertTrue(m.hasField(4));
+		try {
+			m.getObjectValue(4);
+			Assert.fail("Decoded a malformed AMOUNT field");
+		} catch (IllegalStateException ex) {
+			Assert.assertTrue(ex.getCause() instanceof ParseException);
+		}
+		Assert.assertEquals("000123", m.getField(11).toString());
+	}
+
+	/** A BCD NUMERIC at the end of the buffer takes half as many bytes as its digits. */
+	@Test
+	public void testNumericAtEnd() throws ParseException {
+		byte[] buf = new byte[]{ 0x12, 0x34, 0x01, 0x23, 0x45 };
+		IsoValue<Number> v = new NumericParseInfo(4).parseBinary(buf, 3, null);
+		Assert.assertEquals(2345L, v.getValue().longValue());
+		v = new NumericParseInfo(5).parseBinary(buf, 2, null);
+		Assert.assertEquals(12345L, v.getValue().longValue());
+		try {
+			new NumericParseInfo(6).parseBinary(buf, 3, null);
+			Assert.fail("Parsed a NUMERIC past the end of the buffer");
+		} catch (ParseException ex) {
+			Assert.assertEquals(3, ex.getErrorOffset());
+		}
+	}
+
 }
@@ -0,0 +1,103 @@
+package j8583;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.solab.iso8583.IsoMessage;
+import com.solab.iso8583.IsoType;
+import com.solab.iso8583.MessageFactory;
+
+/** Parses messages with variable-length fields of different sizes from several threads
+ * using the same factories, and checks every result. */
+public class TestConcurrentParsing {
+
+	private static final int THREADS = 8;
+	private static final int ROUNDS = 200;
+
+	private MessageFactory mfactAscii = new MessageFactory();
+	private MessageFactory mfactBin = new MessageFactory();
+	/** The messages parsed by a single thread, to compare the results. */
+	private List<IsoMessage> messages = new ArrayList<IsoMessage>();
+	private List<byte[]> data = new ArrayList<byte[]>();
+
+	@Before
+	public void setup() throws IOException, ParseException {
+		mfactAscii.setCharacterEncoding("UTF-8");
+		mfactAscii.setCustomField(48, new CustomField48());
+		mfactAscii.setConfigPath("config.xml");
+		mfactAscii.freeze();
+		mfactBin.setCharacterEncoding("UTF-8");
+		mfactBin.setConfigPath("config.xml");
+		mfactBin.setUseBinaryMessages(true);
+		mfactBin.freeze();
+		StringBuilder sb = new StringBuilder();
+		for (int i = 1; i <= 40; i++) {
+			sb.append((char)('A' + (i % 26)));
+			IsoMessage m = mfactAscii.newMessage(0x200);
+			m.setValue(11, i, IsoType.NUMERIC, 6);
+			m.setValue(32, sb.substring(i / 2), IsoType.LLVAR, 0);
+			m.setValue(61, sb.toString(), IsoType.LLLVAR, 0);
+			data.add(m.writeData());
+			messages.add(mfactAscii.parseMessage(data.get(data.size() - 1), 12));
+			m = mfactBin.newMessage(0x600);
+			byte[] bin = new byte[i];
+			Arrays.fill(bin, (byte)i);
+			m.setValue(62, bin, IsoType.LLBIN, 0);
+			m.setValue(64, sb.toString().getBytes(), IsoType.LLLBIN, 0);
+			m.setValue(102, sb.substring(0, i / 2), IsoType.LLLVAR, 0);
+			data.add(m.writeData());
+			messages.add(mfactBin.parseMessage(data.get(data.size() - 1), 0));
+		}
+	}
+
+	private void check(IsoMessage expected, IsoMessage parsed) {
+		Assert.assertEquals(expected.getType(), parsed.getType());
+		for (int i = 2; i <= 128; i++) {
+			Assert.assertEquals(expected.hasField(i), parsed.hasField(i));
+			if (expected.hasField(i)) {
+				Assert.assertEquals(expected.getField(i).toString(), parsed.getField(i).toString());
+			}
+		}
+	}
+
+	@Test
+	public void testSharedFactory() throws Exception {
+		ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+		List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+		for (int t = 0; t < THREADS; t++) {
+			final int offset = t;
+			results.add(pool.submit(new Callable<Integer>() {
+				public Integer call() throws Exception {
+					int count = 0;
+					for (int r = 0; r < ROUNDS; r++) {
+						for (int i = 0; i < data.size(); i++) {
+							//Each thread goes through the messages in a different order
+							final int idx = (i + offset * 7) % data.size();
+							final IsoMessage exp = messages.get(idx);
+							final MessageFactory mf = exp.isBinary() ? mfactBin : mfactAscii;
+							check(exp, mf.parseMessage(data.get(idx), exp.isBinary() ? 0 : 12));
+							count++;
+						}
+					}
+					return count;
+				}
+			}));
+		}
+		pool.shutdown();
+		for (Future<Integer> f : results) {
+			Assert.assertEquals(ROUNDS * data.size(), f.get().intValue());
+		}
+	}
+
+}
@@ -3,16 +3,25 @@ package j8583;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.junit.*;
 
+import com.solab.iso8583.Clock;
+import com.solab.iso8583.IsoMessage;
 import com.solab.iso8583.IsoType;
 import com.solab.iso8583.IsoValue;
 import com.solab.iso8583.MessageFactory;
+import com.solab.iso8583.impl.CoarseClock;
 import com.solab.iso8583.parse.Date10ParseInfo;
 import com.solab.iso8583.parse.Date4ParseInfo;
+import com.solab.iso8583.parse.DateExpParseInfo;
+import com.solab.iso8583.parse.FieldParseInfo;
+import com.solab.iso8583.parse.TimeParseInfo;
 
 /** Test that the dates are formatted and parsed correctly.
  * 
@@ -34,7 +43,7 @@ public class TestDates {
 	public void testDate4FutureTolerance() throws ParseException, IOException {
 		GregorianCalendar today = new GregorianCalendar();
 		Date soon = new Date(today.getTime().getTime() + 50000);
-		today.set(GregorianCalendar.HOUR,0);
+		today.set(GregorianCalendar.HOUR_OF_DAY,0);
 		today.set(GregorianCalendar.MINUTE,0);
 		today.set(GregorianCalendar.SECOND,0);
 		today.set(GregorianCalendar.MILLISECOND,0);
@@ -61,4 +70,110 @@ public class TestDates {
 		Assert.assertEquals(comp.getValue().getTime(), bin.getValue().getTime());
 	}
 
+	@Test
+	public void testDate10PreviousYear() throws ParseException, IOException {
+		//A date a month from now must be taken as last year's
+		GregorianCalendar cal = new GregorianCalendar();
+		cal.add(GregorianCalendar.DATE, 30);
+		cal.set(GregorianCalendar.MILLISECOND, 0);
+		byte[] buf = IsoType.DATE10.format(cal.getTime()).getBytes();
+		IsoValue<Date> comp = new Date10ParseInfo().parse(buf, 0, null);
+		cal.add(GregorianCalendar.YEAR, -1);
+		Assert.assertEquals(cal.getTime(), comp.getValue());
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		comp.write(bout, true);
+		IsoValue<Date> bin = new Date10ParseInfo().parseBinary(bout.toByteArray(), 0, null);
+		Assert.assertEquals(comp.getValue(), bin.getValue());
+	}
+
+	@Test
+	public void testDateExpAndTime() throws ParseException, IOException {
+		GregorianCalendar cal = new GregorianCalendar();
+		cal.set(GregorianCalendar.HOUR_OF_DAY, 13);
+		cal.set(GregorianCalendar.MINUTE, 45);
+		cal.set(GregorianCalendar.SECOND, 30);
+		cal.set(GregorianCalendar.MILLISECOND, 0);
+		IsoValue<Date> time = new TimeParseInfo().parse("134530".getBytes(), 0, null);
+		Assert.assertEquals(cal.getTime(), time.getValue());
+		IsoValue<Date> bin = new TimeParseInfo().parseBinary(new byte[]{ 0x13, 0x45, 0x30 }, 0, null);
+		Assert.assertEquals(cal.getTime(), bin.getValue());
+		//Expiration dates are the first day of the month
+		cal.set(GregorianCalendar.YEAR, cal.get(GregorianCalendar.YEAR) - (cal.get(GregorianCalendar.YEAR) % 100) + 25);
+		cal.set(GregorianCalendar.MONTH, GregorianCalendar.NOVEMBER);
+		cal.set(GregorianCalendar.DATE, 1);
+		cal.set(GregorianCalendar.HOUR_OF_DAY, 0);
+		cal.set(GregorianCalendar.MINUTE, 0);
+		cal.set(GregorianCalendar.SECOND, 0);
+		IsoValue<Date> exp = new DateExpParseInfo().parse("2511".getBytes(), 0, null);
+		Assert.assertEquals(cal.getTime(), exp.getValue());
+		bin = new DateExpParseInfo().parseBinary(new byte[]{ 0x25, 0x11 }, 0, null);
+		Assert.assertEquals(cal.getTime(), bin.getValue());
+	}
+
+	/** The factory and the DATE10 parsers take the current time from the clock. */
+	@Test
+	public void testClock() throws ParseException, IOException {
+		final GregorianCalendar cal = new GregorianCalendar(2009, GregorianCalendar.FEBRUARY, 13, 17, 31, 30);
+		final Clock fixed = new Clock() {
+			public long currentTimeMillis() {
+				return cal.getTimeInMillis();
+			}
+		};
+		mf.setAssignDate(true);
+		mf.setClock(fixed);
+		IsoMessage m1 = mf.newMessage(0x200);
+		IsoMessage m2 = mf.newMessage(0x200);
+		Assert.assertEquals(cal.getTime(), m1.getObjectValue(7));
+		Assert.assertEquals("0213173130", m2.getField(7).toString());
+		//The year is the clock's, and the previous one for dates too far into its future
+		IsoMessage p = mf.parseMessage(m1.writeData(), mf.getIsoHeader(0x200).length());
+		Assert.assertEquals(cal.getTime(), p.getObjectValue(7));
+		Date10ParseInfo parser = new Date10ParseInfo(fixed);
+		Assert.assertEquals(new GregorianCalendar(2008, GregorianCalendar.DECEMBER, 31, 23, 0, 0).getTime(),
+				parser.parse("1231230000".getBytes(), 0, null).getValue());
+		//Another factory with the same parsing guide keeps the system clock
+		Map<Integer, FieldParseInfo> guide = new HashMap<Integer, FieldParseInfo>();
+		guide.put(7, new Date10ParseInfo());
+		mf.setParseMap(0x100, guide);
+		MessageFactory other = new MessageFactory();
+		other.setParseMap(0x100, guide);
+		IsoMessage m3 = new IsoMessage();
+		m3.setType(0x100);
+		m3.setField(7, m1.getField(7));
+		final byte[] data = m3.writeData();
+		Assert.assertEquals(cal.getTime(), mf.parseMessage(data, 0).getObjectValue(7));
+		Assert.assertFalse(cal.getTime().equals(other.parseMessage(data, 0).getObjectValue(7)));
+		mf.freeze();
+		try {
+			mf.setClock(Clock.SYSTEM);
+			Assert.fail("Changed the clock of a frozen factory");
+		} catch (UnsupportedOperationException ex) {
+			Assert.assertSame(fixed, mf.getClock());
+		}
+		//A coarse clock only advances once per second
+		long t = new CoarseClock().currentTimeMillis();
+		Assert.assertEquals(0, t % 1000);
+		Assert.assertTrue(System.currentTimeMillis() - t < 1000);
+	}
+
+	/** The date fields of the last second formatted are reused; they must be the same as
+	 * the ones of a SimpleDateFormat. */
+	@Test
+	public void testCachedFormat() {
+		SimpleDateFormat date10 = new SimpleDateFormat("MMddHHmmss");
+		SimpleDateFormat exp = new SimpleDateFormat("yyMM");
+		long[] times = new long[]{ 1234567890000L, 1234567890999L, 1234567891000L, 0, -1,
+				951868799000L, 951868800000L, 4102444799000L, System.currentTimeMillis() };
+		for (int i = 0; i < 2; i++) {
+			for (long t : times) {
+				Date d = new Date(t);
+				String digits = date10.format(d);
+				Assert.assertEquals(digits, IsoType.DATE10.format(d));
+				Assert.assertEquals(digits.substring(0, 4), IsoType.DATE4.format(d));
+				Assert.assertEquals(digits.substring(4), IsoType.TIME.format(d));
+				Assert.assertEquals(exp.format(d), IsoType.DATE_EXP.format(d));
+			}
+		}
+	}
+
 }
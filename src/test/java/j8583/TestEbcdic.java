@@ -0,0 +1,110 @@
+package j8583;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.util.Date;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.solab.iso8583.IsoMessage;
+import com.solab.iso8583.IsoType;
+import com.solab.iso8583.MessageFactory;
+import com.solab.iso8583.util.TextCodec;
+
+/** Test messages encoded entirely in EBCDIC. Every message must be the same as the one
+ * written in ISO-8859-1 and then converted to EBCDIC as a whole. */
+public class TestEbcdic {
+
+	private static final Charset EBCDIC = Charset.forName("Cp1047");
+
+	private MessageFactory mfAscii = new MessageFactory();
+	private MessageFactory mfEbcdic = new MessageFactory();
+
+	@Before
+	public void init() throws IOException {
+		mfAscii.setCharset(TextCodec.ISO_8859_1);
+		mfAscii.setConfigPath("config.xml");
+		mfEbcdic.setCharset(EBCDIC);
+		mfEbcdic.setConfigPath("config.xml");
+	}
+
+	private IsoMessage create(MessageFactory mf, int type) {
+		IsoMessage m = mf.newMessage(type);
+		m.setValue(4, new BigDecimal("501.25"), IsoType.AMOUNT, 0);
+		m.setValue(7, new Date(1234567890000L), IsoType.DATE10, 0);
+		m.setValue(11, 123, IsoType.NUMERIC, 6);
+		if (type == 0x600) {
+			//The rest of the fields are hex and text from the template
+			return m;
+		}
+		m.setValue(12, new Date(1234567890000L), IsoType.TIME, 0);
+		m.setValue(13, new Date(1234567890000L), IsoType.DATE4, 0);
+		m.setValue(17, new Date(1234567890000L), IsoType.DATE_EXP, 0);
+		m.setValue(37, 987654321L, IsoType.NUMERIC, 12);
+		m.setValue(41, "TERMINAL áñ", IsoType.ALPHA, 16);
+		return m;
+	}
+
+	@Test
+	public void testTables() {
+		Assert.assertTrue(TextCodec.isEbcdic(EBCDIC));
+		Assert.assertFalse(TextCodec.isEbcdic(TextCodec.US_ASCII));
+		Assert.assertFalse(TextCodec.isEbcdic(Charset.forName("UTF-8")));
+		Assert.assertEquals((byte)0xf0, TextCodec.digitBytes(EBCDIC)[0]);
+		Assert.assertEquals((byte)0xc6, TextCodec.digitBytes(EBCDIC)[15]);
+		Assert.assertEquals(9, TextCodec.digitValues(EBCDIC)[0xf9]);
+		Assert.assertEquals(10, TextCodec.digitValues(EBCDIC)[0x81]);
+		Assert.assertEquals(-1, TextCodec.digitValues(EBCDIC)['0']);
+		String s = "Señor 123 {café} ¢";
+		Assert.assertArrayEquals(s.getBytes(EBCDIC), TextCodec.encode(s, EBCDIC));
+		Assert.assertEquals(s, TextCodec.decode(s.getBytes(EBCDIC), 0, s.length(), EBCDIC));
+		//Characters that aren't in the table go through the JDK
+		Assert.assertArrayEquals("€1".getBytes(EBCDIC), TextCodec.encode("€1", EBCDIC));
+	}
+
+	@Test
+	public void testWrite() throws UnsupportedEncodingException {
+		for (int type : new int[]{ 0x200, 0x600 }) {
+			byte[] ascii = create(mfAscii, type).writeData();
+			byte[] ebcdic = create(mfEbcdic, type).writeData();
+			Assert.assertArrayEquals(new String(ascii, "ISO-8859-1").getBytes(EBCDIC), ebcdic);
+		}
+	}
+
+	@Test
+	public void testParse() throws ParseException, UnsupportedEncodingException {
+		final int hlen = mfEbcdic.getIsoHeader(0x200).length();
+		for (int type : new int[]{ 0x200, 0x600 }) {
+			IsoMessage m = create(mfEbcdic, type);
+			byte[] buf = m.writeData();
+			IsoMessage p = mfEbcdic.parseMessage(buf, type == 0x200 ? hlen : 0);
+			Assert.assertEquals(type, p.getType());
+			Assert.assertEquals(m.getIsoHeader(), p.getIsoHeader());
+			for (int i = 2; i <= 128; i++) {
+				Assert.assertEquals("Field " + i, m.hasField(i), p.hasField(i));
+				if (m.hasField(i)) {
+					//The hex fields of the template are in lower case
+					Assert.assertEquals("Field " + i, m.getField(i).toString().toUpperCase(),
+						p.getField(i).toString().toUpperCase());
+				}
+			}
+			//Direct buffers are read in place too
+			ByteBuffer direct = ByteBuffer.allocateDirect(buf.length);
+			direct.put(buf).flip();
+			Assert.assertArrayEquals(p.writeData(), mfEbcdic.parseMessage(direct, type == 0x200 ? hlen : 0).writeData());
+		}
+	}
+
+	@Test(expected=ParseException.class)
+	public void testAsciiBitmap() throws ParseException, UnsupportedEncodingException {
+		//The ASCII message type and bitmap are not valid EBCDIC hex digits
+		mfEbcdic.parseMessage(create(mfAscii, 0x600).writeData(), 0);
+	}
+
+}
@@ -0,0 +1,178 @@
+package j8583;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.solab.iso8583.IsoFileParser;
+import com.solab.iso8583.IsoFrameDecoder;
+import com.solab.iso8583.IsoMessage;
+import com.solab.iso8583.IsoMessageHandler;
+import com.solab.iso8583.IsoType;
+import com.solab.iso8583.MessageFactory;
+
+/** Parses a file with many messages using several threads. */
+public class TestFileParser {
+
+	private static final int MESSAGES = 2000;
+
+	private MessageFactory mf;
+	private File file;
+	private ExecutorService executor = Executors.newFixedThreadPool(4);
+
+	@Before
+	public void init() throws IOException {
+		mf = new MessageFactory();
+		mf.setCharacterEncoding("UTF-8");
+		mf.setCustomField(48, new CustomField48());
+		mf.setConfigPath("config.xml");
+		mf.freeze();
+		file = File.createTempFile("j8583", ".iso");
+		OutputStream out = new FileOutputStream(file);
+		for (int i = 1; i <= MESSAGES; i++) {
+			IsoMessage m = mf.newMessage(0x200);
+			m.setValue(11, i, IsoType.NUMERIC, 6);
+			m.write(out, 2);
+		}
+		out.close();
+	}
+
+	@After
+	public void cleanup() {
+		executor.shutdown();
+		file.delete();
+	}
+
+	/** Returns the trace number of the message. */
+	private static int trace(IsoMessage m) {
+		return Integer.parseInt(m.getObjectValue(11).toString());
+	}
+
+	@Test
+	public void testOrdered() throws IOException, ParseException {
+		final List<IsoMessage> msgs = new ArrayList<IsoMessage>();
+		IsoFileParser parser = new IsoFileParser(mf, 2, 12);
+		parser.setChunkSize(20000);
+		Assert.assertEquals(MESSAGES, parser.parse(file, executor, true, new IsoMessageHandler() {
+			public void handleMessage(IsoMessage msg) {
+				msgs.add(msg);
+			}
+		}));
+		Assert.assertEquals(MESSAGES, msgs.size());
+		for (int i = 0; i < MESSAGES; i++) {
+			Assert.assertEquals(i + 1, trace(msgs.get(i)));
+		}
+	}
+
+	@Test
+	public void testUnordered() throws IOException, ParseException {
+		final List<Integer> traces = Collections.synchronizedList(new ArrayList<Integer>());
+		IsoFileParser parser = new IsoFileParser(mf, 2, 12);
+		parser.setChunkSize(10000);
+		parser.setMaxPendingChunks(3);
+		Assert.assertEquals(MESSAGES, parser.parse(file, executor, false, new IsoMessageHandler() {
+			public void handleMessage(IsoMessage msg) {
+				traces.add(trace(msg));
+			}
+		}));
+		Collections.sort(traces);
+		for (int i = 0; i < MESSAGES; i++) {
+			Assert.assertEquals(i + 1, traces.get(i).intValue());
+		}
+	}
+
+	@Test(expected=ParseException.class)
+	public void testTruncatedFile() throws IOException, ParseException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.setLength(raf.length() - 5);
+		raf.close();
+		new IsoFileParser(mf, 2, 12).parse(file, executor, true, new IsoMessageHandler() {
+			public void handleMessage(IsoMessage msg) {
+			}
+		});
+	}
+
+	@Test
+	public void testUnorderedFailure() throws IOException, InterruptedException {
+		//A bad bitmap in the first message makes the first chunk fail right away
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.seek(2 + 12 + 4);
+		raf.write("ZZZZ".getBytes());
+		raf.close();
+		final AtomicInteger delivered = new AtomicInteger();
+		IsoFileParser parser = new IsoFileParser(mf, 2, 12);
+		parser.setChunkSize(100000);
+		parser.setMaxPendingChunks(3);
+		try {
+			parser.parse(file, executor, false, new IsoMessageHandler() {
+				public void handleMessage(IsoMessage msg) {
+					delivered.incrementAndGet();
+					try {
+						Thread.sleep(2);
+					} catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			});
+			Assert.fail("Parsed a file with a bad message");
+		} catch (ParseException ex) {
+			//the other chunks must stop delivering their messages
+		}
+		executor.shutdown();
+		Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+		Assert.assertTrue("Delivered " + delivered.get(), delivered.get() < MESSAGES / 10);
+	}
+
+	@Test
+	public void testMaxFrameLength() throws IOException, ParseException {
+		IsoFileParser parser = new IsoFileParser(mf, 2, 12);
+		parser.setMaxFrameLength(50);
+		try {
+			parser.parse(file, executor, true, new IsoMessageHandler() {
+				public void handleMessage(IsoMessage msg) {
+					Assert.fail("Delivered a message longer than the maximum");
+				}
+			});
+			Assert.fail("Parsed messages longer than the maximum");
+		} catch (ParseException ex) {
+			Assert.assertEquals(0, ex.getErrorOffset());
+		}
+		//Messages longer than the decoder's default are accepted if the parser allows them;
+		//a long ISO header makes the message bigger without a bigger field
+		final int hlen = IsoFrameDecoder.DEFAULT_MAX_FRAME_LENGTH + 12;
+		IsoMessage m = mf.newMessage(0x200);
+		m.setValue(11, 1, IsoType.NUMERIC, 6);
+		byte[] data = m.writeData();
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+		out.writeInt(hlen - 12 + data.length);
+		for (int i = 12; i < hlen; i++) {
+			out.write('0');
+		}
+		out.write(data);
+		out.close();
+		parser = new IsoFileParser(mf, 4, hlen);
+		parser.setMaxFrameLength(IsoFrameDecoder.DEFAULT_MAX_FRAME_LENGTH * 2);
+		Assert.assertEquals(1, parser.parse(file, executor, true, new IsoMessageHandler() {
+			public void handleMessage(IsoMessage msg) {
+				Assert.assertEquals(1, trace(msg));
+			}
+		}));
+	}
+
+}
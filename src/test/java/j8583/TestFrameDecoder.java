@@ -0,0 +1,163 @@
+package j8583;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.solab.iso8583.IsoFrameDecoder;
+import com.solab.iso8583.IsoMessage;
+import com.solab.iso8583.IsoType;
+import com.solab.iso8583.MessageFactory;
+
+/** Decodes messages that arrive in chunks of different sizes. */
+public class TestFrameDecoder {
+
+	private MessageFactory mf;
+	private List<IsoMessage> sent = new ArrayList<IsoMessage>();
+
+	@Before
+	public void init() throws IOException {
+		mf = new MessageFactory();
+		mf.setCharacterEncoding("UTF-8");
+		mf.setCustomField(48, new CustomField48());
+		mf.setConfigPath("config.xml");
+	}
+
+	/** Writes some messages with the specified length header to a single array. */
+	private byte[] write(int lengthBytes) throws IOException {
+		sent.clear();
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		for (int i = 1; i <= 5; i++) {
+			IsoMessage m = mf.newMessage(0x200);
+			m.setValue(11, i, IsoType.NUMERIC, 6);
+			m.write(bout, lengthBytes);
+			sent.add(m);
+		}
+		return bout.toByteArray();
+	}
+
+	/** Feeds the data to a decoder in chunks of the specified size, reusing the same buffer. */
+	private List<IsoMessage> decode(byte[] data, int lengthBytes, int chunk) throws Exception {
+		IsoFrameDecoder decoder = new IsoFrameDecoder(mf, lengthBytes, 12);
+		List<IsoMessage> msgs = new ArrayList<IsoMessage>();
+		ByteBuffer buf = ByteBuffer.allocate(chunk);
+		for (int pos = 0; pos < data.length; pos += chunk) {
+			buf.clear();
+			buf.put(data, pos, Math.min(chunk, data.length - pos));
+			buf.flip();
+			decoder.decode(buf, msgs);
+			Assert.assertFalse(buf.hasRemaining());
+		}
+		Assert.assertFalse(decoder.hasPartialMessage());
+		return msgs;
+	}
+
+	private void check(List<IsoMessage> msgs) {
+		Assert.assertEquals(sent.size(), msgs.size());
+		for (int i = 0; i < sent.size(); i++) {
+			Assert.assertEquals(sent.get(i).getField(11).toString(), msgs.get(i).getField(11).toString());
+			Assert.assertArrayEquals(sent.get(i).writeData(), msgs.get(i).writeData());
+		}
+	}
+
+	@Test
+	public void testChunks() throws Exception {
+		for (int lengthBytes = 2; lengthBytes <= 4; lengthBytes++) {
+			byte[] data = write(lengthBytes);
+			for (int chunk : new int[]{ 1, 3, 7, 100, data.length }) {
+				check(decode(data, lengthBytes, chunk));
+			}
+		}
+	}
+
+	@Test
+	public void testOneByteHeader() throws Exception {
+		//The messages from the template are longer than 255 bytes
+		mf.getMessageTemplate(0x200).setField(43, null);
+		mf.getMessageTemplate(0x200).setField(61, null);
+		byte[] data = write(1);
+		check(decode(data, 1, 5));
+		check(decode(data, 1, data.length));
+	}
+
+	@Test
+	public void testEtxAndLazyParsing() throws Exception {
+		mf.setEtx(3);
+		mf.setLazyParsing(true);
+		byte[] data = write(2);
+		check(decode(data, 2, 50));
+		check(decode(data, 2, data.length));
+	}
+
+	/** Rejects length headers above the maximum, without losing the messages decoded before. */
+	@Test
+	public void testMaxFrameLength() throws Exception {
+		byte[] data = write(4);
+		IsoFrameDecoder decoder = new IsoFrameDecoder(mf, 4, 12);
+		Assert.assertEquals(IsoFrameDecoder.DEFAULT_MAX_FRAME_LENGTH, decoder.getMaxFrameLength());
+		ByteBuffer buf = ByteBuffer.allocate(data.length + 4);
+		buf.put(data, 0, data.length / 5);
+		//A corrupt header that would need 2 GB
+		buf.put(new byte[]{ 0x7f, (byte)0xff, (byte)0xff, (byte)0xff }).flip();
+		List<IsoMessage> msgs = new ArrayList<IsoMessage>();
+		try {
+			decoder.decode(buf, msgs);
+			Assert.fail("Accepted a huge message length");
+		} catch (ParseException ex) {
+			Assert.assertEquals(1, msgs.size());
+			Assert.assertFalse(decoder.hasPartialMessage());
+		}
+		decoder.setMaxFrameLength(data.length / 5 - 5);
+		try {
+			decoder.decode(ByteBuffer.wrap(data));
+			Assert.fail("Accepted a message longer than the maximum");
+		} catch (ParseException ex) {
+			//ok
+		}
+		decoder.setMaxFrameLength(data.length / 5 - 4);
+		Assert.assertEquals(5, decoder.decode(ByteBuffer.wrap(data)).size());
+	}
+
+	/** The responses echo the bytes of their requests, even after the chunk is reused. */
+	@Test
+	public void testEchoReusedChunk() throws Exception {
+		mf.setEchoRequestBytes(true);
+		byte[] data = write(2);
+		IsoFrameDecoder decoder = new IsoFrameDecoder(mf, 2, 12);
+		final int first = ((data[0] & 0xff) << 8 | (data[1] & 0xff)) + 2;
+		ByteBuffer buf = ByteBuffer.allocate(data.length);
+		buf.put(data, 0, first).flip();
+		IsoMessage req = decoder.decode(buf).get(0);
+		final byte[] expected = mf.createResponse(req).writeData();
+		buf.clear();
+		buf.put(data, first, data.length - first).flip();
+		Assert.assertEquals(4, decoder.decode(buf).size());
+		Assert.assertArrayEquals(expected, mf.createResponse(req).writeData());
+		Assert.assertEquals(sent.get(0).getField(11).toString(), req.getField(11).toString());
+	}
+
+	@Test
+	public void testMissingEtx() throws Exception {
+		byte[] data = write(2);
+		mf.setEtx(3);
+		IsoFrameDecoder decoder = new IsoFrameDecoder(mf, 2, 12);
+		ByteBuffer buf = ByteBuffer.wrap(data);
+		try {
+			decoder.decode(buf);
+			Assert.fail("Parsed a message without ETX");
+		} catch (ParseException ex) {
+			//The decoder stays at the start of the next message
+			Assert.assertFalse(decoder.hasPartialMessage());
+		}
+		mf.setEtx(-1);
+		Assert.assertEquals(4, decoder.decode(buf).size());
+	}
+
+}
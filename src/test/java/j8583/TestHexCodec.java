@@ -1,10 +1,16 @@
 package j8583;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
 import junit.framework.Assert;
 
 import org.junit.Test;
 
 import com.solab.iso8583.util.HexCodec;
+import com.solab.iso8583.util.TextCodec;
 
 
 public class TestHexCodec {
@@ -41,4 +47,70 @@ public class TestHexCodec {
 		encodeDecode("ABC");
 	}
 
+	@Test
+	public void testByteArrays() {
+		byte[] data = new byte[256];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte)i;
+		}
+		byte[] hex = new byte[514];
+		Assert.assertEquals(513, HexCodec.hexEncode(data, 0, 256, hex, 1));
+		Assert.assertEquals(HexCodec.hexEncode(data), new String(hex, 1, 512));
+		byte[] dec = new byte[258];
+		Assert.assertEquals(256, HexCodec.hexDecode(hex, 1, 512, dec, 2));
+		Assert.assertTrue(Arrays.equals(data, Arrays.copyOfRange(dec, 2, 258)));
+		//Lowercase and odd lengths, from a direct buffer
+		ByteBuffer direct = ByteBuffer.allocateDirect(10);
+		direct.put("xxabc".getBytes());
+		Assert.assertEquals(2, HexCodec.hexDecode(direct, 2, 3, dec, 0));
+		Assert.assertEquals(0x0a, dec[0]);
+		Assert.assertEquals(0xbc, dec[1] & 0xff);
+		ByteBuffer heap = ByteBuffer.allocate(4);
+		HexCodec.hexEncode(dec, 0, 2, heap);
+		Assert.assertEquals("0ABC", new String(heap.array()));
+	}
+
+	@Test
+	public void testCharsetTables() throws Exception {
+		final Charset ebcdic = Charset.forName("Cp1047");
+		final byte[] digits = TextCodec.digitBytes(ebcdic);
+		final byte[] values = TextCodec.digitValues(ebcdic);
+		byte[] data = new byte[]{ 0x01, (byte)0xab, (byte)0xff };
+		for (ByteBuffer buf : new ByteBuffer[]{ ByteBuffer.allocate(6), ByteBuffer.allocateDirect(6) }) {
+			HexCodec.hexEncode(data, 0, 3, buf, digits);
+			Assert.assertFalse(buf.hasRemaining());
+			byte[] text = new byte[6];
+			buf.flip();
+			buf.get(text);
+			Assert.assertEquals("01ABFF", new String(text, ebcdic));
+			byte[] dec = new byte[3];
+			Assert.assertEquals(3, HexCodec.hexDecode(buf, 0, 6, dec, 0, values));
+			Assert.assertTrue(Arrays.equals(data, dec));
+		}
+	}
+
+	@Test
+	public void testBufferOverflow() {
+		byte[] src = new byte[]{ 1, 2, 3 };
+		for (ByteBuffer buf : new ByteBuffer[]{ ByteBuffer.allocate(8), ByteBuffer.allocateDirect(8) }) {
+			buf.limit(5);
+			try {
+				HexCodec.hexEncode(src, 0, src.length, buf);
+				Assert.fail("Wrote past the limit");
+			} catch (BufferOverflowException ex) {
+				Assert.assertEquals(0, buf.position());
+				buf.limit(8);
+				Assert.assertEquals(0, buf.get(5));
+			}
+			buf.limit(6);
+			HexCodec.hexEncode(src, 0, src.length, buf);
+			Assert.assertEquals(6, buf.position());
+		}
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testInvalidDigit() {
+		HexCodec.hexDecode("12G4".getBytes(), 0, 4, new byte[2], 0);
+	}
+
 }
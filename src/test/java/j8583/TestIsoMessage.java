@@ -1,16 +1,28 @@
 package j8583;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.text.ParseException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
 
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.solab.iso8583.AmountValue;
+import com.solab.iso8583.CustomField;
 import com.solab.iso8583.IsoMessage;
 import com.solab.iso8583.IsoType;
+import com.solab.iso8583.IsoValue;
 import com.solab.iso8583.MessageFactory;
+import com.solab.iso8583.NumericValue;
 
 /** These are very simple tests for creating and manipulating messages.
  * 
@@ -97,13 +109,88 @@ public class TestIsoMessage {
 		Assert.assertArrayEquals(b3, b2);
 	}
 
+	/** Parses the same message from a byte array and from a direct buffer, with data
+	 * before and after the message, and checks that both produce the same fields. */
+	@Test
+	public void testParsingByteBuffer() throws Exception {
+		byte[] buf = mf.newMessage(0x200).writeData();
+		ByteBuffer direct = ByteBuffer.allocateDirect(buf.length + 10);
+		direct.put("HEAD!".getBytes()).put(buf).put("TAIL!".getBytes());
+		direct.position(5);
+		direct.limit(5 + buf.length);
+		final int hlen = mf.getIsoHeader(0x200).length();
+		IsoMessage m1 = mf.parseMessage(buf, hlen);
+		IsoMessage m2 = mf.parseMessage(direct, hlen);
+		Assert.assertEquals(5, direct.position());
+		Assert.assertEquals(5 + buf.length, direct.limit());
+		Assert.assertEquals(m1.getIsoHeader(), m2.getIsoHeader());
+		Assert.assertEquals(m1.getType(), m2.getType());
+		for (int i = 2; i < 128; i++) {
+			Assert.assertEquals(m1.hasField(i), m2.hasField(i));
+			if (m1.hasField(i)) {
+				Assert.assertEquals(m1.getField(i).getType(), m2.getField(i).getType());
+				Assert.assertEquals(m1.getObjectValue(i), m2.getObjectValue(i));
+			}
+		}
+		Assert.assertArrayEquals(buf, m2.writeData());
+	}
+
+	/** Parses a message lazily and checks it against the same message parsed eagerly. */
+	@Test
+	public void testLazyParsing() throws Exception {
+		byte[] buf = mf.newMessage(0x200).writeData();
+		final int hlen = mf.getIsoHeader(0x200).length();
+		IsoMessage m1 = mf.parseMessage(buf, hlen);
+		mf.setLazyParsing(true);
+		IsoMessage m2 = mf.parseMessage(buf, hlen);
+		Assert.assertArrayEquals(buf, m2.writeData());
+		for (int i = 2; i < 128; i++) {
+			Assert.assertEquals(m1.hasField(i), m2.hasField(i));
+			if (m1.hasField(i)) {
+				Assert.assertEquals(m1.getField(i).getType(), m2.getField(i).getType());
+				Assert.assertEquals(m1.getObjectValue(i), m2.getObjectValue(i));
+				Assert.assertEquals(m1.getField(i).toString(), m2.getField(i).toString());
+			}
+		}
+		Assert.assertArrayEquals(buf, m2.writeData());
+	}
+
+	/** Parses only some of the fields of a message. */
+	@Test
+	public void testProjection() throws Exception {
+		byte[] buf = mf.newMessage(0x200).writeData();
+		final int hlen = mf.getIsoHeader(0x200).length();
+		IsoMessage m1 = mf.parseMessage(buf, hlen);
+		IsoMessage m2 = mf.parseMessage(buf, hlen, 4, 35, 49, 102);
+		for (int i = 2; i < 128; i++) {
+			if (i == 35 || i == 49 || i == 102) {
+				Assert.assertEquals(m1.getObjectValue(i), m2.getObjectValue(i));
+			} else {
+				Assert.assertFalse(m2.hasField(i));
+			}
+		}
+		//Fields after the last one requested are not read, even if they're incomplete
+		byte[] cut = new byte[buf.length - 3];
+		System.arraycopy(buf, 0, cut, 0, cut.length);
+		m2 = mf.parseMessage(cut, hlen, 3, 61);
+		Assert.assertEquals(m1.getObjectValue(3), m2.getObjectValue(3));
+		Assert.assertEquals(m1.getObjectValue(61), m2.getObjectValue(61));
+		Assert.assertFalse(m2.hasField(102));
+		mf.setLazyParsing(true);
+		m2 = mf.parseMessage(buf, hlen, 32);
+		Assert.assertEquals(m1.getObjectValue(32), m2.getObjectValue(32));
+		Assert.assertFalse(m2.hasField(3));
+	}
+
 	@Test
 	public void testTemplating() {
 		IsoMessage iso1 = mf.newMessage(0x200);
 		IsoMessage iso2 = mf.newMessage(0x200);
 		assert iso1 != iso2;
 		assert iso1.getObjectValue(3) == iso1.getObjectValue(3);
-		assert iso1.getField(3) != iso2.getField(3);
+		//Constant template fields are encoded once and shared; fields with a CustomField are copied
+		assert iso1.getField(3) == iso2.getField(3);
+		assert iso1.getField(3).clone() != iso2.getField(3);
 		assert iso1.getField(48) != iso2.getField(48);
 		CustomField48 cf48_1 = (CustomField48)iso1.getObjectValue(48);
 		int origv = cf48_1.getValue2();
@@ -111,6 +198,408 @@ public class TestIsoMessage {
 		CustomField48 cf48_2 = (CustomField48)iso2.getObjectValue(48);
 		assert cf48_1 == cf48_2;
 		assert cf48_2.getValue2() == origv + 1000;
+		//A message with another encoding gets a copy of the shared value
+		IsoMessage other = new IsoMessage();
+		other.setCharacterEncoding("ISO-8859-1");
+		other.setField(3, iso1.getField(3));
+		assert other.getField(3) != iso1.getField(3);
+		assert "ISO-8859-1".equals(other.getField(3).getCharacterEncoding());
+		assert "UTF-8".equals(iso1.getField(3).getCharacterEncoding());
+		assert "650000".equals(other.getObjectValue(3));
+		//With the same encoding, the value is still shared
+		IsoMessage same = new IsoMessage();
+		same.setCharacterEncoding("UTF-8");
+		same.setField(3, iso1.getField(3));
+		assert same.getField(3) == iso1.getField(3);
+	}
+
+	/** New messages share the template fields encoded by the factory, and write the same
+	 * bytes as copies of the template fields. */
+	@Test
+	public void testEncodedTemplate() throws IOException {
+		for (String enc : new String[]{ "UTF-8", "Cp1047" }) {
+			mf.setCharacterEncoding(enc);
+			for (boolean binary : new boolean[]{ false, true }) {
+				mf.setUseBinaryMessages(binary);
+				IsoMessage m = mf.newMessage(0x200);
+				IsoMessage copy = mf.newMessage(0x200);
+				IsoMessage templ = mf.getMessageTemplate(0x200);
+				for (int i = 2; i <= 128; i++) {
+					if (templ.hasField(i)) {
+						copy.setField(i, templ.getField(i).clone());
+					}
+				}
+				Assert.assertArrayEquals(copy.writeData(), m.writeData());
+				Assert.assertEquals(copy.encodedLength(), m.encodedLength());
+			}
+		}
+		mf.setCharacterEncoding("UTF-8");
+		IsoMessage m = mf.newMessage(0x200);
+		try {
+			m.getField(32).setCharacterEncoding("Cp1047");
+			Assert.fail("Shared template value was modified");
+		} catch (UnsupportedOperationException ex) {
+			//The clone can be changed
+			m.setField(32, m.getField(32).clone());
+			m.getField(32).setCharacterEncoding("Cp1047");
+		}
+		//Changes to the template are seen by the new messages
+		mf.getMessageTemplate(0x200).setValue(32, "999", IsoType.LLVAR, 0);
+		Assert.assertEquals("999", mf.newMessage(0x200).getObjectValue(32));
+		mf.freeze();
+		Assert.assertSame(mf.newMessage(0x200).getField(32), mf.newMessage(0x200).getField(32));
+	}
+
+	/** Fields are stored in the order of the bitmap, which is updated as they're set and removed. */
+	@Test
+	public void testFieldStorage() throws Exception {
+		IsoMessage m = new IsoMessage();
+		m.setType(0x200);
+		Assert.assertEquals(-1, m.nextField(1));
+		int[] order = new int[]{ 70, 3, 128, 64, 2, 65, 11, 100, 4 };
+		for (int i : order) {
+			m.setValue(i, Integer.toString(i), IsoType.LLVAR, 0);
+		}
+		Assert.assertEquals(order.length, m.getFieldCount());
+		int[] expected = new int[]{ 2, 3, 4, 11, 64, 65, 70, 100, 128 };
+		int n = 0;
+		for (int i = m.nextField(1); i > 0; i = m.nextField(i)) {
+			Assert.assertEquals(expected[n++], i);
+			Assert.assertEquals(Integer.toString(i), m.getObjectValue(i));
+		}
+		Assert.assertEquals(expected.length, n);
+		Assert.assertEquals(65, m.nextField(64));
+		Assert.assertEquals(-1, m.nextField(128));
+		Assert.assertFalse(m.hasField(0));
+		Assert.assertFalse(m.hasField(1));
+		Assert.assertNull(m.getField(5));
+		try {
+			m.hasField(129);
+			Assert.fail("Field 129 is not valid");
+		} catch (IndexOutOfBoundsException ex) {
+			//ok
+		}
+		//Replace and remove fields
+		m.setValue(11, "x", IsoType.LLVAR, 0);
+		Assert.assertEquals("x", m.getObjectValue(11));
+		Assert.assertEquals(expected.length, m.getFieldCount());
+		byte[] withSecondary = m.writeData();
+		for (int i : new int[]{ 65, 70, 100, 128, 3 }) {
+			m.setField(i, null);
+		}
+		m.setValue(4, null, IsoType.LLVAR, 0);
+		Assert.assertEquals(3, m.getFieldCount());
+		Assert.assertEquals(11, m.nextField(2));
+		Assert.assertEquals(64, m.nextField(11));
+		Assert.assertEquals(-1, m.nextField(64));
+		Assert.assertEquals("x", m.getObjectValue(11));
+		//Without fields in the secondary bitmap, it's not written
+		Assert.assertEquals(withSecondary.length - 16 - 24, m.writeData().length);
+		Assert.assertEquals('F', (char)withSecondary[4]);
+		Assert.assertEquals('4', (char)m.writeData()[4]);
+	}
+
+	/** Writes an amount in minor units and parses it back, in ASCII and binary. */
+	@Test
+	public void testAmountMinorUnits() throws Exception {
+		IsoMessage iso = mf.newMessage(0x200);
+		iso.setAmount(4, 123456789012L);
+		Assert.assertEquals(new BigDecimal("1234567890.12"), iso.getObjectValue(4));
+		final int hlen = mf.getIsoHeader(0x200).length();
+		IsoMessage big = mf.parseMessage(iso.writeData(), hlen);
+		Assert.assertEquals(new BigDecimal("1234567890.12"), big.getObjectValue(4));
+		Assert.assertEquals(123456789012L, big.getAmount(4));
+		mf.setAmountsAsMinorUnits(true);
+		IsoMessage m = mf.parseMessage(iso.writeData(), hlen);
+		Assert.assertTrue(m.<BigDecimal>getField(4) instanceof AmountValue);
+		Assert.assertEquals(123456789012L, m.getAmount(4));
+		Assert.assertEquals(big.getObjectValue(4), m.getObjectValue(4));
+		Assert.assertArrayEquals(big.writeData(), m.writeData());
+		//Binary, with fewer fields
+		mf.setUseBinaryMessages(true);
+		iso = mf.newMessage(0x200);
+		iso.setField(61, null);
+		iso.setAmount(4, 1050);
+		iso.setBinary(true);
+		m = mf.parseMessage(iso.writeData(), hlen);
+		Assert.assertEquals(1050L, m.getAmount(4));
+		Assert.assertArrayEquals(iso.writeData(), m.writeData());
+		mf.setAmountsAsMinorUnits(false);
+		m = mf.parseMessage(iso.writeData(), hlen);
+		Assert.assertFalse(m.<BigDecimal>getField(4) instanceof AmountValue);
+		Assert.assertEquals(1050L, m.getAmount(4));
+		//The option can't be changed after freezing the factory
+		mf.freeze();
+		try {
+			mf.setAmountsAsMinorUnits(true);
+			Assert.fail("Changed the amounts option of a frozen factory");
+		} catch (UnsupportedOperationException ex) {
+			Assert.assertFalse(mf.getAmountsAsMinorUnits());
+		}
+		Assert.assertFalse(mf.parseMessage(iso.writeData(), hlen).<BigDecimal>getField(4) instanceof AmountValue);
+	}
+
+	/** Parses NUMERIC fields as primitive values and checks they're written the same way. */
+	@Test
+	@SuppressWarnings("rawtypes")
+	public void testPrimitiveNumerics() throws Exception {
+		IsoMessage iso = mf.newMessage(0x200);
+		iso.setLong(11, 42, IsoType.NUMERIC, 6);
+		Assert.assertEquals(42L, iso.getObjectValue(11));
+		Assert.assertEquals("000042", iso.getField(11).toString());
+		Assert.assertEquals(650000L, iso.getLong(3));
+		final int hlen = mf.getIsoHeader(0x200).length();
+		byte[] buf = iso.writeData();
+		IsoMessage text = mf.parseMessage(buf, hlen);
+		Assert.assertEquals("000042", text.getObjectValue(11));
+		Assert.assertEquals(42L, text.getLong(11));
+		mf.setPrimitiveNumerics(true);
+		IsoMessage m = mf.parseMessage(buf, hlen);
+		Assert.assertTrue(m.<Number>getField(11) instanceof NumericValue);
+		Assert.assertEquals(42L, m.getLong(11));
+		Assert.assertEquals(650000L, m.getLong(3));
+		Assert.assertArrayEquals(buf, m.writeData());
+		//Binary, with an odd length
+		mf.setUseBinaryMessages(true);
+		iso = mf.newMessage(0x200);
+		iso.setField(61, null);
+		iso.setLong(11, 12345, IsoType.NUMERIC, 5);
+		iso.setBinary(true);
+		buf = iso.writeData();
+		m = mf.parseMessage(buf, hlen);
+		Assert.assertTrue(m.<Number>getField(3) instanceof NumericValue);
+		Assert.assertEquals(650000L, m.getLong(3));
+		Assert.assertArrayEquals(buf, m.writeData());
+		//The options can't be changed after freezing the factory
+		mf.freeze();
+		try {
+			mf.setPrimitiveNumerics(false);
+			Assert.fail("Changed the numerics option of a frozen factory");
+		} catch (UnsupportedOperationException ex) {
+			Assert.assertTrue(mf.getPrimitiveNumerics());
+		}
+		try {
+			mf.setCustomFields(new HashMap<Integer, CustomField>());
+			Assert.fail("Changed the custom fields of a frozen factory");
+		} catch (UnsupportedOperationException ex) {
+			Assert.assertNotNull(mf.getCustomField(48));
+		}
+		try {
+			mf.setCharacterEncoding("ISO-8859-1");
+			Assert.fail("Changed the charset of a frozen factory");
+		} catch (UnsupportedOperationException ex) {
+			Assert.assertEquals("UTF-8", mf.getCharset().name());
+		}
+		Assert.assertTrue(mf.parseMessage(buf, hlen).<Number>getField(3) instanceof NumericValue);
+	}
+
+	/** Checks the encoded length of each field against what it writes, and writes the
+	 * messages into heap and direct buffers. */
+	@Test
+	public void testWriteTo() throws Exception {
+		IsoMessage ascii = mf.newMessage(0x200);
+		ascii.setValue(4, new BigDecimal("12.34"), IsoType.AMOUNT, 0);
+		ascii.setValue(7, new Date(), IsoType.DATE10, 0);
+		ascii.setValue(41, "áéíóú", IsoType.ALPHA, 16);
+		ascii.setValue(102, "ñ\ud83d\ude00", IsoType.LLVAR, 0);
+		ascii.setEtx(3);
+		IsoMessage bin = mf.newMessage(0x600);
+		bin.setBinary(true);
+		mf.setLazyParsing(true);
+		IsoMessage lazy = mf.parseMessage(mf.newMessage(0x600).writeData(), 0);
+		for (IsoMessage m : new IsoMessage[]{ ascii, bin, lazy }) {
+			int len = 0;
+			for (int i = 2; i < 129; i++) {
+				if (m.hasField(i)) {
+					ByteArrayOutputStream bout = new ByteArrayOutputStream();
+					m.getField(i).write(bout, m.isBinary());
+					Assert.assertEquals("Field " + i, bout.size(), m.getField(i).encodedLength(m.isBinary()));
+					len += bout.size();
+				}
+			}
+			Assert.assertTrue(len < m.encodedLength());
+			ByteBuffer expected = m.writeToBuffer(2);
+			Assert.assertEquals(m.encodedLength() + 2, expected.remaining());
+			ByteBuffer direct = ByteBuffer.allocateDirect(expected.remaining() + 3);
+			direct.put((byte)9);
+			m.writeTo(direct, 2);
+			Assert.assertEquals(direct.capacity() - 2, direct.position());
+			direct.flip();
+			direct.get();
+			Assert.assertEquals(expected, direct);
+		}
+		//Nothing is written if it doesn't fit
+		ByteBuffer small = ByteBuffer.allocate(ascii.encodedLength());
+		try {
+			ascii.writeTo(small, 1);
+			Assert.fail("Message should not fit");
+		} catch (BufferOverflowException ex) {
+			Assert.assertEquals(0, small.position());
+		}
+	}
+
+	/** Values are encoded directly from numbers, dates and text; they must produce the same bytes
+	 * as a subclass, which is written from its toString() as before. */
+	@Test
+	public void testDirectEncoding() throws IOException {
+		final Date d = new Date(1234567890000L);
+		final CustomField<Object> upper = new CustomField<Object>() {
+			public Object decodeField(String value) {
+				return value;
+			}
+			public String encodeField(Object value) {
+				return value.toString().toUpperCase();
+			}
+		};
+		Object[][] values = new Object[][]{
+			{ IsoType.NUMERIC, 123, 6 }, { IsoType.NUMERIC, 5L, 1 }, { IsoType.NUMERIC, 123456789012345L, 19 },
+			{ IsoType.NUMERIC, -12, 6 }, { IsoType.NUMERIC, "4321", 7 },
+			{ IsoType.AMOUNT, new BigDecimal("501.25"), 12 }, { IsoType.AMOUNT, new BigDecimal("1.5"), 12 },
+			{ IsoType.AMOUNT, "12.34", 12 },
+			{ IsoType.DATE10, d, 10 }, { IsoType.DATE4, d, 4 }, { IsoType.DATE_EXP, d, 4 }, { IsoType.TIME, d, 6 },
+			{ IsoType.DATE10, new Date(-86399000L), 10 },
+			{ IsoType.ALPHA, "abc", 8 }, { IsoType.ALPHA, "Señor áéí", 5 }, { IsoType.ALPHA, "{ñ}", 3 },
+			{ IsoType.ALPHA, 42, 4 }, { IsoType.ALPHA, "", 2 },
+			{ IsoType.LLVAR, "Señor", 0 }, { IsoType.LLLVAR, "café con leche", 0 },
+			{ IsoType.BINARY, new byte[]{ 1, (byte)0xab }, 4 }, { IsoType.BINARY, "ABCD", 2 },
+			{ IsoType.LLBIN, new byte[]{ (byte)0xff, 0, 0x12 }, 0 }, { IsoType.LLLBIN, "0102", 2 },
+		};
+		for (String enc : new String[]{ "UTF-8", "ISO-8859-1", "Cp1047" }) {
+			for (Object[] v : values) {
+				final IsoType type = (IsoType)v[0];
+				final int len = (Integer)v[2];
+				for (int e = 0; e < 2; e++) {
+					IsoValue<Object> direct = new IsoValue<Object>(type, v[1], len, e == 0 ? null : upper);
+					IsoValue<Object> legacy = new IsoValue<Object>(type, v[1], len, e == 0 ? null : upper) {};
+					direct.setCharacterEncoding(enc);
+					legacy.setCharacterEncoding(enc);
+					for (boolean binary : new boolean[]{ false, true }) {
+						final String msg = enc + " " + type + " " + v[1] + (binary ? " binary" : "") + (e == 0 ? "" : " encoder");
+						ByteArrayOutputStream expected = new ByteArrayOutputStream();
+						legacy.write(expected, binary);
+						ByteArrayOutputStream bout = new ByteArrayOutputStream();
+						direct.write(bout, binary);
+						Assert.assertArrayEquals(msg, expected.toByteArray(), bout.toByteArray());
+						Assert.assertEquals(msg, bout.size(), direct.encodedLength(binary));
+						//Straight into a buffer, as a message does
+						IsoMessage m = new IsoMessage();
+						m.setCharacterEncoding(enc);
+						m.setBinary(binary);
+						m.setField(2, direct);
+						ByteArrayOutputStream whole = new ByteArrayOutputStream();
+						m.setField(2, legacy);
+						m.write(whole, 0);
+						m.setField(2, direct);
+						ByteBuffer buf = ByteBuffer.allocate(m.encodedLength());
+						m.writeTo(buf, 0);
+						Assert.assertArrayEquals(msg, whole.toByteArray(), buf.array());
+					}
+				}
+			}
+		}
+	}
+
+	/** Freezes messages and checks that they can't be modified, while their mutable copies can. */
+	@Test
+	public void testFreeze() throws ParseException, IOException {
+		IsoMessage m = mf.newMessage(0x200);
+		m.setValue(4, new BigDecimal("12.34"), IsoType.AMOUNT, 0);
+		m.setValue(11, 123, IsoType.NUMERIC, 6);
+		final byte[] data = m.writeData();
+		IsoMessage frozen = m.toImmutable();
+		Assert.assertTrue(frozen.isFrozen());
+		Assert.assertFalse(m.isFrozen());
+		Assert.assertSame(frozen, frozen.toImmutable());
+		Assert.assertArrayEquals(data, frozen.writeData());
+		Assert.assertEquals(m.getObjectValue(4), frozen.getObjectValue(4));
+		try {
+			frozen.setValue(39, "00", IsoType.ALPHA, 2);
+			Assert.fail("Frozen message was modified");
+		} catch (UnsupportedOperationException ex) {
+			//ok
+		}
+		try {
+			frozen.setField(4, null);
+			Assert.fail("Frozen message was modified");
+		} catch (UnsupportedOperationException ex) {
+			//ok
+		}
+		try {
+			frozen.getField(11).setCharacterEncoding("ISO-8859-1");
+			Assert.fail("Frozen value was modified");
+		} catch (UnsupportedOperationException ex) {
+			//ok
+		}
+		Assert.assertTrue(frozen.hasField(4));
+		Assert.assertFalse(frozen.hasField(39));
+		//The original message is still mutable, and its values are not the frozen ones
+		m.setValue(11, 456, IsoType.NUMERIC, 6);
+		Assert.assertEquals(123, frozen.getObjectValue(11));
+		//The mutable copy shares the values that are not changed
+		IsoMessage copy = frozen.toMutable();
+		Assert.assertFalse(copy.isFrozen());
+		Assert.assertSame(frozen.getField(4), copy.getField(4));
+		copy.setType(0x210);
+		copy.setValue(39, "00", IsoType.ALPHA, 2);
+		Assert.assertArrayEquals(data, frozen.writeData());
+		Assert.assertTrue(copy.hasField(39));
+		Assert.assertEquals(0x200, frozen.getType());
+		//Lazy values are decoded, so the snapshot doesn't depend on the buffer
+		mf.setLazyParsing(true);
+		final int hlen = mf.getIsoHeader(0x200).length();
+		final byte[] buf = data.clone();
+		IsoMessage target = new IsoMessage();
+		mf.parseInto(target, buf, hlen);
+		IsoMessage parsed = target.toImmutable();
+		Assert.assertSame(target, target.freeze());
+		Assert.assertTrue(target.isFrozen());
+		Arrays.fill(buf, (byte)'0');
+		Assert.assertArrayEquals(data, parsed.writeData());
+		Assert.assertArrayEquals(data, target.writeData());
+		Assert.assertEquals(frozen.getObjectValue(4), parsed.getObjectValue(4));
+		try {
+			mf.parseInto(target, data, hlen);
+			Assert.fail("Frozen message was parsed into");
+		} catch (UnsupportedOperationException ex) {
+			//ok
+		}
+	}
+
+	/** A value that writes a tag before the formatted value, without overriding encodedLength. */
+	private static class TaggedValue extends IsoValue<String> {
+		TaggedValue(String value) {
+			super(IsoType.LLVAR, value);
+		}
+		@Override
+		public void write(OutputStream outs, boolean binary) throws IOException {
+			outs.write('T');
+			super.write(outs, binary);
+		}
+	}
+
+	@Test
+	public void testOverriddenWrite() throws IOException {
+		IsoMessage m = new IsoMessage();
+		m.setType(0x200);
+		m.setCharacterEncoding("UTF-8");
+		m.setField(63, new TaggedValue("abc"));
+		Assert.assertEquals(6, m.getField(63).encodedLength(false));
+		final byte[] data = m.writeData();
+		Assert.assertEquals(m.encodedLength(), data.length);
+		Assert.assertEquals("02000000000000000002T03abc", new String(data, "UTF-8"));
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		m.getField(63).write(bout, false);
+		Assert.assertEquals("T03abc", bout.toString("UTF-8"));
+		ByteBuffer buf = ByteBuffer.allocate(data.length);
+		m.writeTo(buf, 0);
+		Assert.assertFalse(buf.hasRemaining());
+		Assert.assertArrayEquals(data, buf.array());
+		Assert.assertArrayEquals(data, m.toImmutable().writeData());
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testNumericTooLong() {
+		new NumericValue(1000, 3);
 	}
 
 }
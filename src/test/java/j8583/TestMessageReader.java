@@ -0,0 +1,81 @@
+package j8583;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.solab.iso8583.IsoMessage;
+import com.solab.iso8583.IsoMessageReader;
+import com.solab.iso8583.IsoType;
+import com.solab.iso8583.MessageFactory;
+
+/** Reads messages from streams and channels. */
+public class TestMessageReader {
+
+	private MessageFactory mf;
+	private List<IsoMessage> sent = new ArrayList<IsoMessage>();
+	private byte[] data;
+
+	@Before
+	public void init() throws IOException {
+		mf = new MessageFactory();
+		mf.setCharacterEncoding("UTF-8");
+		mf.setCustomField(48, new CustomField48());
+		mf.setConfigPath("config.xml");
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		for (int i = 1; i <= 50; i++) {
+			IsoMessage m = mf.newMessage(0x200);
+			m.setValue(11, i, IsoType.NUMERIC, 6);
+			m.write(bout, 2);
+			sent.add(m);
+		}
+		data = bout.toByteArray();
+	}
+
+	private void check(IsoMessageReader reader) {
+		int i = 0;
+		while (reader.hasNext()) {
+			IsoMessage m = reader.next();
+			Assert.assertArrayEquals(sent.get(i++).writeData(), m.writeData());
+		}
+		Assert.assertEquals(sent.size(), i);
+	}
+
+	@Test
+	public void testStream() throws IOException {
+		check(mf.newReader(new ByteArrayInputStream(data), 2, 12));
+		//A buffer smaller than the messages
+		check(new IsoMessageReader(mf, new ByteArrayInputStream(data), 2, 12, 100));
+	}
+
+	@Test
+	public void testChannel() throws IOException {
+		check(mf.newReader(Channels.newChannel(new ByteArrayInputStream(data)), 2, 12));
+		mf.setLazyParsing(true);
+		check(new IsoMessageReader(mf, Channels.newChannel(new ByteArrayInputStream(data)), 2, 12, 333));
+	}
+
+	@Test
+	public void testIncompleteMessage() throws Exception {
+		IsoMessageReader reader = mf.newReader(new ByteArrayInputStream(data, 0, data.length - 10), 2, 12);
+		for (int i = 0; i < sent.size() - 1; i++) {
+			Assert.assertNotNull(reader.read());
+		}
+		try {
+			reader.read();
+			Assert.fail("Read an incomplete message");
+		} catch (EOFException ex) {
+			//expected
+		}
+		Assert.assertNull(reader.read());
+	}
+
+}
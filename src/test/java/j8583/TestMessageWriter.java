@@ -0,0 +1,127 @@
+package j8583;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.solab.iso8583.IsoMessage;
+import com.solab.iso8583.IsoMessageReader;
+import com.solab.iso8583.IsoMessageWriter;
+import com.solab.iso8583.IsoType;
+import com.solab.iso8583.MessageFactory;
+
+/** Writes batches of messages to streams and channels, and reads them back. */
+public class TestMessageWriter {
+
+	private MessageFactory mf;
+	private List<IsoMessage> msgs = new ArrayList<IsoMessage>();
+	private byte[] data;
+
+	@Before
+	public void init() throws IOException {
+		mf = new MessageFactory();
+		mf.setCharacterEncoding("UTF-8");
+		mf.setCustomField(48, new CustomField48());
+		mf.setConfigPath("config.xml");
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		for (int i = 1; i <= 100; i++) {
+			IsoMessage m = mf.newMessage(0x200);
+			m.setValue(11, i, IsoType.NUMERIC, 6);
+			m.write(bout, 2);
+			msgs.add(m);
+		}
+		data = bout.toByteArray();
+	}
+
+	/** A channel that keeps everything written to it and counts the write calls. */
+	private static class Recorder implements GatheringByteChannel {
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		int writes;
+		/** The most bytes taken by each write, to simulate partial writes. */
+		int max = Integer.MAX_VALUE;
+
+		public long write(ByteBuffer[] srcs, int offset, int length) {
+			writes++;
+			long n = 0;
+			for (int i = offset; i < offset + length && n < max; i++) {
+				while (srcs[i].hasRemaining() && n < max) {
+					bout.write(srcs[i].get());
+					n++;
+				}
+			}
+			return n;
+		}
+		public long write(ByteBuffer[] srcs) {
+			return write(srcs, 0, srcs.length);
+		}
+		public int write(ByteBuffer src) {
+			return (int)write(new ByteBuffer[]{ src });
+		}
+		public boolean isOpen() {
+			return true;
+		}
+		public void close() {
+		}
+	}
+
+	private void check(byte[] written) throws IOException {
+		Assert.assertArrayEquals(data, written);
+		IsoMessageReader reader = mf.newReader(new ByteArrayInputStream(written), 2, 12);
+		int i = 0;
+		while (reader.hasNext()) {
+			Assert.assertArrayEquals(msgs.get(i++).writeData(), reader.next().writeData());
+		}
+		Assert.assertEquals(msgs.size(), i);
+	}
+
+	@Test
+	public void testChannel() throws IOException {
+		Recorder ch = new Recorder();
+		IsoMessageWriter w = new IsoMessageWriter(2);
+		Assert.assertEquals(data.length, w.writeAll(msgs, ch));
+		Assert.assertEquals(1, ch.writes);
+		check(ch.bout.toByteArray());
+		//The buffers are reused for the next batch
+		ch = new Recorder();
+		Assert.assertEquals(data.length, w.writeAll(msgs, ch));
+		check(ch.bout.toByteArray());
+		Assert.assertEquals(0, w.writeAll(Collections.<IsoMessage>emptyList(), ch));
+	}
+
+	@Test
+	public void testSmallBuffers() throws IOException {
+		//Several messages per buffer, and a channel that takes a few bytes at a time
+		Recorder ch = new Recorder();
+		ch.max = 1000;
+		IsoMessageWriter w = new IsoMessageWriter(2, 2000, true);
+		Assert.assertEquals(data.length, w.writeAll(msgs, ch));
+		Assert.assertTrue(ch.writes > 1);
+		check(ch.bout.toByteArray());
+		//Buffers smaller than a message
+		ch = new Recorder();
+		w = new IsoMessageWriter(2, 100, false);
+		w.writeAll(msgs, ch);
+		Assert.assertEquals(1, ch.writes);
+		check(ch.bout.toByteArray());
+	}
+
+	@Test
+	public void testStream() throws IOException {
+		for (boolean direct : new boolean[]{ false, true }) {
+			ByteArrayOutputStream bout = new ByteArrayOutputStream();
+			IsoMessageWriter w = new IsoMessageWriter(2, 3000, direct);
+			Assert.assertEquals(data.length, w.writeAll(msgs, bout));
+			check(bout.toByteArray());
+		}
+	}
+
+}
@@ -2,12 +2,26 @@ package j8583;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.text.ParseException;
+import java.text.ParsePosition;
+import java.util.IdentityHashMap;
+import java.util.Map;
 
+import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.solab.iso8583.CustomField;
+import com.solab.iso8583.FrameEditor;
+import com.solab.iso8583.IsoMessage;
+import com.solab.iso8583.IsoType;
+import com.solab.iso8583.IsoValue;
 import com.solab.iso8583.MessageFactory;
+import com.solab.iso8583.parse.FieldParseInfo;
+import com.solab.iso8583.parse.LlvarParseInfo;
 
 /** Test that parsing invalid messages is properly handled.
  * 
@@ -96,4 +110,224 @@ public class TestParsing {
 		mf.parseMessage(new byte[]{2, 0x10, (byte)0xB2, 0x3A, (byte)0x80, 1, 0x2E, (byte)0xA0, (byte)0x80, 0x18, 0, 0, 0, 0, 0x14, 0, 0, 4, 0x65, 0, 0, 0, 0, 0, 0, 0x30, 0, 0x04, 0x28, 0x13, 0x05, 0x47, 0x46, (byte)0x87, 0x71, 0x12, 0x59, 0x46, 0x04, 0x28, 0x04, 0x28, 0x08, 0x11, 0x05, 0x12, 0x34}, 0);
 	}
 
+	/** The parsers advance the cursor by the bytes they read, even if a custom field doesn't
+	 * encode its value back to the same string, or the data has multibyte characters. */
+	@Test
+	public void testCursor() throws ParseException, UnsupportedEncodingException {
+		CustomField<String> trim = new CustomField<String>() {
+			public String decodeField(String value) {
+				return value.trim();
+			}
+			public String encodeField(String value) {
+				return value;
+			}
+		};
+		ByteBuffer buf = ByteBuffer.wrap("05 abc 0123\u00e1\u00e9".getBytes("UTF-8"));
+		ParsePosition cursor = new ParsePosition(0);
+		Assert.assertEquals("abc", new LlvarParseInfo().parse(buf, cursor, trim).getValue());
+		Assert.assertEquals(7, cursor.getIndex());
+		Assert.assertEquals("0123", FieldParseInfo.getInstance(IsoType.NUMERIC, 4, "UTF-8").parse(buf, cursor, null).getValue());
+		Assert.assertEquals(11, cursor.getIndex());
+		Assert.assertEquals("\u00e1\u00e9", FieldParseInfo.getInstance(IsoType.ALPHA, 2, "UTF-8").parse(buf, cursor, null).getValue());
+		Assert.assertEquals(15, cursor.getIndex());
+		try {
+			new LlvarParseInfo().parse(buf, cursor, null);
+			Assert.fail("Parsed past the end of the buffer");
+		} catch (ParseException ex) {
+			Assert.assertEquals(15, cursor.getIndex());
+		}
+	}
+
+	/** Parses text with multibyte characters and with the single-byte charsets, which are
+	 * decoded without a CharsetDecoder. */
+	@Test
+	public void testCharsets() throws ParseException, UnsupportedEncodingException {
+		//Multibyte characters, with a lot of data after the field
+		StringBuilder sb = new StringBuilder("005\u00e1b\u00e9cd");
+		for (int i = 0; i < 2000; i++) {
+			sb.append('x');
+		}
+		ByteBuffer buf = ByteBuffer.wrap(sb.toString().getBytes("UTF-8"));
+		ParsePosition cursor = new ParsePosition(0);
+		FieldParseInfo lllvar = FieldParseInfo.getInstance(IsoType.LLLVAR, 0, Charset.forName("UTF-8"));
+		Assert.assertEquals("\u00e1b\u00e9cd", lllvar.parse(buf, cursor, null).getValue());
+		Assert.assertEquals(10, cursor.getIndex());
+		//The same bytes in ISO-8859-1 are one character each
+		FieldParseInfo alpha = FieldParseInfo.getInstance(IsoType.ALPHA, 7, Charset.forName("ISO-8859-1"));
+		Assert.assertEquals("\u00c3\u00a1b\u00c3\u00a9cd", alpha.parse(buf, 3, null).getValue());
+		ByteBuffer direct = ByteBuffer.allocateDirect(buf.capacity());
+		direct.put(buf.array());
+		Assert.assertEquals("\u00c3\u00a1b\u00c3\u00a9cd", alpha.parse(direct, 3, null).getValue());
+		Assert.assertEquals("\u00e1b\u00e9cd", lllvar.parse(direct, 0, null).getValue());
+		//Non-ASCII bytes are replaced in ASCII
+		alpha.setCharset(Charset.forName("US-ASCII"));
+		Assert.assertEquals("\ufffd\ufffdb", alpha.parse(buf, 3, null).getValue().toString().substring(0, 3));
+	}
+
+	/** Messages with fields that are not in the parsing guide, in either bitmap, are returned
+	 * without any fields. */
+	@Test
+	public void testUnknownFields() throws ParseException, UnsupportedEncodingException {
+		final int hlen = mf.getIsoHeader(0x200).length();
+		IsoMessage m = mf.newMessage(0x200);
+		m.setValue(5, 1, IsoType.NUMERIC, 12);
+		IsoMessage p = mf.parseMessage(m.writeData(), hlen);
+		Assert.assertEquals(0x200, p.getType());
+		Assert.assertFalse(p.hasField(3));
+		m = mf.newMessage(0x200);
+		m.setValue(126, "unknown", IsoType.LLLVAR, 0);
+		p = mf.parseMessage(m.writeData(), hlen);
+		Assert.assertFalse(p.hasField(3));
+		Assert.assertFalse(p.hasField(102));
+		m.setField(126, null);
+		p = mf.parseMessage(m.writeData(), hlen);
+		Assert.assertEquals(m.getObjectValue(3), p.getObjectValue(3));
+		Assert.assertEquals(m.getObjectValue(102), p.getObjectValue(102));
+	}
+
+	/** Parses several messages into the same instance, reusing its values with lazy parsing. */
+	@Test
+	public void testParseInto() throws ParseException, UnsupportedEncodingException {
+		final int hlen = mf.getIsoHeader(0x200).length();
+		IsoMessage m1 = mf.newMessage(0x200);
+		m1.setValue(4, new BigDecimal("12.34"), IsoType.AMOUNT, 0);
+		IsoMessage m2 = mf.newMessage(0x200);
+		m2.setValue(3, "111111", IsoType.NUMERIC, 6);
+		m2.setField(102, null);
+		final byte[] buf1 = m1.writeData();
+		final byte[] buf2 = m2.writeData();
+		for (boolean lazy : new boolean[]{ false, true }) {
+			mf.setLazyParsing(lazy);
+			IsoMessage target = new IsoMessage();
+			Assert.assertSame(target, mf.parseInto(target, buf1, hlen));
+			Assert.assertArrayEquals(buf1, target.writeData());
+			final String header = target.getIsoHeader();
+			final Map<IsoValue<?>, Boolean> previous = new IdentityHashMap<IsoValue<?>, Boolean>();
+			for (int i = 2; i <= 128; i++) {
+				if (target.hasField(i)) {
+					previous.put(target.getField(i), true);
+				}
+			}
+			final IsoValue<Object> copy = target.<Object>getField(3).clone();
+			byte[] buf = buf2.clone();
+			mf.parseInto(target, buf, hlen);
+			Assert.assertArrayEquals(buf2, target.writeData());
+			Assert.assertFalse(target.hasField(102));
+			Assert.assertSame(header, target.getIsoHeader());
+			Assert.assertEquals("111111", target.getObjectValue(3));
+			//The second message has fewer fields, so all of its lazy values are reused
+			for (int i = 2; i <= 128; i++) {
+				if (target.hasField(i)) {
+					Assert.assertEquals("Field " + i, lazy, previous.containsKey(target.getField(i)));
+				}
+			}
+			//The clone doesn't change with the buffer or the next parse
+			Assert.assertEquals(m1.getObjectValue(3), copy.getValue());
+			//From a direct buffer, with something before the message
+			ByteBuffer direct = ByteBuffer.allocateDirect(buf1.length + 5);
+			direct.position(5);
+			direct.put(buf1).position(5);
+			mf.parseInto(target, direct, hlen);
+			Assert.assertEquals(5, direct.position());
+			Assert.assertArrayEquals(buf1, target.writeData());
+			Assert.assertEquals(m1.getObjectValue(4), target.getObjectValue(4));
+			target.reset();
+			Assert.assertEquals(0, target.getType());
+			Assert.assertNull(target.getIsoHeader());
+			for (int i = 2; i <= 128; i++) {
+				Assert.assertFalse(target.hasField(i));
+			}
+		}
+	}
+
+	/** Creates responses that share the request's fields, with eager and lazy parsing. */
+	@Test
+	public void testEchoRequestBytes() throws ParseException, UnsupportedEncodingException {
+		final int hlen = mf.getIsoHeader(0x200).length();
+		IsoMessage req = mf.newMessage(0x200);
+		req.setValue(4, new BigDecimal("12.34"), IsoType.AMOUNT, 0);
+		req.setValue(11, "000123", IsoType.NUMERIC, 6);
+		final byte[] buf = req.writeData();
+		IsoMessage plain = mf.parseMessage(buf, hlen);
+		IsoMessage expected = mf.createResponse(plain);
+		expected.setValue(38, "AUTH01", IsoType.ALPHA, 6);
+		expected.setValue(39, "00", IsoType.ALPHA, 2);
+		final byte[] resp = expected.writeData();
+		mf.setEchoRequestBytes(true);
+		Assert.assertTrue(mf.getEchoRequestBytes());
+		for (boolean lazy : new boolean[]{ false, true }) {
+			mf.setLazyParsing(lazy);
+			IsoMessage parsed = mf.parseMessage(buf, hlen);
+			Assert.assertEquals(plain.getObjectValue(4), parsed.getObjectValue(4));
+			IsoMessage echo = mf.createResponse(parsed);
+			echo.setValue(38, "AUTH01", IsoType.ALPHA, 6);
+			echo.setValue(39, "00", IsoType.ALPHA, 2);
+			Assert.assertArrayEquals(resp, echo.writeData());
+			for (int i = parsed.nextField(1); i > 0 && i < 128; i = parsed.nextField(i)) {
+				Assert.assertSame("Field " + i, parsed.getField(i), echo.getField(i));
+			}
+			Assert.assertFalse(echo.hasField(128));
+			//Lazy values that are reused by the request are not shared
+			IsoMessage target = new IsoMessage();
+			mf.parseInto(target, buf, hlen);
+			echo = mf.createResponse(target);
+			Assert.assertEquals(lazy, target.getField(11) != echo.getField(11));
+			target.reset();
+			echo.setValue(38, "AUTH01", IsoType.ALPHA, 6);
+			echo.setValue(39, "00", IsoType.ALPHA, 2);
+			Assert.assertArrayEquals(resp, echo.writeData());
+		}
+	}
+
+	/** Changes fields of an encoded message, comparing it with a full parse and encode. */
+	@Test
+	public void testEditFrame() throws ParseException, UnsupportedEncodingException {
+		final int hlen = mf.getIsoHeader(0x200).length();
+		IsoMessage m = mf.newMessage(0x200);
+		m.setValue(4, new BigDecimal("12.34"), IsoType.AMOUNT, 0);
+		m.setValue(32, "123456", IsoType.LLVAR, 0);
+		final byte[] buf = m.writeData();
+		Assert.assertTrue(m.hasField(102));
+		//No changes
+		FrameEditor editor = mf.editFrame(buf, hlen);
+		Assert.assertEquals(buf.length, editor.encodedLength());
+		Assert.assertArrayEquals(buf, editor.writeData());
+		//Replace a variable field and insert another one
+		IsoValue<String> acq = new IsoValue<String>(IsoType.LLVAR, "9876543210");
+		IsoValue<String> term = new IsoValue<String>(IsoType.ALPHA, "TERMINAL", 16);
+		Assert.assertFalse(editor.hasField(41));
+		editor.setField(32, acq).setField(41, term);
+		IsoMessage expected = mf.parseMessage(buf, hlen);
+		expected.setField(32, acq).setField(41, term);
+		Assert.assertArrayEquals(expected.writeData(), editor.writeData());
+		//Removing the secondary fields removes the secondary bitmap
+		editor.removeField(100).setField(102, null);
+		expected.setField(100, null).setField(102, null);
+		Assert.assertFalse(editor.hasField(102));
+		final byte[] edited = editor.writeData();
+		Assert.assertArrayEquals(expected.writeData(), edited);
+		Assert.assertEquals('B', buf[hlen + 4]);
+		Assert.assertEquals('3', edited[hlen + 4]);
+		Assert.assertEquals(expected.getObjectValue(32), mf.parseMessage(edited, hlen).getObjectValue(32));
+		//Inserting them again brings it back, from a direct buffer with something before the message
+		ByteBuffer direct = ByteBuffer.allocateDirect(edited.length + 3);
+		direct.position(3);
+		direct.put(edited).position(3);
+		editor = mf.editFrame(direct, hlen);
+		Assert.assertEquals(3, direct.position());
+		editor.setField(102, m.getField(102)).setField(100, m.getField(100));
+		editor.setField(32, m.getField(32)).setField(41, null);
+		ByteBuffer out = ByteBuffer.allocate(buf.length);
+		editor.writeTo(out);
+		Assert.assertArrayEquals(buf, out.array());
+		//A shared value with another charset is copied
+		IsoMessage latin = new IsoMessage();
+		latin.setCharacterEncoding("ISO-8859-1");
+		latin.setValue(41, "TERMINAL", IsoType.ALPHA, 16);
+		latin.freeze();
+		editor.setField(41, latin.getField(41));
+		Assert.assertEquals("ISO-8859-1", latin.getField(41).getCharacterEncoding());
+		Assert.assertEquals("TERMINAL        ", mf.parseMessage(editor.writeData(), hlen).getObjectValue(41));
+	}
+
 }